@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.android.Utils;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.features2d.Feature2D;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.GOOD_MATCH_COUNT;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.RANSAC;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.SHARPNESS_GAUSSIAN_BLUR_WINDOW;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.SIFT_RESIZE_FACTOR;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares the latency and detection rate of each {@link FeatureBackend} on the bundled
+ * reference images, each pasted into synthetic camera frames with a known pose
+ * Note: the results are written to logcat under the "FeatureBackendBenchmark" tag
+ */
+@RunWith(AndroidJUnit4.class)
+public class FeatureBackendBenchmark {
+    private static final String TAG = "FeatureBackendBenchmark";
+
+    // The reference images in drawable-nodpi
+    static final String[] REFERENCE_IMAGES = {
+            "carestart_ref_v0", "covid19_jalmedical_ref_v0", "covid19_wondfo_ref_v0",
+            "experimental_rdt_v0", "experimental_rdt_v1", "experimental_rdt_v2",
+            "flu_quickvue_ref_v0", "malaria_carestart_ref_v0", "malaria_experimental_ref_v0",
+            "malaria_sdbioline_ref_v0"
+    };
+
+    // Synthetic camera frame (landscape, like the camera sensor)
+    private static final Size FRAME_SIZE = new Size(1280, 720);
+
+    // Poses of the RDT within the frame: relative width, rotation (degrees), and perspective
+    static final double[][] POSES = {
+            {0.60, 0, 0.00}, {0.55, 3, 0.02}, {0.65, -4, 0.04}, {0.50, 8, 0.06}
+    };
+
+    // Mean corner error (relative to the RDT's width) below which the RDT counts as detected
+    static final double MAX_CORNER_ERROR = 0.05;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void benchmarkBackends() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        List<Mat> references = new ArrayList<>();
+        for (String name : REFERENCE_IMAGES) {
+            int id = context.getResources().getIdentifier(name, "drawable",
+                    context.getPackageName());
+            if (id != 0)
+                references.add(loadReference(BitmapFactory.decodeResource(
+                        context.getResources(), id)));
+        }
+        assertTrue(references.size() > 0);
+
+        for (FeatureBackend backend : FeatureBackend.values()) {
+            Feature2D detector = backend.createDetector();
+            long referenceTime = 0;
+            long frameTime = 0;
+            int frames = 0;
+            int detected = 0;
+
+            for (Mat reference : references) {
+                // Extract and index the reference's features once, like RDT does
+                MatOfKeyPoint refKeypoints = new MatOfKeyPoint();
+                Mat refDescriptor = new Mat();
+                long startTime = System.nanoTime();
+                detector.detectAndCompute(reference, new Mat(), refKeypoints, refDescriptor);
+                FeatureIndex refIndex = FeatureIndex.build(backend, refDescriptor);
+                referenceTime += System.nanoTime() - startTime;
+                assertTrue(backend + " found no reference features", refKeypoints.rows() > 0);
+
+                for (double[] pose : POSES) {
+                    MatOfPoint2f trueCorners = new MatOfPoint2f();
+                    Mat frame = renderFrame(reference, pose, trueCorners);
+
+                    startTime = System.nanoTime();
+                    MatOfPoint2f corners = detect(frame, reference, detector, refIndex,
+                            refKeypoints);
+                    frameTime += System.nanoTime() - startTime;
+                    frames++;
+                    if (corners.rows() == 4 &&
+                            cornerError(corners, trueCorners) < MAX_CORNER_ERROR)
+                        detected++;
+
+                    frame.release();
+                    corners.release();
+                    trueCorners.release();
+                }
+                refKeypoints.release();
+                refDescriptor.release();
+            }
+
+            Log.d(TAG, String.format("%s -- reference: %.1f ms, frame: %.1f ms, " +
+                            "detected: %d/%d (%.0f%%)",
+                    backend, referenceTime / 1e6 / references.size(), frameTime / 1e6 / frames,
+                    detected, frames, 100.0 * detected / frames));
+        }
+
+        for (Mat reference : references)
+            reference.release();
+    }
+
+    /**
+     * Prepares a reference image the same way as {@link RDT}
+     * @param bitmap: the reference image
+     * @return the reference image (in grayscale, landscape, blurred)
+     */
+    static Mat loadReference(Bitmap bitmap) {
+        Mat refImg = new Mat();
+        Utils.bitmapToMat(bitmap, refImg);
+        if (refImg.height() > refImg.width())
+            Core.rotate(refImg, refImg, Core.ROTATE_90_COUNTERCLOCKWISE);
+        Imgproc.cvtColor(refImg, refImg, Imgproc.COLOR_RGB2GRAY);
+        Size kernel = new Size(SHARPNESS_GAUSSIAN_BLUR_WINDOW, SHARPNESS_GAUSSIAN_BLUR_WINDOW);
+        Imgproc.GaussianBlur(refImg, refImg, kernel, 0, 0);
+        return refImg;
+    }
+
+    /**
+     * Pastes the reference image into a noisy synthetic camera frame
+     * @param reference: the reference image (in grayscale)
+     * @param pose: the relative width, rotation, and perspective of the RDT
+     * @param trueCorners: receives the corners of the RDT within the frame
+     * @return the synthetic camera frame (in grayscale)
+     */
+    static Mat renderFrame(Mat reference, double[] pose, MatOfPoint2f trueCorners) {
+        double width = FRAME_SIZE.width * pose[0];
+        double height = width * reference.rows() / reference.cols();
+        double angle = Math.toRadians(pose[1]);
+        double skew = pose[2] * width;
+        Point center = new Point(FRAME_SIZE.width / 2, FRAME_SIZE.height / 2);
+
+        // Rotate the corners around the center and pinch one end for perspective
+        double[][] offsets = {
+                {-width / 2, -height / 2 + skew}, {width / 2, -height / 2},
+                {width / 2, height / 2}, {-width / 2, height / 2 - skew}
+        };
+        Point[] corners = new Point[4];
+        for (int i = 0; i < 4; i++) {
+            double x = offsets[i][0] * Math.cos(angle) - offsets[i][1] * Math.sin(angle);
+            double y = offsets[i][0] * Math.sin(angle) + offsets[i][1] * Math.cos(angle);
+            corners[i] = new Point(center.x + x, center.y + y);
+        }
+        trueCorners.fromArray(corners);
+
+        MatOfPoint2f refCorners = new MatOfPoint2f(new Point(0, 0),
+                new Point(reference.cols() - 1, 0),
+                new Point(reference.cols() - 1, reference.rows() - 1),
+                new Point(0, reference.rows() - 1));
+        Mat H = Imgproc.getPerspectiveTransform(refCorners, trueCorners);
+
+        // Mid-gray background with sensor-like noise
+        Mat frame = new Mat(FRAME_SIZE, CvType.CV_8UC1, new Scalar(128));
+        Imgproc.warpPerspective(reference, frame, H, FRAME_SIZE, Imgproc.INTER_LINEAR,
+                Core.BORDER_TRANSPARENT, new Scalar(0));
+        Mat noise = new Mat(FRAME_SIZE, CvType.CV_8SC1);
+        Core.randn(noise, 0, 6);
+        Core.add(frame, noise, frame, new Mat(), CvType.CV_8U);
+
+        refCorners.release();
+        H.release();
+        noise.release();
+        return frame;
+    }
+
+    /**
+     * Locates the reference image within the frame the same way as
+     * {@link ImageProcessor#detectRDT} (without the region of interest and tracking)
+     * @return the corners of the RDT within the frame, or a blank MatOfPoint2f
+     */
+    private static MatOfPoint2f detect(Mat frame, Mat reference, Feature2D detector,
+                                       FeatureIndex refIndex, MatOfKeyPoint refKeypoints) {
+        MatOfPoint2f boundary = new MatOfPoint2f();
+        Mat scaledMat = new Mat();
+        Imgproc.resize(frame, scaledMat, new Size(), SIFT_RESIZE_FACTOR, SIFT_RESIZE_FACTOR,
+                Imgproc.INTER_LINEAR);
+        MatOfKeyPoint keypoints = new MatOfKeyPoint();
+        Mat descriptor = new Mat();
+        detector.detectAndCompute(scaledMat, new Mat(), keypoints, descriptor);
+        scaledMat.release();
+        if (descriptor.rows() < 2) {
+            keypoints.release();
+            descriptor.release();
+            return boundary;
+        }
+
+        // Nearest neighbor distance ratio test
+        List<MatOfDMatch> matches = new ArrayList<>();
+        refIndex.knnMatch(descriptor, matches, 2);
+        KeyPoint[] refArray = refKeypoints.toArray();
+        KeyPoint[] sceneArray = keypoints.toArray();
+        List<Point> objList = new ArrayList<>();
+        List<Point> sceneList = new ArrayList<>();
+        for (MatOfDMatch match : matches) {
+            DMatch[] dMatches = match.toArray();
+            if (dMatches.length >= 2 && dMatches[0].distance <= 0.80 * dMatches[1].distance) {
+                objList.add(refArray[dMatches[0].trainIdx].pt);
+                Point pt = sceneArray[dMatches[0].queryIdx].pt;
+                sceneList.add(new Point(pt.x / SIFT_RESIZE_FACTOR, pt.y / SIFT_RESIZE_FACTOR));
+            }
+            match.release();
+        }
+        keypoints.release();
+        descriptor.release();
+
+        if (objList.size() > GOOD_MATCH_COUNT) {
+            MatOfPoint2f objMat = new MatOfPoint2f();
+            MatOfPoint2f sceneMat = new MatOfPoint2f();
+            objMat.fromList(objList);
+            sceneMat.fromList(sceneList);
+            Mat H = Calib3d.findHomography(objMat, sceneMat, Calib3d.RANSAC, RANSAC / SIFT_RESIZE_FACTOR);
+            if (H.cols() >= 3 && H.rows() >= 3) {
+                MatOfPoint2f refCorners = new MatOfPoint2f(new Point(0, 0),
+                        new Point(reference.cols() - 1, 0),
+                        new Point(reference.cols() - 1, reference.rows() - 1),
+                        new Point(0, reference.rows() - 1));
+                Core.perspectiveTransform(refCorners, boundary, H);
+                refCorners.release();
+            }
+            H.release();
+            objMat.release();
+            sceneMat.release();
+        }
+        return boundary;
+    }
+
+    /**
+     * Measures how far the detected corners are from the true ones
+     * @return the mean corner distance relative to the RDT's width
+     */
+    static double cornerError(MatOfPoint2f corners, MatOfPoint2f trueCorners) {
+        Point[] found = corners.toArray();
+        Point[] expected = trueCorners.toArray();
+        double error = 0;
+        for (int i = 0; i < 4; i++)
+            error += Math.hypot(found[i].x - expected[i].x, found[i].y - expected[i].y);
+        double width = Math.hypot(expected[1].x - expected[0].x, expected[1].y - expected[0].y);
+        return error / 4 / width;
+    }
+}
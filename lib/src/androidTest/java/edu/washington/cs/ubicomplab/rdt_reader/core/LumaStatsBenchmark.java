@@ -0,0 +1,188 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDouble;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfInt;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Rect;
+import org.opencv.core.Scalar;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.VIEW_FINDER_SCALE_W_PADDING;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares {@link LumaStats} with the separate OpenCV passes that the exposure and
+ * sharpness checks used before (calcHist, divide, resize, Laplacian, and meanStdDev) on
+ * synthetic camera frames (see {@link FeatureBackendBenchmark})
+ * Note: the results are written to logcat under the "LumaStatsBenchmark" tag
+ */
+@RunWith(AndroidJUnit4.class)
+public class LumaStatsBenchmark {
+    private static final String TAG = "LumaStatsBenchmark";
+
+    // How many times each frame is measured, to smooth out the timings
+    private static final int REPEATS = 20;
+
+    // How far the fused sharpness may be from OpenCV's, relative to OpenCV's
+    private static final double SHARPNESS_TOLERANCE = 0.02;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void benchmarkLumaStats() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        long separateTime = 0;
+        long fusedTime = 0;
+        long subsampledTime = 0;
+        double separateSharpness = 0;
+        double fusedSharpness = 0;
+        int frames = 0;
+
+        for (String name : FeatureBackendBenchmark.REFERENCE_IMAGES) {
+            int id = context.getResources().getIdentifier(name, "drawable",
+                    context.getPackageName());
+            if (id == 0)
+                continue;
+            Mat reference = FeatureBackendBenchmark.loadReference(BitmapFactory.decodeResource(
+                    context.getResources(), id));
+
+            for (double[] pose : FeatureBackendBenchmark.POSES) {
+                MatOfPoint2f trueCorners = new MatOfPoint2f();
+                Mat frame = FeatureBackendBenchmark.renderFrame(reference, pose, trueCorners);
+                Rect viewFinderRect = getViewfinderRect(frame);
+                double scale = (double) reference.cols() / viewFinderRect.width;
+                int scaledCols = (int) Math.round(viewFinderRect.width * scale);
+                int scaledRows = (int) Math.round(viewFinderRect.height * scale);
+
+                // The camera's luma plane is read in place, so it is not part of the timing
+                byte[] data = new byte[frame.rows() * frame.cols()];
+                frame.get(0, 0, data);
+                ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+                buffer.put(data);
+
+                float[] histogram = null;
+                double sharpness = 0;
+                long startTime = System.nanoTime();
+                for (int i = 0; i < REPEATS; i++) {
+                    histogram = measureHistogram(frame);
+                    sharpness = measureSharpness(frame.submat(viewFinderRect),
+                            scaledCols, scaledRows);
+                }
+                separateTime += System.nanoTime() - startTime;
+                separateSharpness += sharpness;
+
+                LumaStats stats = null;
+                startTime = System.nanoTime();
+                for (int i = 0; i < REPEATS; i++) {
+                    stats = LumaStats.measure(buffer, frame.cols(), frame.cols(), frame.rows(),
+                            viewFinderRect, scaledCols, scaledRows, 1);
+                }
+                fusedTime += System.nanoTime() - startTime;
+                fusedSharpness += stats.laplacianVariance;
+
+                startTime = System.nanoTime();
+                for (int i = 0; i < REPEATS; i++) {
+                    LumaStats.measure(buffer, frame.cols(), frame.cols(), frame.rows(),
+                            viewFinderRect, scaledCols, scaledRows, 2);
+                }
+                subsampledTime += System.nanoTime() - startTime;
+
+                // Without subsampling, the histograms have to be the same, and the sharpness
+                // can only differ by OpenCV's fixed-point interpolation weights
+                for (int i = 0; i < histogram.length; i++)
+                    assertEquals(histogram[i], stats.histogram[i], 1e-6);
+                assertEquals(sharpness, stats.laplacianVariance,
+                        SHARPNESS_TOLERANCE * sharpness);
+
+                frames++;
+                frame.release();
+                trueCorners.release();
+            }
+            reference.release();
+        }
+        assertTrue(frames > 0);
+
+        Log.d(TAG, String.format("separate -- frame: %.2f ms, sharpness: %.1f",
+                separateTime / 1e6 / frames / REPEATS, separateSharpness / frames));
+        Log.d(TAG, String.format("fused -- frame: %.2f ms, sharpness: %.1f",
+                fusedTime / 1e6 / frames / REPEATS, fusedSharpness / frames));
+        Log.d(TAG, String.format("fused, step 2 -- frame: %.2f ms",
+                subsampledTime / 1e6 / frames / REPEATS));
+        Log.d(TAG, String.format("speedup: %.2fx, with step 2: %.2fx",
+                (double) separateTime / fusedTime, (double) separateTime / subsampledTime));
+    }
+
+    /**
+     * The viewfinder's region of the frame, like {@link ImageProcessor}'s
+     */
+    private static Rect getViewfinderRect(Mat frame) {
+        int x = (int) (frame.cols() * VIEW_FINDER_SCALE_W_PADDING / 2);
+        int y = (int) (frame.rows() * VIEW_FINDER_SCALE_W_PADDING / 2);
+        return new Rect(x, y, frame.cols() - 2 * x, frame.rows() - 2 * y);
+    }
+
+    /**
+     * The histogram the way the exposure check used to calculate it
+     */
+    private static float[] measureHistogram(Mat frame) {
+        Mat hist = new Mat();
+        Imgproc.calcHist(Arrays.asList(frame), new MatOfInt(0), new Mat(), hist,
+                new MatOfInt(LumaStats.LEVELS), new MatOfFloat(0f, 256f));
+        Core.divide(hist, new Scalar(frame.size().area()), hist);
+        float[] histogram = new float[LumaStats.LEVELS];
+        hist.get(0, 0, histogram);
+        hist.release();
+        return histogram;
+    }
+
+    /**
+     * The Laplacian variance the way the sharpness check used to calculate it
+     */
+    private static double measureSharpness(Mat viewFinder, int scaledCols, int scaledRows) {
+        Mat resized = new Mat();
+        Imgproc.resize(viewFinder, resized, new Size(scaledCols, scaledRows));
+        Mat laplacian = new Mat();
+        Imgproc.Laplacian(resized, laplacian, CvType.CV_64F);
+        MatOfDouble mean = new MatOfDouble();
+        MatOfDouble std = new MatOfDouble();
+        Core.meanStdDev(laplacian, mean, std);
+        double sharpness = Math.pow(std.get(0, 0)[0], 2);
+
+        viewFinder.release();
+        resized.release();
+        laplacian.release();
+        mean.release();
+        std.release();
+        return sharpness;
+    }
+}
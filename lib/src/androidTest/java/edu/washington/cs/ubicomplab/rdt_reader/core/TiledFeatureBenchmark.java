@@ -0,0 +1,202 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.content.Context;
+import android.graphics.BitmapFactory;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.opencv.android.OpenCVLoader;
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Rect;
+import org.opencv.core.Size;
+import org.opencv.features2d.Feature2D;
+import org.opencv.imgproc.Imgproc;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.GOOD_MATCH_COUNT;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.RANSAC;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.SIFT_CONTRAST_THRESHOLD;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.SIFT_RESIZE_FACTOR;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Compares single-threaded SIFT detection and matching with {@link TiledFeatureExtractor}
+ * on the bundled reference images, each pasted into synthetic camera frames with a known
+ * pose (see {@link FeatureBackendBenchmark})
+ * Note: the results are written to logcat under the "TiledFeatureBenchmark" tag, and the
+ * speedup depends on how many cores the device has
+ */
+@RunWith(AndroidJUnit4.class)
+public class TiledFeatureBenchmark {
+    private static final String TAG = "TiledFeatureBenchmark";
+
+    // How many of the serial path's detections the tiled path may miss
+    private static final double MIN_DETECTION_RATIO = 0.9;
+
+    @BeforeClass
+    public static void loadOpenCV() {
+        assertTrue(OpenCVLoader.initDebug());
+    }
+
+    @Test
+    public void benchmarkTiling() {
+        Context context = InstrumentationRegistry.getTargetContext();
+        FeatureBackend backend = FeatureBackend.SIFT;
+        Feature2D detector = backend.createDetector();
+        TiledFeatureExtractor tiles = new TiledFeatureExtractor();
+
+        long serialTime = 0;
+        long tiledTime = 0;
+        long serialKeypoints = 0;
+        long tiledKeypoints = 0;
+        int serialDetected = 0;
+        int tiledDetected = 0;
+        int frames = 0;
+
+        for (String name : FeatureBackendBenchmark.REFERENCE_IMAGES) {
+            int id = context.getResources().getIdentifier(name, "drawable",
+                    context.getPackageName());
+            if (id == 0)
+                continue;
+            Mat reference = FeatureBackendBenchmark.loadReference(BitmapFactory.decodeResource(
+                    context.getResources(), id));
+
+            // Extract and index the reference's features once, like RDT does
+            MatOfKeyPoint refKeypoints = new MatOfKeyPoint();
+            Mat refDescriptor = new Mat();
+            detector.detectAndCompute(reference, new Mat(), refKeypoints, refDescriptor);
+            FeatureIndex refIndex = FeatureIndex.build(backend, refDescriptor);
+
+            for (double[] pose : FeatureBackendBenchmark.POSES) {
+                MatOfPoint2f trueCorners = new MatOfPoint2f();
+                Mat frame = FeatureBackendBenchmark.renderFrame(reference, pose, trueCorners);
+                Mat scaledMat = new Mat();
+                Imgproc.resize(frame, scaledMat, new Size(), SIFT_RESIZE_FACTOR,
+                        SIFT_RESIZE_FACTOR, Imgproc.INTER_LINEAR);
+                assertTrue(tiles.shouldTile(new Rect(0, 0, scaledMat.cols(), scaledMat.rows())));
+
+                // Single-threaded
+                MatOfKeyPoint keypoints = new MatOfKeyPoint();
+                Mat descriptor = new Mat();
+                List<MatOfDMatch> matches = new ArrayList<>();
+                long startTime = System.nanoTime();
+                detector.detectAndCompute(scaledMat, new Mat(), keypoints, descriptor);
+                if (descriptor.rows() > 0)
+                    refIndex.knnMatch(descriptor, matches, 2);
+                serialTime += System.nanoTime() - startTime;
+                serialKeypoints += keypoints.rows();
+                if (isDetected(reference, refKeypoints, keypoints, matches, trueCorners))
+                    serialDetected++;
+                keypoints.release();
+                descriptor.release();
+
+                // Tiled
+                keypoints = new MatOfKeyPoint();
+                descriptor = new Mat();
+                matches = new ArrayList<>();
+                startTime = System.nanoTime();
+                tiles.detectAndCompute(backend, 0, SIFT_CONTRAST_THRESHOLD, scaledMat, keypoints,
+                        descriptor);
+                if (descriptor.rows() > 0)
+                    tiles.knnMatch(refIndex, descriptor, matches, 2);
+                tiledTime += System.nanoTime() - startTime;
+                tiledKeypoints += keypoints.rows();
+                if (isDetected(reference, refKeypoints, keypoints, matches, trueCorners))
+                    tiledDetected++;
+                keypoints.release();
+                descriptor.release();
+
+                frames++;
+                frame.release();
+                scaledMat.release();
+                trueCorners.release();
+            }
+            reference.release();
+            refKeypoints.release();
+            refDescriptor.release();
+        }
+        tiles.release();
+        assertTrue(frames > 0);
+
+        Log.d(TAG, String.format("cores: %d", Runtime.getRuntime().availableProcessors()));
+        Log.d(TAG, String.format("serial -- frame: %.1f ms, keypoints: %d, detected: %d/%d",
+                serialTime / 1e6 / frames, serialKeypoints / frames, serialDetected, frames));
+        Log.d(TAG, String.format("tiled -- frame: %.1f ms, keypoints: %d, detected: %d/%d",
+                tiledTime / 1e6 / frames, tiledKeypoints / frames, tiledDetected, frames));
+        Log.d(TAG, String.format("speedup: %.2fx", (double) serialTime / tiledTime));
+        assertTrue("Tiling lost detections",
+                tiledDetected >= MIN_DETECTION_RATIO * serialDetected);
+    }
+
+    /**
+     * Locates the reference image within the frame from the matches the same way as
+     * {@link ImageProcessor#detectRDT} and checks it against the true pose
+     * @return whether the RDT was found close enough to where it was pasted
+     */
+    private static boolean isDetected(Mat reference, MatOfKeyPoint refKeypoints,
+                                      MatOfKeyPoint keypoints, List<MatOfDMatch> matches,
+                                      MatOfPoint2f trueCorners) {
+        // Nearest neighbor distance ratio test
+        KeyPoint[] refArray = refKeypoints.toArray();
+        KeyPoint[] sceneArray = keypoints.toArray();
+        List<Point> objList = new ArrayList<>();
+        List<Point> sceneList = new ArrayList<>();
+        for (MatOfDMatch match : matches) {
+            DMatch[] dMatches = match.toArray();
+            if (dMatches.length >= 2 && dMatches[0].distance <= 0.80 * dMatches[1].distance) {
+                objList.add(refArray[dMatches[0].trainIdx].pt);
+                Point pt = sceneArray[dMatches[0].queryIdx].pt;
+                sceneList.add(new Point(pt.x / SIFT_RESIZE_FACTOR, pt.y / SIFT_RESIZE_FACTOR));
+            }
+            match.release();
+        }
+        if (objList.size() <= GOOD_MATCH_COUNT)
+            return false;
+
+        MatOfPoint2f objMat = new MatOfPoint2f();
+        MatOfPoint2f sceneMat = new MatOfPoint2f();
+        objMat.fromList(objList);
+        sceneMat.fromList(sceneList);
+        Mat H = Calib3d.findHomography(objMat, sceneMat, Calib3d.RANSAC,
+                RANSAC / SIFT_RESIZE_FACTOR);
+        boolean detected = false;
+        if (H.cols() >= 3 && H.rows() >= 3) {
+            MatOfPoint2f refCorners = new MatOfPoint2f(new Point(0, 0),
+                    new Point(reference.cols() - 1, 0),
+                    new Point(reference.cols() - 1, reference.rows() - 1),
+                    new Point(0, reference.rows() - 1));
+            MatOfPoint2f corners = new MatOfPoint2f();
+            Core.perspectiveTransform(refCorners, corners, H);
+            detected = FeatureBackendBenchmark.cornerError(corners, trueCorners) <
+                    FeatureBackendBenchmark.MAX_CORNER_ERROR;
+            refCorners.release();
+            corners.release();
+        }
+        H.release();
+        objMat.release();
+        sceneMat.release();
+        return detected;
+    }
+}
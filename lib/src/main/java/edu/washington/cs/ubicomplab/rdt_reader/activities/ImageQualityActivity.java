@@ -8,6 +8,7 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import edu.washington.cs.ubicomplab.rdt_reader.R;
+import edu.washington.cs.ubicomplab.rdt_reader.core.FrameSelector;
 import edu.washington.cs.ubicomplab.rdt_reader.core.RDTCaptureResult;
 import edu.washington.cs.ubicomplab.rdt_reader.core.RDTInterpretationResult;
 import edu.washington.cs.ubicomplab.rdt_reader.interfaces.ImageQualityViewListener;
@@ -98,6 +99,8 @@ public class ImageQualityActivity extends Activity implements ImageQualityViewLi
     /**
      * {@link ImageQualityViewListener} onRDTDetected()
      * Launches the {@link ImageResultActivity} if the candidate video frame is high quality
+     * Note: the interpretation is only available once the {@link FrameSelector} has picked
+     * the best frames, and rdtCaptureResult is then the highest-scoring one among them
      * @param rdtCaptureResult: the current {@link RDTCaptureResult}
      * @param rdtInterpretationResult: the current {@link RDTInterpretationResult}
      * @param timeTaken: the time it took for the RDT to be detected
@@ -121,10 +124,10 @@ public class ImageQualityActivity extends Activity implements ImageQualityViewLi
     public void useCapturedImage(RDTCaptureResult rdtCaptureResult, RDTInterpretationResult rdtInterpretationResult, long timeTaken) {
         final byte[] captureByteArray = ImageUtil.matToByteArray(rdtCaptureResult.resultMat);
         final byte[] windowByteArray = ImageUtil.matToByteArray(rdtInterpretationResult.resultMat);
-        moveToResultActivity(captureByteArray, windowByteArray, rdtInterpretationResult, timeTaken);
+        moveToResultActivity(rdtCaptureResult, captureByteArray, windowByteArray, rdtInterpretationResult, timeTaken);
     }
 
-    private void moveToResultActivity(final byte[] captureByteArray, final byte[] windowByteArray, final RDTInterpretationResult rdtInterpretationResult, final long timeTaken) {
+    private void moveToResultActivity(final RDTCaptureResult rdtCaptureResult, final byte[] captureByteArray, final byte[] windowByteArray, final RDTInterpretationResult rdtInterpretationResult, final long timeTaken) {
         runOnUiThread(new Runnable() {
             @Override
             public void run() {
@@ -140,6 +143,9 @@ public class ImageQualityActivity extends Activity implements ImageQualityViewLi
                 i.putExtra("bottomLineName", rdtInterpretationResult.bottomLineName);
                 i.putExtra("timeTaken", timeTaken);
                 i.putExtra("hasTooMuchBlood", rdtInterpretationResult.hasTooMuchBlood);
+                i.putExtra("sharpnessRatio", rdtCaptureResult.sharpnessRatio);
+                i.putExtra("maxWhite", rdtCaptureResult.maxWhite);
+                i.putExtra("clippingRatio", rdtCaptureResult.clippingRatio);
                 startActivity(i);
             }
         });
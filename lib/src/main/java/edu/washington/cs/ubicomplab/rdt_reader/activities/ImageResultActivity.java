@@ -8,6 +8,7 @@
 
 package edu.washington.cs.ubicomplab.rdt_reader.activities;
 
+import android.content.DialogInterface;
 import android.content.Intent;
 import android.content.res.Resources;
 import android.graphics.Bitmap;
@@ -15,6 +16,7 @@ import android.graphics.BitmapFactory;
 import android.net.Uri;
 import android.support.v7.app.AppCompatActivity;
 import android.os.Bundle;
+import android.support.v7.app.AlertDialog;
 import android.util.DisplayMetrics;
 import android.util.Log;
 import android.view.View;
@@ -33,6 +35,7 @@ import edu.washington.cs.ubicomplab.rdt_reader.R;
 import edu.washington.cs.ubicomplab.rdt_reader.fragments.SettingsDialogFragment;
 import edu.washington.cs.ubicomplab.rdt_reader.interfaces.SettingsDialogListener;
 import edu.washington.cs.ubicomplab.rdt_reader.core.Constants;
+import edu.washington.cs.ubicomplab.rdt_reader.core.ImageProcessor;
 
 import static java.text.DateFormat.getDateTimeInstance;
 
@@ -51,6 +54,11 @@ public class ImageResultActivity extends AppCompatActivity implements View.OnCli
     // Capture time variable
     long timeTaken = 0;
 
+    // Measurements of the captured frame, for calibrating the thresholds
+    double sharpnessRatio = 0;
+    int maxWhite = 0;
+    double clippingRatio = 0;
+
     /**
      * {@link android.app.Activity} onCreate()
      * @param savedInstanceState: the bundle object in case this is launched from an intent
@@ -141,6 +149,11 @@ public class ImageResultActivity extends AppCompatActivity implements View.OnCli
             }
         }
 
+        // Measurements of the captured frame
+        sharpnessRatio = intent.getDoubleExtra("sharpnessRatio", 0);
+        maxWhite = intent.getIntExtra("maxWhite", 0);
+        clippingRatio = intent.getDoubleExtra("clippingRatio", 0);
+
         // Buttons
         Button saveImageButton = findViewById(R.id.saveButton);
         saveImageButton.setOnClickListener(this);
@@ -207,13 +220,38 @@ public class ImageResultActivity extends AppCompatActivity implements View.OnCli
                 Log.w("TAG", "Error saving image file: " + e.getMessage());
             }
         } else if (view.getId() == R.id.doneButton) {
-            Intent data = new Intent();
-            data.putExtra("RDTCaptureByteArray", capturedByteArray);
-            setResult(RESULT_OK, data);
-            finish();
+            // Ask the user whether the reading is correct if the thresholds learn from it
+            if (!Constants.CALIBRATION_ENABLED) {
+                finishWithCapture();
+                return;
+            }
+            DialogInterface.OnClickListener listener = new DialogInterface.OnClickListener() {
+                @Override
+                public void onClick(DialogInterface dialog, int which) {
+                    ImageProcessor.confirmCapture(getApplicationContext(), sharpnessRatio,
+                            maxWhite, clippingRatio, which == DialogInterface.BUTTON_POSITIVE);
+                    finishWithCapture();
+                }
+            };
+            new AlertDialog.Builder(this)
+                    .setTitle(getString(R.string.confirm_result_title))
+                    .setMessage(getString(R.string.confirm_result_message))
+                    .setPositiveButton(getString(R.string.yes), listener)
+                    .setNegativeButton(getString(R.string.no), listener)
+                    .show();
         }
     }
 
+    /**
+     * Returns the captured image to the app and closes this activity
+     */
+    private void finishWithCapture() {
+        Intent data = new Intent();
+        data.putExtra("RDTCaptureByteArray", capturedByteArray);
+        setResult(RESULT_OK, data);
+        finish();
+    }
+
     /**
      * {@link SettingsDialogFragment} onClickPositiveButton()
      */
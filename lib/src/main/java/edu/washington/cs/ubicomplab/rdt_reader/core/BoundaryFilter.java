@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Scalar;
+import org.opencv.video.KalmanFilter;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Smooths the corners of the detected RDT across video frames with a constant-velocity
+ * Kalman filter, so the placement checks do not flip between passing and failing because of
+ * detection jitter, and predicts where the RDT will be in the next frame
+ * Note: the state holds the (x, y) position of the four corners followed by their velocities,
+ * and this class is not thread-safe
+ */
+class BoundaryFilter {
+    // Debugging tag
+    private static final String TAG = "BoundaryFilter";
+
+    private static final int MEASUREMENT_SIZE = 8;
+    private static final int STATE_SIZE = 2 * MEASUREMENT_SIZE;
+
+    private final KalmanFilter kalmanFilter;
+    private final Mat measurement = new Mat(MEASUREMENT_SIZE, 1, CvType.CV_32F);
+
+    // Bookkeeping for deciding when the state is no longer worth trusting
+    private boolean initialized = false;
+    private boolean predicted = false;
+    private int missedFrames = 0;
+    private long lastUpdateTime = 0;
+
+    /**
+     * Constructor
+     */
+    BoundaryFilter() {
+        kalmanFilter = new KalmanFilter(STATE_SIZE, MEASUREMENT_SIZE, 0, CvType.CV_32F);
+
+        // Each corner keeps moving at the same velocity from one frame to the next
+        Mat transition = Mat.eye(STATE_SIZE, STATE_SIZE, CvType.CV_32F);
+        for (int i = 0; i < MEASUREMENT_SIZE; i++)
+            transition.put(i, i + MEASUREMENT_SIZE, 1);
+        kalmanFilter.set_transitionMatrix(transition);
+
+        // Only the positions are measured
+        kalmanFilter.set_measurementMatrix(Mat.eye(MEASUREMENT_SIZE, STATE_SIZE, CvType.CV_32F));
+
+        // Noise levels (in pixels squared)
+        Mat processNoise = Mat.eye(STATE_SIZE, STATE_SIZE, CvType.CV_32F);
+        Core.multiply(processNoise, new Scalar(KALMAN_PROCESS_NOISE), processNoise);
+        kalmanFilter.set_processNoiseCov(processNoise);
+        Mat measurementNoise = Mat.eye(MEASUREMENT_SIZE, MEASUREMENT_SIZE, CvType.CV_32F);
+        Core.multiply(measurementNoise, new Scalar(KALMAN_MEASUREMENT_NOISE), measurementNoise);
+        kalmanFilter.set_measurementNoiseCov(measurementNoise);
+    }
+
+    /**
+     * Whether the filter currently has a trustworthy estimate of the RDT's position
+     * @return whether {@link #predict()} will return a boundary
+     */
+    boolean isInitialized() {
+        if (initialized && System.currentTimeMillis() - lastUpdateTime > TRACKING_MAX_FRAME_GAP)
+            reset();
+        return initialized;
+    }
+
+    /**
+     * Advances the filter to the next video frame
+     * @return the predicted corners of the bounding box around the RDT in the next frame,
+     * otherwise a blank MatOfPoint2f if there is no estimate yet
+     */
+    MatOfPoint2f predict() {
+        if (!isInitialized())
+            return new MatOfPoint2f();
+        predicted = true;
+        return toBoundary(kalmanFilter.predict());
+    }
+
+    /**
+     * Folds the boundary that was measured in the current video frame into the estimate
+     * @param boundary: the corners of the bounding box around the detected RDT, or a blank
+     *                MatOfPoint2f if it was not found
+     * @return the smoothed corners of the bounding box around the RDT if it was found,
+     * otherwise a blank MatOfPoint2f
+     */
+    MatOfPoint2f correct(MatOfPoint2f boundary) {
+        // Make sure the state has been moved to the current frame
+        if (isInitialized() && !predicted)
+            kalmanFilter.predict();
+        predicted = false;
+
+        // Nothing to smooth if the RDT was not found
+        if (boundary.rows() != 4) {
+            if (initialized && ++missedFrames > KALMAN_MAX_MISSED_FRAMES)
+                reset();
+            return new MatOfPoint2f();
+        }
+        Point[] corners = boundary.toArray();
+
+        // Start over if this is the first measurement or the RDT jumped somewhere else
+        if (!initialized || distanceFromEstimate(corners) > KALMAN_RESET_DISTANCE) {
+            initialize(corners);
+            return new MatOfPoint2f(corners);
+        }
+
+        // Otherwise blend the measurement with the prediction
+        for (int i = 0; i < corners.length; i++) {
+            measurement.put(2 * i, 0, corners[i].x);
+            measurement.put(2 * i + 1, 0, corners[i].y);
+        }
+        MatOfPoint2f filtered = toBoundary(kalmanFilter.correct(measurement));
+        missedFrames = 0;
+        lastUpdateTime = System.currentTimeMillis();
+        return filtered;
+    }
+
+    /**
+     * Forgets the current estimate
+     */
+    void reset() {
+        initialized = false;
+        predicted = false;
+        missedFrames = 0;
+    }
+
+    /**
+     * Sets the state to the given corners with zero velocity
+     * @param corners: the corners of the bounding box around the detected RDT
+     */
+    private void initialize(Point[] corners) {
+        Mat state = Mat.zeros(STATE_SIZE, 1, CvType.CV_32F);
+        for (int i = 0; i < corners.length; i++) {
+            state.put(2 * i, 0, corners[i].x);
+            state.put(2 * i + 1, 0, corners[i].y);
+        }
+        kalmanFilter.set_statePost(state);
+        Mat errorCov = Mat.eye(STATE_SIZE, STATE_SIZE, CvType.CV_32F);
+        Core.multiply(errorCov, new Scalar(KALMAN_MEASUREMENT_NOISE), errorCov);
+        kalmanFilter.set_errorCovPost(errorCov);
+
+        initialized = true;
+        missedFrames = 0;
+        lastUpdateTime = System.currentTimeMillis();
+        Log.d(TAG, "Initialized boundary estimate");
+    }
+
+    /**
+     * Measures how far the measured corners are from the current estimate
+     * @param corners: the corners of the bounding box around the detected RDT
+     * @return the mean distance between corresponding corners in pixels
+     */
+    private double distanceFromEstimate(Point[] corners) {
+        Mat state = kalmanFilter.get_statePre();
+        double distance = 0;
+        for (int i = 0; i < corners.length; i++) {
+            double dx = corners[i].x - state.get(2 * i, 0)[0];
+            double dy = corners[i].y - state.get(2 * i + 1, 0)[0];
+            distance += Math.sqrt(dx * dx + dy * dy);
+        }
+        return distance / corners.length;
+    }
+
+    /**
+     * Extracts the corner positions from a state vector
+     * @param state: the state vector
+     * @return the corners of the bounding box
+     */
+    private static MatOfPoint2f toBoundary(Mat state) {
+        float[] values = new float[MEASUREMENT_SIZE];
+        state.get(0, 0, values);
+        Point[] corners = new Point[MEASUREMENT_SIZE / 2];
+        for (int i = 0; i < corners.length; i++)
+            corners[i] = new Point(values[2 * i], values[2 * i + 1]);
+        return new MatOfPoint2f(corners);
+    }
+}
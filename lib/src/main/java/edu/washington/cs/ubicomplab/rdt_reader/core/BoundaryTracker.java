@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.calib3d.Calib3d;
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfByte;
+import org.opencv.core.MatOfFloat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.Size;
+import org.opencv.core.TermCriteria;
+import org.opencv.video.SparsePyrLKOpticalFlow;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+import static org.opencv.core.Core.perspectiveTransform;
+
+/**
+ * Follows a detected RDT from one video frame to the next with pyramidal Lucas-Kanade optical
+ * flow, so the expensive feature detection and matching in {@link ImageProcessor} only has to
+ * run every few frames or whenever the tracked points stop agreeing with each other
+ * Note: all of the coordinates are in the (downscaled) image that is handed to the tracker,
+ * and this class is not thread-safe
+ */
+class BoundaryTracker {
+    // Debugging tag
+    private static final String TAG = "BoundaryTracker";
+
+    private final SparsePyrLKOpticalFlow opticalFlow;
+
+    // The previous frame and what was found in it
+    private final Mat prevMat = new Mat();
+    private final MatOfPoint2f prevPoints = new MatOfPoint2f();
+    private final MatOfPoint2f prevCorners = new MatOfPoint2f();
+    private int initialPointCount = 0;
+
+    // Bookkeeping for deciding when a full detection is needed
+    private boolean tracking = false;
+    private int framesSinceDetection = 0;
+    private long lastFrameTime = 0;
+    private double confidence = 0.0;
+
+    /**
+     * Constructor
+     */
+    BoundaryTracker() {
+        opticalFlow = SparsePyrLKOpticalFlow.create(
+                new Size(TRACKING_WINDOW_SIZE, TRACKING_WINDOW_SIZE), TRACKING_PYRAMID_LEVELS,
+                new TermCriteria(TermCriteria.COUNT + TermCriteria.EPS, 30, 0.01),
+                0, 1e-4);
+    }
+
+    /**
+     * Whether the next frame has to go through full feature detection, either because
+     * nothing is being tracked or because the last detection is getting old
+     * @return whether {@link #track(Mat)} should be skipped
+     */
+    boolean needsDetection() {
+        if (!tracking)
+            return true;
+        if (framesSinceDetection >= TRACKING_REDETECT_INTERVAL)
+            return true;
+        return System.currentTimeMillis() - lastFrameTime > TRACKING_MAX_FRAME_GAP;
+    }
+
+    /**
+     * The fraction of the points from the last detection that still agree with the tracked
+     * boundary
+     * @return a value between 0 (lost) and 1 (every point is still being tracked)
+     */
+    double getConfidence() {
+        return tracking ? confidence : 0.0;
+    }
+
+    /**
+     * Starts tracking from a fresh feature-based detection
+     * @param inputMat: the video frame the RDT was detected in (in grayscale)
+     * @param corners: the corners of the bounding box around the detected RDT
+     * @param inlierPoints: the matched keypoints in the video frame that agreed with the
+     *                    homography, which are much easier to follow than the corners
+     */
+    void start(Mat inputMat, MatOfPoint2f corners, MatOfPoint2f inlierPoints) {
+        if (inlierPoints.rows() < TRACKING_MIN_POINTS) {
+            reset();
+            return;
+        }
+        inputMat.copyTo(prevMat);
+        corners.copyTo(prevCorners);
+        inlierPoints.copyTo(prevPoints);
+        initialPointCount = inlierPoints.rows();
+        framesSinceDetection = 0;
+        lastFrameTime = System.currentTimeMillis();
+        confidence = 1.0;
+        tracking = true;
+    }
+
+    /**
+     * Stops tracking so the next frame goes through full feature detection
+     */
+    void reset() {
+        tracking = false;
+        confidence = 0.0;
+        initialPointCount = 0;
+    }
+
+    /**
+     * Moves the tracked boundary into a new video frame
+     * @param inputMat: the new video frame (in grayscale, same scale as in {@link #start})
+     * @return the corners of the bounding box around the RDT in the new frame if it could be
+     * tracked confidently, otherwise a blank MatOfPoint2f (and tracking is stopped)
+     */
+    MatOfPoint2f track(Mat inputMat) {
+        MatOfPoint2f boundary = new MatOfPoint2f();
+        if (!tracking)
+            return boundary;
+
+        // Follow each point into the new frame
+        MatOfPoint2f nextPoints = new MatOfPoint2f();
+        MatOfByte status = new MatOfByte();
+        MatOfFloat err = new MatOfFloat();
+        opticalFlow.calc(prevMat, inputMat, prevPoints, nextPoints, status, err);
+
+        // Keep the points that were found again
+        Point[] prevArray = prevPoints.toArray();
+        Point[] nextArray = nextPoints.toArray();
+        byte[] statusArray = status.toArray();
+        List<Point> prevFound = new ArrayList<>();
+        List<Point> nextFound = new ArrayList<>();
+        for (int i = 0; i < statusArray.length; i++) {
+            if (statusArray[i] != 0) {
+                prevFound.add(prevArray[i]);
+                nextFound.add(nextArray[i]);
+            }
+        }
+
+        // Garbage collection
+        nextPoints.release();
+        status.release();
+        err.release();
+
+        if (nextFound.size() < TRACKING_MIN_POINTS) {
+            Log.d(TAG, String.format("Lost track: %d points left", nextFound.size()));
+            reset();
+            return boundary;
+        }
+
+        // Estimate how the RDT moved from the points that still move together
+        MatOfPoint2f prevMatched = new MatOfPoint2f();
+        MatOfPoint2f nextMatched = new MatOfPoint2f();
+        prevMatched.fromList(prevFound);
+        nextMatched.fromList(nextFound);
+        Mat inlierMask = new Mat();
+        Mat H = Calib3d.findHomography(prevMatched, nextMatched, Calib3d.RANSAC, RANSAC,
+                inlierMask, 2000, 0.995);
+
+        // Check that enough of the original points agree with the motion
+        int inlierCount = H.cols() >= 3 && H.rows() >= 3 ? Core.countNonZero(inlierMask) : 0;
+        confidence = (double) inlierCount / initialPointCount;
+        if (inlierCount < TRACKING_MIN_POINTS || confidence < TRACKING_MIN_CONFIDENCE) {
+            Log.d(TAG, String.format("Lost track: confidence %.2f", confidence));
+            H.release();
+            inlierMask.release();
+            prevMatched.release();
+            nextMatched.release();
+            reset();
+            return boundary;
+        }
+
+        // Move the corners along with the points
+        perspectiveTransform(prevCorners, boundary, H);
+
+        // Only keep following the points that agreed with the motion
+        byte[] inliers = new byte[inlierMask.rows()];
+        inlierMask.get(0, 0, inliers);
+        List<Point> nextInliers = new ArrayList<>();
+        for (int i = 0; i < inliers.length; i++) {
+            if (inliers[i] != 0)
+                nextInliers.add(nextFound.get(i));
+        }
+        prevPoints.fromList(nextInliers);
+        boundary.copyTo(prevCorners);
+        inputMat.copyTo(prevMat);
+        framesSinceDetection++;
+        lastFrameTime = System.currentTimeMillis();
+
+        // Garbage collection
+        H.release();
+        inlierMask.release();
+        prevMatched.release();
+        nextMatched.release();
+        return boundary;
+    }
+
+    /**
+     * Releases the native memory held by the tracker
+     */
+    void release() {
+        reset();
+        prevMat.release();
+        prevPoints.release();
+        prevCorners.release();
+    }
+}
@@ -12,6 +12,7 @@ import android.os.Environment;
 
 import org.opencv.core.Scalar;
 import org.opencv.core.Size;
+import org.opencv.video.Video;
 
 /**
  * A class for holding all of the general app configurations and algorithm-specific values
@@ -25,7 +26,9 @@ public final class Constants {
     // Default settings
     public static String LANGUAGE = "en";
     public static final String DEFAULT_RDT_NAME = "malaria-carestart";
+    public static final String AUTO_RDT_NAME = "auto";
     public static final String CONFIG_FILE_NAME = "config.json";
+    public static final String REFERENCE_CACHE_DIR = "rdt_reference";
     public static final String DEFAULT_TOP_LINE_NAME = "Top Line Name";
     public static final String DEFAULT_MIDDLE_LINE_NAME = "Middle Line Name";
     public static final String DEFAULT_BOTTOM_LINE_NAME = "Bottom Line Name";
@@ -45,12 +48,35 @@ public final class Constants {
     public static double UNDER_EXPOSURE_THRESHOLD = 120;
     public static double OVER_EXPOSURE_THRESHOLD = 255;
     public static double OVER_EXPOSURE_WHITE_COUNT = 0.2;
+    public static int LUMA_SAMPLE_STEP = 1;
 
     // RDT image quality thresholds
     public static double POSITION_THRESHOLD = 0.15;
     public static double SIZE_THRESHOLD = 0.15;
     public static int ANGLE_THRESHOLD = 10;
 
+    // Quality check chain (see QualityCheckChain)
+    public static boolean QUALITY_CHECK_SHORT_CIRCUIT = true;
+    public static int QUALITY_CHECK_REORDER_INTERVAL = 30;
+
+    // Per-device calibration of the exposure and sharpness thresholds (see ThresholdCalibrator),
+    // off unless the app asks its users to confirm the readings (see confirmCapture())
+    public static final String CALIBRATION_FILE_NAME = "rdt_calibration";
+    public static boolean CALIBRATION_ENABLED = false;
+    public static int CALIBRATION_MIN_SAMPLES = 30;
+    public static int CALIBRATION_MAX_SAMPLES = 500;
+    public static int CALIBRATION_MIN_READS = 5;
+    public static double CALIBRATION_QUANTILE = 0.1;
+    public static double CALIBRATION_HEADROOM = 0.25;
+    public static double CALIBRATION_ACCURACY_TOLERANCE = 0.05;
+    public static double CALIBRATION_SHARPNESS_STEP = 0.02;
+    public static double CALIBRATION_MAX_SHARPNESS_RELAXATION = 0.1;
+    public static double CALIBRATION_SHARPNESS_THRESHOLD_LIMIT = 0.95;
+    public static double CALIBRATION_UNDER_EXPOSURE_STEP = 5;
+    public static double CALIBRATION_MAX_UNDER_EXPOSURE_RELAXATION = 30;
+    public static double CALIBRATION_OVER_EXPOSURE_STEP = 0.02;
+    public static double CALIBRATION_MAX_OVER_EXPOSURE_RELAXATION = 0.1;
+
     // Result window image quality thresholds
     public static int GLARE_WHITE_VALUE = 235;
     public static double GLARE_WHITE_RATIO = 0.00;
@@ -64,16 +90,100 @@ public final class Constants {
 
     // SIFT feature template matching parameters
     public static double SIFT_RESIZE_FACTOR = 0.5;
+    public static double SIFT_CONTRAST_THRESHOLD = 0.04;
     public static int GOOD_MATCH_COUNT = 7;
     public static int RANSAC = 5;
+    public static HomographyEstimator HOMOGRAPHY_ESTIMATOR = HomographyEstimator.RANSAC;
+    public static int HOMOGRAPHY_MAX_ITERATIONS = 2000;
+    public static double HOMOGRAPHY_CONFIDENCE = 0.995;
+    public static int HOMOGRAPHY_MIN_INLIERS = 8;
+    public static double HOMOGRAPHY_MIN_AREA_RATIO = 0.01;
+    public static int HOMOGRAPHY_CONFIDENT_INLIERS = 40;
+    public static double HOMOGRAPHY_MAX_REPROJECTION_ERROR = 10;
+    // The lowest confidence a frame passes with, e.g., 20 inliers at a ratio of 0.4 with
+    // 2.5 pixels of reprojection error (tracked frames also scale it by the tracking confidence)
+    public static double HOMOGRAPHY_MIN_CONFIDENCE = 0.15;
+    public static boolean COARSE_TO_FINE_ENABLED = true;
+    public static double COARSE_RESIZE_FACTOR = 0.25;
+    public static double FINE_RESIZE_FACTOR = 1.0;
+    public static double FINE_SEARCH_MARGIN = 0.1;
+    public static boolean FEATURE_TILING_ENABLED = true;
+    public static int FEATURE_TILE_COLUMNS = 2;
+    public static int FEATURE_TILE_ROWS = 2;
+    public static int FEATURE_TILE_OVERLAP = 24;
+    public static int FEATURE_TILE_MIN_AREA = 256*256;
+    public static int FEATURE_TILE_THREADS = 4;
+    public static int FEATURE_SHARD_MIN_COUNT = 200;
+
+    // Detection latency budget parameters (each level of the arrays is an operating point,
+    // from the most thorough to the fastest)
+    public static boolean DETECTION_BUDGET_ENABLED = true;
+    public static double DETECTION_BUDGET_MS = 80;
+    public static double DETECTION_BUDGET_RELAX_RATIO = 0.6;
+    public static double DETECTION_BUDGET_SMOOTHING = 0.3;
+    public static int DETECTION_BUDGET_HOLD_FRAMES = 5;
+    public static int[] DETECTION_BUDGET_MAX_FEATURES = {0, 1500, 1000, 600, 400};
+    // Multiples of SIFT_CONTRAST_THRESHOLD
+    public static double[] DETECTION_BUDGET_CONTRAST_SCALES = {1.0, 1.0, 1.25, 1.5, 2.0};
+    public static double[] DETECTION_BUDGET_RESIZE_SCALES = {1.0, 1.0, 1.0, 0.85, 0.7};
+    public static int ORB_MAX_FEATURES = 1000;
+    public static int FLANN_KDTREE_TREES = 4;
+    public static int FLANN_LSH_TABLE_NUMBER = 6;
+    public static int FLANN_LSH_KEY_SIZE = 12;
+    public static int FLANN_LSH_MULTI_PROBE_LEVEL = 1;
+    public static int FLANN_CHECKS = 32;
+    public static int IDENTIFICATION_FRAME_COUNT = 2;
+    public static int IDENTIFICATION_MAX_MISSES = 15;
+
+    // Optical flow tracking parameters
+    public static boolean TRACKING_ENABLED = true;
+    public static int TRACKING_REDETECT_INTERVAL = 10;
+    public static long TRACKING_MAX_FRAME_GAP = 500;
+    public static int TRACKING_MIN_POINTS = 8;
+    public static double TRACKING_MIN_CONFIDENCE = 0.5;
+    public static int TRACKING_WINDOW_SIZE = 21;
+    public static int TRACKING_PYRAMID_LEVELS = 3;
+
+    // Boundary smoothing parameters
+    public static double KALMAN_PROCESS_NOISE = 1.0;
+    public static double KALMAN_MEASUREMENT_NOISE = 16.0;
+    public static int KALMAN_MAX_MISSED_FRAMES = 5;
+    public static double KALMAN_RESET_DISTANCE = 80;
+    public static double KALMAN_SEARCH_MARGIN = 0.25;
+
+    // Static scene parameters
+    public static boolean STATIC_SCENE_ENABLED = true;
+    public static int STATIC_SCENE_THUMBNAIL_SIZE = 32;
+    public static int STATIC_SCENE_HASH_THRESHOLD = 4;
+    public static int STATIC_SCENE_MAX_REUSE = 15;
 
     // Interpretation parameters
     public static double RESULT_WINDOW_ENHANCE_THRESHOLD = 2.5;
+    public static int RESULT_WINDOW_SEARCH_MARGIN = 50;
     public static int CLAHE_CLIP_LIMIT = 10;
     public static int CLAHE_WIDTH = 5;
+    public static boolean ECC_ALIGNMENT_ENABLED = true;
+    public static int ECC_ALIGNMENT_MARGIN = 20;
+    public static int ECC_MOTION_TYPE = Video.MOTION_AFFINE;
+    public static int ECC_MAX_ITERATIONS = 50;
+    public static double ECC_EPSILON = 0.0001;
+    public static double ECC_MIN_CORRELATION = 0.6;
 
     // Miscellaneous UX variables
     public static int CAPTURE_COUNT = 3;
+    public static long FUSION_MAX_FRAME_AGE = 1000;
+    public static FrameSelector.Mode FRAME_SELECTION_MODE = FrameSelector.Mode.BEST_OF_N;
+    public static int FRAME_SELECTION_COUNT = 5;
+
+    // The camera's image buffers, of which ImageReader.acquireLatestImage() needs two free,
+    // so the pipeline only keeps the rest open at once (newer frames are dropped until then)
+    public static int CAMERA_MAX_IMAGES = 5;
+    public static int PIPELINE_MAX_OPEN_FRAMES = 3;
+    public static long FRAME_SELECTION_WINDOW = 1500;
+    public static double SELECTION_SHARPNESS_WEIGHT = 1.0;
+    public static double SELECTION_EXPOSURE_WEIGHT = 1.0;
+    public static double SELECTION_CENTERING_WEIGHT = 1.0;
+    public static double SELECTION_GLARE_WEIGHT = 1.0;
     public static int MOVE_CLOSER_COUNT = 5;
     public static double CROP_RATIO = 0.75;
 
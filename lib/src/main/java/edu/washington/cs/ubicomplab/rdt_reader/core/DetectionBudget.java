@@ -0,0 +1,118 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.features2d.Feature2D;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Keeps feature detection within {@link Constants#DETECTION_BUDGET_MS} per frame on the
+ * current device by watching how long each detection takes and stepping between operating
+ * points, each of which caps the number of keypoints, raises the contrast threshold, and/or
+ * shrinks the frames that the detector sees (see the DETECTION_BUDGET_* arrays)
+ * Note: the latency is smoothed and every step is held for
+ * {@link Constants#DETECTION_BUDGET_HOLD_FRAMES} detections, so one slow frame does not
+ * make the controller oscillate; this class is not thread-safe
+ */
+class DetectionBudget {
+    // Debugging tag
+    private static final String TAG = "DetectionBudget";
+
+    private int level = 0;
+    private double smoothedTime = -1;
+    private double lastTime = 0;
+    private int heldFrames = 0;
+
+    // The detector for the current operating point
+    private FeatureBackend backend = null;
+    private int detectorLevel = -1;
+    private Feature2D detector = null;
+
+    /**
+     * The most keypoints the detector keeps at the current operating point
+     * @return the cap on the number of keypoints, or 0 for no cap
+     */
+    int getMaxFeatures() {
+        return DETECTION_BUDGET_MAX_FEATURES[level];
+    }
+
+    /**
+     * The lowest contrast of a keypoint at the current operating point
+     * @return the contrast threshold for SIFT, a multiple of
+     * {@link Constants#SIFT_CONTRAST_THRESHOLD}
+     */
+    double getContrastThreshold() {
+        return SIFT_CONTRAST_THRESHOLD * DETECTION_BUDGET_CONTRAST_SCALES[level];
+    }
+
+    /**
+     * How much to shrink the frames that the detector sees at the current operating point
+     * @return the factor to multiply the detection resize factors by
+     */
+    double getResizeScale() {
+        return DETECTION_BUDGET_RESIZE_SCALES[level];
+    }
+
+    /**
+     * Returns the detector for the current operating point
+     * @param backend: the {@link FeatureBackend} of the reference RDT
+     * @return a detector that is only recreated when the operating point or backend changes
+     */
+    Feature2D getDetector(FeatureBackend backend) {
+        if (detector == null || this.backend != backend || detectorLevel != level) {
+            detector = backend.createDetector(getMaxFeatures(), getContrastThreshold());
+            this.backend = backend;
+            detectorLevel = level;
+        }
+        return detector;
+    }
+
+    /**
+     * Records how long a full detection took and moves to a faster operating point if
+     * detection is over budget, or to a more thorough one if there is plenty of headroom
+     * @param time: the detection time (in milliseconds)
+     */
+    void update(double time) {
+        lastTime = time;
+        smoothedTime = smoothedTime < 0 ? time :
+                DETECTION_BUDGET_SMOOTHING * time + (1 - DETECTION_BUDGET_SMOOTHING) * smoothedTime;
+        if (++heldFrames < DETECTION_BUDGET_HOLD_FRAMES)
+            return;
+
+        int lastLevel = DETECTION_BUDGET_MAX_FEATURES.length - 1;
+        if (smoothedTime > DETECTION_BUDGET_MS && level < lastLevel) {
+            level++;
+        } else if (smoothedTime < DETECTION_BUDGET_MS * DETECTION_BUDGET_RELAX_RATIO &&
+                level > 0) {
+            level--;
+        } else {
+            return;
+        }
+        heldFrames = 0;
+        Log.d(TAG, String.format("Detection time: %.0f ms, operating point: %d " +
+                        "(features: %d, contrast: %.2f, resize: %.2f)",
+                smoothedTime, level, getMaxFeatures(), getContrastThreshold(),
+                getResizeScale()));
+    }
+
+    /**
+     * Records the current operating point in a capture result
+     * @param captureResult: the result of {@link ImageProcessor#assessRDT}
+     */
+    void copyTo(RDTCaptureResult captureResult) {
+        captureResult.detectionLevel = level;
+        captureResult.detectionTime = lastTime;
+        captureResult.detectionMaxFeatures = getMaxFeatures();
+        captureResult.detectionContrastThreshold = getContrastThreshold();
+        captureResult.detectionResizeScale = getResizeScale();
+    }
+}
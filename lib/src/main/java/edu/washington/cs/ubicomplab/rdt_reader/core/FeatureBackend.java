@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.features2d.Feature2D;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.ORB_MAX_FEATURES;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.SIFT_CONTRAST_THRESHOLD;
+
+/**
+ * An Enumeration object for specifying the feature detector and matcher used to locate
+ * the RDT within the candidate video frame (see FEATURE_BACKEND in config.json); the
+ * descriptors are matched through a {@link FeatureIndex}
+ * SIFT: floating-point descriptors, most robust but also the slowest (default)
+ * ORB: binary descriptors, the fastest
+ * AKAZE: binary descriptors, close to SIFT in robustness
+ * BRISK: binary descriptors
+ */
+public enum FeatureBackend {
+    SIFT, ORB, AKAZE, BRISK;
+
+    // Debugging tag
+    private static final String TAG = "FeatureBackend";
+
+    /**
+     * Whether the descriptors are bit strings that are compared with the Hamming distance
+     * @return whether the backend uses binary descriptors
+     */
+    public boolean isBinary() {
+        return this != SIFT;
+    }
+
+    /**
+     * Creates the feature detector and descriptor extractor
+     * @return a new {@link Feature2D} for this backend
+     */
+    public Feature2D createDetector() {
+        return createDetector(0, SIFT_CONTRAST_THRESHOLD);
+    }
+
+    /**
+     * Creates the feature detector and descriptor extractor with a cap on the number of
+     * keypoints, e.g., to keep detection within a latency budget (see {@link DetectionBudget})
+     * @param maxFeatures: the most keypoints to keep (SIFT and ORB only), or 0 for the default
+     * @param contrastThreshold: the lowest contrast of a keypoint (SIFT only)
+     * @return a new {@link Feature2D} for this backend
+     */
+    public Feature2D createDetector(int maxFeatures, double contrastThreshold) {
+        switch (this) {
+            case ORB:
+                return org.opencv.features2d.ORB.create(
+                        maxFeatures > 0 ? maxFeatures : ORB_MAX_FEATURES, 1.2f, 8, 31, 0, 2,
+                        org.opencv.features2d.ORB.HARRIS_SCORE, 31, 20);
+            case AKAZE:
+                return org.opencv.features2d.AKAZE.create();
+            case BRISK:
+                return org.opencv.features2d.BRISK.create();
+            default:
+                return org.opencv.xfeatures2d.SIFT.create(maxFeatures, 3, contrastThreshold,
+                        10, 1.6);
+        }
+    }
+
+    /**
+     * Looks up the backend by name, e.g., from config.json
+     * @param name: the name of the backend (case-insensitive), or null
+     * @return the backend with that name, otherwise {@link #SIFT}
+     */
+    public static FeatureBackend fromName(String name) {
+        if (name == null || name.isEmpty())
+            return SIFT;
+        try {
+            return valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException e) {
+            Log.d(TAG, "Unknown feature backend: " + name + ", using SIFT");
+            return SIFT;
+        }
+    }
+}
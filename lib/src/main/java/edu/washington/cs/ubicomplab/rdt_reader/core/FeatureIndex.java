@@ -0,0 +1,180 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.FlannBasedMatcher;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * An approximate nearest-neighbor index (FLANN) over the reference RDT's descriptors, which is
+ * built once when the RDT is loaded so that matching a video frame does not have to compare
+ * every one of its descriptors against every reference descriptor
+ * Note: floating-point descriptors (SIFT) use randomized KD-trees and binary descriptors
+ * (ORB, AKAZE, BRISK) use locality-sensitive hashing
+ */
+public class FeatureIndex {
+    // Debugging tag
+    private static final String TAG = "FeatureIndex";
+
+    // FLANN's parameter types and algorithms (see cvflann::FlannIndexType and flann_algorithm_t)
+    private static final int FLANN_TYPE_INT = 4;
+    private static final int FLANN_TYPE_FLOAT = 5;
+    private static final int FLANN_TYPE_BOOL = 8;
+    private static final int FLANN_TYPE_ALGORITHM = 9;
+    private static final int FLANN_INDEX_KDTREE = 1;
+    private static final int FLANN_INDEX_LSH = 6;
+
+    private final FlannBasedMatcher matcher;
+    private final FeatureBackend backend;
+    private final List<Mat> refDescriptors;
+    private final int size;
+
+    /**
+     * Constructor
+     * @param matcher: the matcher with its index and search parameters already set
+     * @param backend: the {@link FeatureBackend} that produced the descriptors
+     * @param refDescriptors: the descriptors of each reference RDT image
+     */
+    private FeatureIndex(FlannBasedMatcher matcher, FeatureBackend backend,
+                         List<Mat> refDescriptors) {
+        this.matcher = matcher;
+        this.backend = backend;
+        this.refDescriptors = refDescriptors;
+        int count = 0;
+        for (Mat refDescriptor : refDescriptors)
+            count += refDescriptor.rows();
+        this.size = count;
+        if (size > 0) {
+            long startTime = System.currentTimeMillis();
+            matcher.add(refDescriptors);
+            matcher.train();
+            Log.d(TAG, String.format("Indexed %d descriptors in %d ms", size,
+                    System.currentTimeMillis() - startTime));
+        }
+    }
+
+    /**
+     * Builds the index that suits the given feature backend
+     * @param backend: the {@link FeatureBackend} that produced the descriptors
+     * @param refDescriptor: the descriptors of the reference RDT image
+     * @return the index over refDescriptor
+     */
+    public static FeatureIndex build(FeatureBackend backend, Mat refDescriptor) {
+        return build(backend, Collections.singletonList(refDescriptor));
+    }
+
+    /**
+     * Builds a single index over several reference RDT images, e.g., for telling them apart
+     * (see {@link RDTIdentifier})
+     * @param backend: the {@link FeatureBackend} that produced all of the descriptors
+     * @param refDescriptors: the descriptors of each reference RDT image
+     * @return the index over refDescriptors, where the imgIdx of each match is the position
+     * of the reference RDT image within refDescriptors
+     */
+    public static FeatureIndex build(FeatureBackend backend, List<Mat> refDescriptors) {
+        FlannBasedMatcher matcher = FlannBasedMatcher.create();
+        File paramsFile = null;
+        try {
+            // The Java bindings can only configure FLANN through a parameter file
+            paramsFile = File.createTempFile("flann", ".yml");
+            writeParams(paramsFile, backend.isBinary());
+            matcher.read(paramsFile.getAbsolutePath());
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (paramsFile != null)
+                paramsFile.delete();
+        }
+        return new FeatureIndex(matcher, backend, refDescriptors);
+    }
+
+    /**
+     * Builds another index over the same reference descriptors, e.g., so that several threads
+     * can search at the same time without sharing FLANN's internal state
+     * @return a new index that gives the same matches as this one
+     */
+    public FeatureIndex copy() {
+        return build(backend, refDescriptors);
+    }
+
+    /**
+     * Whether there is anything to match against
+     * @return whether the reference RDT image had no descriptors
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Finds the closest reference descriptors for each descriptor in a video frame
+     * @param queryDescriptors: the descriptors of the candidate video frame
+     * @param matches: receives the k nearest reference descriptors for each query descriptor,
+     *               where queryIdx is the frame's keypoint, trainIdx the reference's, and
+     *               imgIdx the reference image's
+     * @param k: the number of neighbors to find
+     */
+    public void knnMatch(Mat queryDescriptors, List<MatOfDMatch> matches, int k) {
+        matcher.knnMatch(queryDescriptors, matches, k);
+    }
+
+    /**
+     * Writes FLANN's parameters in the format that FlannBasedMatcher::read() expects
+     * @param file: the file to write
+     * @param binary: whether the descriptors are binary (LSH) or floating-point (KD-tree)
+     * @throws IOException if the file cannot be written
+     */
+    private static void writeParams(File file, boolean binary) throws IOException {
+        StringBuilder yaml = new StringBuilder("%YAML:1.0\n---\nindexParams:\n");
+        if (binary) {
+            appendParam(yaml, "algorithm", FLANN_TYPE_ALGORITHM, FLANN_INDEX_LSH);
+            appendParam(yaml, "table_number", FLANN_TYPE_INT, FLANN_LSH_TABLE_NUMBER);
+            appendParam(yaml, "key_size", FLANN_TYPE_INT, FLANN_LSH_KEY_SIZE);
+            appendParam(yaml, "multi_probe_level", FLANN_TYPE_INT, FLANN_LSH_MULTI_PROBE_LEVEL);
+        } else {
+            appendParam(yaml, "algorithm", FLANN_TYPE_ALGORITHM, FLANN_INDEX_KDTREE);
+            appendParam(yaml, "trees", FLANN_TYPE_INT, FLANN_KDTREE_TREES);
+        }
+        yaml.append("searchParams:\n");
+        appendParam(yaml, "checks", FLANN_TYPE_INT, FLANN_CHECKS);
+        appendParam(yaml, "eps", FLANN_TYPE_FLOAT, 0);
+        appendParam(yaml, "sorted", FLANN_TYPE_BOOL, 1);
+
+        FileWriter writer = new FileWriter(file);
+        try {
+            writer.write(yaml.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Appends a single FLANN parameter to a parameter file
+     * @param yaml: the contents of the parameter file so far
+     * @param name: the name of the parameter
+     * @param type: the type of the parameter
+     * @param value: the value of the parameter
+     */
+    private static void appendParam(StringBuilder yaml, String name, int type, int value) {
+        yaml.append("   -\n")
+                .append("      name: ").append(name).append('\n')
+                .append("      type: ").append(type).append('\n')
+                .append("      value: ").append(value).append('\n');
+    }
+}
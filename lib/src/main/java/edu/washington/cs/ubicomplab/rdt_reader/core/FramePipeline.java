@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.media.Image;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.washington.cs.ubicomplab.rdt_reader.utils.FrameAnalysisExecutor;
+import edu.washington.cs.ubicomplab.rdt_reader.utils.YuvFrame;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.FRAME_SELECTION_MODE;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.PIPELINE_MAX_OPEN_FRAMES;
+
+/**
+ * Splits the per-frame work of {@link ImageProcessor} into three stages that each run on
+ * their own worker, so a new frame can be gated while an older one is being located and
+ * an even older one is being interpreted:
+ *   1. GATE: exposure and sharpness of the whole frame
+ *   2. DETECT: feature matching, homography, placement, and glare
+ *   3. INTERPRET: result window extraction and line detection, fusing the
+ *      {@link Constants#CAPTURE_COUNT} frames that {@link FrameSelector} picks among the
+ *      ones that passed all of the quality checks
+ * Every hand-off is a single-slot latest-frame mailbox ({@link FrameAnalysisExecutor}), so a
+ * slow stage drops stale frames instead of letting them pile up
+ * Note: the camera image stays open until the DETECT stage is done with it, and at most
+ * {@link Constants#PIPELINE_MAX_OPEN_FRAMES} are open at once so the camera never runs out of
+ * buffers; the INTERPRET stage copies the cropped RGBA Mat into the selector's reusable slots,
+ * and interprets them with the RDT they were captured with (see {@link RDTCaptureResult#rdt})
+ */
+public class FramePipeline {
+    private static final String TAG = "FramePipeline";
+
+    /**
+     * Interface for receiving the outcome of each frame
+     * Note: the methods are called from the pipeline's worker threads, one call at a time
+     */
+    public interface Listener {
+        /**
+         * Method that is called as soon as the quality checks for a frame are known
+         * @param captureResult: the quality checks for the frame
+         */
+        void onFrameAssessed(RDTCaptureResult captureResult);
+
+        /**
+         * Method that is called once the pipeline is done with a frame, i.e., it either failed
+         * one of the quality checks, it is waiting to be compared with later frames, or a set
+         * of frames has been picked and interpreted
+         * Note: the Mats in both results must not be used once this method returns
+         * @param captureResult: the quality checks for the frame, or for the highest-scoring
+         *                     frame that was interpreted
+         * @param interpretationResult: the interpretation of the frames that were picked if
+         *                              enough frames passed all of the quality checks,
+         *                              null otherwise
+         * @return whether more frames should be processed
+         */
+        boolean onFrameProcessed(RDTCaptureResult captureResult,
+                                 RDTInterpretationResult interpretationResult);
+    }
+
+    /**
+     * The state of a single frame as it moves through the stages
+     */
+    private static final class FrameJob {
+        private final ImageProcessor processor;
+        private YuvFrame frame;
+        private final AtomicInteger openFrames;
+        private final boolean flashEnabled;
+        private RDTCaptureResult captureResult;
+
+        private FrameJob(ImageProcessor processor, YuvFrame frame, AtomicInteger openFrames,
+                         boolean flashEnabled) {
+            this.processor = processor;
+            this.frame = frame;
+            this.openFrames = openFrames;
+            this.flashEnabled = flashEnabled;
+        }
+
+        /**
+         * Closes the camera image (if still open) and releases the cropped RDT (if any)
+         */
+        private void release() {
+            releaseFrame();
+            if (captureResult != null && captureResult.resultMat != null)
+                captureResult.resultMat.release();
+        }
+
+        /**
+         * Closes the camera image once no later stage needs the raw frame
+         */
+        private void releaseFrame() {
+            if (frame != null) {
+                frame.release();
+                frame = null;
+                openFrames.decrementAndGet();
+            }
+        }
+    }
+
+    private final Listener listener;
+    private final Object listenerLock = new Object();
+
+    // The number of camera images that are still open in one of the stages
+    private final AtomicInteger openFrames = new AtomicInteger();
+    private int framesRefused = 0;
+
+    private final FrameAnalysisExecutor<FrameJob> gateStage;
+    private final FrameAnalysisExecutor<FrameJob> detectStage;
+    private final FrameAnalysisExecutor<FrameJob> interpretStage;
+
+    // The frames that passed all of the quality checks (only used by the INTERPRET stage)
+    private final FrameSelector frameSelector = new FrameSelector(FRAME_SELECTION_MODE);
+
+    /**
+     * Constructor
+     * @param listener: the {@link Listener} that receives the outcome of each frame
+     */
+    public FramePipeline(Listener listener) {
+        this.listener = listener;
+
+        // Start the workers back to front so every stage has somewhere to hand frames to
+        interpretStage = new FrameAnalysisExecutor<>("FramePipeline-Interpret", mInterpreter);
+        detectStage = new FrameAnalysisExecutor<>("FramePipeline-Detect", mDetector);
+        gateStage = new FrameAnalysisExecutor<>("FramePipeline-Gate", mGate);
+    }
+
+    /**
+     * Hands a new camera frame to the pipeline, which takes ownership of it
+     * Note: the frame is closed right away if too many are still open
+     * (see {@link Constants#PIPELINE_MAX_OPEN_FRAMES})
+     * @param processor: the {@link ImageProcessor} that does the actual work
+     * @param image: the camera frame (in YUV_420_888)
+     * @param flashEnabled: whether the camera's flash was enabled for this frame
+     */
+    public void submit(ImageProcessor processor, Image image, boolean flashEnabled) {
+        if (openFrames.get() >= PIPELINE_MAX_OPEN_FRAMES) {
+            image.close();
+            framesRefused++;
+            return;
+        }
+        openFrames.incrementAndGet();
+        gateStage.submit(new FrameJob(processor, YuvFrame.fromImage(image), openFrames,
+                flashEnabled));
+    }
+
+    /**
+     * Stops accepting frames and drops every frame that is waiting between stages;
+     * frames that are currently being processed are allowed to finish
+     */
+    public void cancel() {
+        gateStage.cancel();
+        detectStage.cancel();
+        interpretStage.cancel();
+    }
+
+    /**
+     * Starts accepting frames again after {@link #cancel()}
+     */
+    public void resume() {
+        interpretStage.resume();
+        detectStage.resume();
+        gateStage.resume();
+    }
+
+    /**
+     * Stops all of the workers, waiting for the frames that are currently being processed
+     */
+    public void shutdown() {
+        // Stop front to back so no stage hands a frame to a worker that is already gone
+        gateStage.shutdown();
+        detectStage.shutdown();
+        interpretStage.shutdown();
+        frameSelector.release();
+        Log.d(TAG, String.format("Refused while too many frames were open: %d",
+                framesRefused));
+        Log.d(TAG, String.format("Gate received: %d, dropped: %d, analyzed: %d",
+                gateStage.getFramesReceived(), gateStage.getFramesDropped(),
+                gateStage.getFramesAnalyzed()));
+        Log.d(TAG, String.format("Detect received: %d, dropped: %d, analyzed: %d",
+                detectStage.getFramesReceived(), detectStage.getFramesDropped(),
+                detectStage.getFramesAnalyzed()));
+        Log.d(TAG, String.format("Interpret received: %d, dropped: %d, analyzed: %d",
+                interpretStage.getFramesReceived(), interpretStage.getFramesDropped(),
+                interpretStage.getFramesAnalyzed()));
+    }
+
+    /**
+     * Reports a frame that is already known to the listener
+     * @param captureResult: the quality checks for the frame
+     */
+    private void reportAssessed(RDTCaptureResult captureResult) {
+        synchronized (listenerLock) {
+            listener.onFrameAssessed(captureResult);
+        }
+    }
+
+    /**
+     * Reports a finished frame to the listener and cancels the pipeline if it is done
+     * @param captureResult: the quality checks for the frame
+     * @param interpretationResult: the interpretation of the frame (if any)
+     * @return whether more frames should be processed
+     */
+    private boolean reportProcessed(RDTCaptureResult captureResult,
+                                    RDTInterpretationResult interpretationResult) {
+        boolean keepGoing;
+        synchronized (listenerLock) {
+            keepGoing = listener.onFrameProcessed(captureResult, interpretationResult);
+        }
+        if (!keepGoing)
+            cancel();
+        return keepGoing;
+    }
+
+    /**
+     * Stage 1: rejects frames that are too dark, too bright, or too blurry
+     */
+    private final FrameAnalysisExecutor.Analyzer<FrameJob> mGate
+            = new FrameAnalysisExecutor.Analyzer<FrameJob>() {
+        @Override
+        public boolean analyze(FrameJob job) {
+            job.captureResult = job.processor.assessFrameQuality(job.frame, job.flashEnabled);
+            if (ImageProcessor.passedFrameQuality(job.captureResult)) {
+                detectStage.submit(job);
+                return true;
+            }
+
+            reportAssessed(job.captureResult);
+            boolean keepGoing = reportProcessed(job.captureResult, null);
+            job.release();
+            return keepGoing;
+        }
+
+        @Override
+        public void discard(FrameJob job) {
+            job.release();
+        }
+    };
+
+    /**
+     * Stage 2: locates the RDT and checks its placement and glare
+     */
+    private final FrameAnalysisExecutor.Analyzer<FrameJob> mDetector
+            = new FrameAnalysisExecutor.Analyzer<FrameJob>() {
+        @Override
+        public boolean analyze(FrameJob job) {
+            job.captureResult = job.processor.assessRDT(job.frame.luma(), job.frame,
+                    job.captureResult);
+            reportAssessed(job.captureResult);
+
+            // The cropped RDT keeps its own reference to the RGBA data,
+            // so the camera image can go back to the reader right away
+            job.releaseFrame();
+            if (job.captureResult.allChecksPassed) {
+                interpretStage.submit(job);
+                return true;
+            }
+
+            boolean keepGoing = reportProcessed(job.captureResult, null);
+            job.release();
+            return keepGoing;
+        }
+
+        @Override
+        public void discard(FrameJob job) {
+            job.release();
+        }
+    };
+
+    /**
+     * Stage 3: reads the test result from the frames that passed all of the quality checks
+     */
+    private final FrameAnalysisExecutor.Analyzer<FrameJob> mInterpreter
+            = new FrameAnalysisExecutor.Analyzer<FrameJob>() {
+        @Override
+        public boolean analyze(FrameJob job) {
+            // Wait until there are enough frames to pick from
+            if (!frameSelector.offer(job.captureResult)) {
+                boolean keepGoing = reportProcessed(job.captureResult, null);
+                job.release();
+                return keepGoing;
+            }
+            job.release();
+
+            // Interpret the fused result window of the best frames
+            // (with the RDT they were captured with, which they all share)
+            List<RDTCaptureResult> selected = frameSelector.select();
+            List<Mat> inputMats = new ArrayList<>();
+            List<MatOfPoint2f> boundaries = new ArrayList<>();
+            for (RDTCaptureResult captureResult : selected) {
+                inputMats.add(captureResult.resultMat);
+                boundaries.add(captureResult.boundary);
+            }
+            RDTCaptureResult best = FrameSelector.getBest(selected);
+            RDTInterpretationResult interpretationResult = job.processor.interpretRDT(
+                    best.rdt, inputMats, boundaries);
+            boolean keepGoing = reportProcessed(best, interpretationResult);
+
+            // Garbage collection
+            if (interpretationResult != null && interpretationResult.resultMat != null)
+                interpretationResult.resultMat.release();
+            return keepGoing;
+        }
+
+        @Override
+        public void discard(FrameJob job) {
+            job.release();
+        }
+    };
+}
@@ -0,0 +1,235 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Holds on to the most recent candidate video frames that passed all of the quality checks
+ * and picks the best ones for interpretation, instead of using whichever frames passed first
+ * Note: the candidates are copied into a fixed number of slots whose Mats are reused from one
+ * frame to the next, so the memory held by the selector does not grow with the frame rate,
+ * and this class is not thread-safe
+ */
+public class FrameSelector {
+    // Debugging tag
+    private static final String TAG = "FrameSelector";
+
+    /**
+     * An Enumeration object for specifying how candidate video frames are picked
+     * DIRECT: the most recent {@link Constants#CAPTURE_COUNT} frames, as soon as there are enough
+     * BEST_OF_N: the {@link Constants#CAPTURE_COUNT} highest-scoring frames among up to
+     * {@link Constants#FRAME_SELECTION_COUNT} frames within
+     * {@link Constants#FRAME_SELECTION_WINDOW} milliseconds
+     */
+    public enum Mode {
+        DIRECT, BEST_OF_N
+    }
+
+    /**
+     * A reusable copy of a candidate video frame
+     */
+    private static final class Candidate {
+        private final Mat resultMat = new Mat();
+        private final MatOfPoint2f boundary = new MatOfPoint2f();
+        private RDTCaptureResult captureResult;
+        private long timestamp;
+    }
+
+    private final Mode mode;
+    private final int capacity;
+    private final long window;
+
+    // The candidates oldest first, and the slots that are not in use
+    private final ArrayDeque<Candidate> candidates = new ArrayDeque<>();
+    private final ArrayDeque<Candidate> freeSlots = new ArrayDeque<>();
+    private long windowStart = 0;
+
+    /**
+     * Orders candidates from the highest score to the lowest
+     */
+    private static final Comparator<Candidate> BY_SCORE = new Comparator<Candidate>() {
+        @Override
+        public int compare(Candidate a, Candidate b) {
+            return Double.compare(b.captureResult.score, a.captureResult.score);
+        }
+    };
+
+    /**
+     * Constructor
+     * @param mode: how the candidate video frames are picked
+     */
+    public FrameSelector(Mode mode) {
+        this.mode = mode;
+        if (mode == Mode.DIRECT) {
+            capacity = CAPTURE_COUNT;
+            window = FUSION_MAX_FRAME_AGE;
+        } else {
+            capacity = Math.max(FRAME_SELECTION_COUNT, CAPTURE_COUNT);
+            window = FRAME_SELECTION_WINDOW;
+        }
+        for (int i = 0; i < capacity; i++)
+            freeSlots.push(new Candidate());
+    }
+
+    /**
+     * Copies a candidate video frame that passed all of the quality checks into the selector,
+     * replacing the oldest one if all of the slots are in use
+     * Note: the caller keeps ownership of the Mats in captureResult
+     * @param captureResult: the result of {@link ImageProcessor#assessRDT}
+     * @return whether enough candidates have been collected for {@link #select()}
+     */
+    public boolean offer(RDTCaptureResult captureResult) {
+        long now = System.currentTimeMillis();
+
+        // Forget the candidates that are too old to be worth fusing,
+        // or all of them if they show a different RDT
+        while (!candidates.isEmpty() && now - candidates.peekFirst().timestamp > window)
+            freeSlots.push(candidates.pollFirst());
+        if (!candidates.isEmpty() &&
+                !TextUtils.equals(candidates.peekLast().captureResult.rdtName,
+                        captureResult.rdtName))
+            clear();
+        if (candidates.isEmpty())
+            windowStart = now;
+
+        // Copy the frame into a free slot, or the oldest one if there are none
+        Candidate candidate = freeSlots.isEmpty() ? candidates.pollFirst() : freeSlots.pop();
+        captureResult.resultMat.copyTo(candidate.resultMat);
+        captureResult.boundary.copyTo(candidate.boundary);
+        candidate.captureResult = copyOf(captureResult, candidate);
+        candidate.timestamp = now;
+        candidates.addLast(candidate);
+
+        return isReady(now);
+    }
+
+    /**
+     * Whether enough candidates have been collected for {@link #select()}
+     * @param now: the current time in milliseconds
+     * @return whether the candidates should be interpreted
+     */
+    private boolean isReady(long now) {
+        if (candidates.size() < CAPTURE_COUNT)
+            return false;
+        if (mode == Mode.DIRECT)
+            return true;
+        return candidates.size() >= capacity || now - windowStart >= window;
+    }
+
+    /**
+     * Picks the candidates that should be interpreted
+     * Note: the Mats in the returned results belong to the selector and are overwritten by the
+     * next call to {@link #offer}; in BEST_OF_N mode, the selector starts collecting a fresh set
+     * of candidates afterwards
+     * @return up to {@link Constants#CAPTURE_COUNT} results, oldest first, where the
+     * highest-scoring one is also returned by {@link #getBest(List)}
+     */
+    public List<RDTCaptureResult> select() {
+        List<Candidate> ranked = new ArrayList<>(candidates);
+        Collections.sort(ranked, BY_SCORE);
+        List<Candidate> selected = ranked.subList(0, Math.min(CAPTURE_COUNT, ranked.size()));
+
+        // Keep them in chronological order so the fused frames line up with the tracker
+        List<RDTCaptureResult> results = new ArrayList<>();
+        for (Candidate candidate : candidates) {
+            if (selected.contains(candidate))
+                results.add(candidate.captureResult);
+        }
+        Log.d(TAG, String.format("Selected %d of %d candidates, best score: %.3f",
+                results.size(), candidates.size(),
+                ranked.isEmpty() ? 0.0 : ranked.get(0).captureResult.score));
+
+        if (mode == Mode.BEST_OF_N)
+            clear();
+        return results;
+    }
+
+    /**
+     * Finds the highest-scoring result among those returned by {@link #select()}
+     * @param results: the result of {@link #select()}
+     * @return the highest-scoring result, or null if there are none
+     */
+    public static RDTCaptureResult getBest(List<RDTCaptureResult> results) {
+        RDTCaptureResult best = null;
+        for (RDTCaptureResult result : results) {
+            if (best == null || result.score > best.score)
+                best = result;
+        }
+        return best;
+    }
+
+    /**
+     * Forgets every candidate, keeping the slots for reuse
+     */
+    public void clear() {
+        while (!candidates.isEmpty())
+            freeSlots.push(candidates.pollFirst());
+    }
+
+    /**
+     * Releases the native memory held by the slots
+     */
+    public void release() {
+        clear();
+        for (Candidate candidate : freeSlots) {
+            candidate.resultMat.release();
+            candidate.boundary.release();
+            candidate.captureResult = null;
+        }
+    }
+
+    /**
+     * Copies a result so that it points at the Mats in a slot instead of the caller's
+     * @param captureResult: the result to copy
+     * @param candidate: the slot that holds the copies of the Mats
+     * @return the copy
+     */
+    private static RDTCaptureResult copyOf(RDTCaptureResult captureResult, Candidate candidate) {
+        RDTCaptureResult copy = new RDTCaptureResult(captureResult.allChecksPassed,
+                candidate.resultMat, candidate.boundary, captureResult.flashEnabled,
+                captureResult.exposureResult, captureResult.isSharp,
+                captureResult.isCentered, captureResult.sizeResult,
+                captureResult.isOriented, captureResult.angle,
+                captureResult.isGlared, captureResult.fiducial);
+        copy.rdtName = captureResult.rdtName;
+        copy.rdt = captureResult.rdt;
+        copy.sharpnessMargin = captureResult.sharpnessMargin;
+        copy.exposureMargin = captureResult.exposureMargin;
+        copy.centeringError = captureResult.centeringError;
+        copy.glareRatio = captureResult.glareRatio;
+        copy.inlierCount = captureResult.inlierCount;
+        copy.inlierRatio = captureResult.inlierRatio;
+        copy.reprojectionError = captureResult.reprojectionError;
+        copy.homographyConfidence = captureResult.homographyConfidence;
+        copy.failedCheck = captureResult.failedCheck;
+        copy.detectionLevel = captureResult.detectionLevel;
+        copy.detectionTime = captureResult.detectionTime;
+        copy.detectionMaxFeatures = captureResult.detectionMaxFeatures;
+        copy.detectionContrastThreshold = captureResult.detectionContrastThreshold;
+        copy.detectionResizeScale = captureResult.detectionResizeScale;
+        copy.sharpnessRatio = captureResult.sharpnessRatio;
+        copy.maxWhite = captureResult.maxWhite;
+        copy.clippingRatio = captureResult.clippingRatio;
+        copy.score = captureResult.score;
+        return copy;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import org.opencv.calib3d.Calib3d;
+
+/**
+ * An Enumeration object for specifying the robust method that estimates the homography
+ * between the reference RDT and the candidate video frame (see
+ * {@link Constants#HOMOGRAPHY_ESTIMATOR})
+ * RANSAC: random sampling, the most forgiving of outliers (default)
+ * RHO: PROSAC-style sampling that tries the best matches first, usually the fastest
+ * LMEDS: least-median of squares, no reprojection threshold but needs mostly inliers
+ */
+public enum HomographyEstimator {
+    RANSAC, RHO, LMEDS;
+
+    /**
+     * The method flag for Calib3d.findHomography()
+     * @return the OpenCV constant for this estimator
+     */
+    public int getMethod() {
+        switch (this) {
+            case RHO:
+                return Calib3d.RHO;
+            case LMEDS:
+                return Calib3d.LMEDS;
+            default:
+                return Calib3d.RANSAC;
+        }
+    }
+
+    /**
+     * Whether the estimator works best when the matches are sorted from best to worst
+     * @return whether the matches should be ordered by descriptor distance
+     */
+    public boolean prefersOrderedMatches() {
+        return this == RHO;
+    }
+}
@@ -18,41 +18,48 @@ import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.android.OpenCVLoader;
 import org.opencv.calib3d.Calib3d;
 import org.opencv.core.Core;
+import org.opencv.core.CvException;
 import org.opencv.core.CvType;
 import org.opencv.core.DMatch;
 import org.opencv.core.KeyPoint;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfDMatch;
 import org.opencv.core.MatOfDouble;
-import org.opencv.core.MatOfFloat;
-import org.opencv.core.MatOfInt;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.MatOfPoint;
 import org.opencv.core.MatOfPoint2f;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
-import org.opencv.core.RotatedRect;
 import org.opencv.core.Size;
 import org.opencv.core.TermCriteria;
+import org.opencv.features2d.Feature2D;
 import org.opencv.imgproc.CLAHE;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.core.Scalar;
+import org.opencv.video.Video;
 
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import edu.washington.cs.ubicomplab.rdt_reader.R;
+import edu.washington.cs.ubicomplab.rdt_reader.interfaces.ColorFrameProvider;
+import edu.washington.cs.ubicomplab.rdt_reader.interfaces.QualityCheck;
 import edu.washington.cs.ubicomplab.rdt_reader.utils.ImageUtil;
+import edu.washington.cs.ubicomplab.rdt_reader.utils.MatPool;
+import edu.washington.cs.ubicomplab.rdt_reader.utils.YuvFrame;
 
 import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+import static java.lang.Math.max;
+import static java.lang.Math.min;
 import static java.lang.Math.pow;
 import static java.lang.StrictMath.abs;
 import static org.opencv.core.Core.KMEANS_PP_CENTERS;
-import static org.opencv.core.Core.addWeighted;
-import static org.opencv.core.Core.countNonZero;
-import static org.opencv.core.Core.inRange;
 import static org.opencv.core.Core.kmeans;
 import static org.opencv.core.Core.meanStdDev;
 import static org.opencv.core.Core.perspectiveTransform;
@@ -67,7 +74,6 @@ import static org.opencv.imgproc.Imgproc.THRESH_BINARY_INV;
 import static org.opencv.imgproc.Imgproc.createCLAHE;
 import static org.opencv.imgproc.Imgproc.cvtColor;
 import static org.opencv.imgproc.Imgproc.getPerspectiveTransform;
-import static org.opencv.imgproc.Imgproc.minAreaRect;
 import static org.opencv.imgproc.Imgproc.resize;
 import static org.opencv.imgproc.Imgproc.warpPerspective;
 
@@ -80,11 +86,71 @@ public class ImageProcessor {
     private static ImageProcessor instance = null;
 
     // Variable to hold metadata for target RDT
-    public static RDT mRDT;
+    public static volatile RDT mRDT;
 
     // Variable to track
     private int mMoveCloserCount = 0;
 
+    // Scratch Mats that are reused from one video frame to the next
+    private final MatPool mMatPool = new MatPool();
+
+    // An empty mask for the OpenCV calls that take one
+    private final Mat mNoMask = new Mat();
+    private byte[] mLumaBuffer = null;
+    private final Map<Size, Rect> mDetectionRects = new HashMap<>();
+
+    // Follows the RDT between full feature detections
+    private final BoundaryTracker mTracker = new BoundaryTracker();
+
+    // Smooths the RDT's boundary across video frames
+    private final BoundaryFilter mBoundaryFilter = new BoundaryFilter();
+
+    // Tells the configured RDTs apart (only when the RDT is identified automatically)
+    private RDTIdentifier mIdentifier = null;
+
+    // Spreads feature detection and matching across worker threads
+    private final TiledFeatureExtractor mTiles = new TiledFeatureExtractor();
+
+    // Keeps feature detection within its per-frame latency budget
+    private final DetectionBudget mBudget = new DetectionBudget();
+
+    // The checks that the detected RDT has to pass, cheapest and most selective first
+    private final QualityCheckChain mQualityChecks = createQualityChecks();
+
+    // Recognizes video frames that show the same scene as the last analyzed one
+    private final StaticScene mStaticScene = new StaticScene();
+
+    // The quality of the homography behind the last detection (for tracked frames)
+    private final HomographyQuality mLastQuality = new HomographyQuality();
+
+    // Adapts the exposure and sharpness thresholds to the phone model (null if disabled)
+    private ThresholdCalibrator mCalibrator = null;
+
+    /**
+     * The quality of the homography that located the RDT
+     * (see the matching fields of {@link RDTCaptureResult})
+     */
+    private static final class HomographyQuality {
+        private int inlierCount = 0;
+        private double inlierRatio = 0;
+        private double reprojectionError = Double.MAX_VALUE;
+        private double confidence = 0;
+
+        private void set(HomographyQuality other) {
+            inlierCount = other.inlierCount;
+            inlierRatio = other.inlierRatio;
+            reprojectionError = other.reprojectionError;
+            confidence = other.confidence;
+        }
+
+        private void copyTo(RDTCaptureResult captureResult) {
+            captureResult.inlierCount = inlierCount;
+            captureResult.inlierRatio = inlierRatio;
+            captureResult.reprojectionError = reprojectionError;
+            captureResult.homographyConfidence = confidence;
+        }
+    }
+
     /**
      * An Enumeration object for specifying the exposure quality of the image
      * UNDER_EXPOSED: the image is too dark
@@ -115,16 +181,35 @@ public class ImageProcessor {
         // Start timer to track how long it takes to load the reference RDT (debug purposes only)
         long startTime = System.currentTimeMillis();
 
-        // Loads the metadata related to the target RDT
-        mRDT = new RDT(activity.getApplicationContext(), rdtName);
+        // Loads the metadata related to the target RDT, or every RDT if it has to be identified
+        RDT targetRDT = null;
+        if (AUTO_RDT_NAME.equals(rdtName)) {
+            List<RDT> rdts = RDT.loadAll(activity.getApplicationContext());
+            for (RDT rdt : rdts) {
+                prepareReference(rdt);
+                if (targetRDT == null || DEFAULT_RDT_NAME.equals(rdt.rdtName))
+                    targetRDT = rdt;
+            }
+            mIdentifier = new RDTIdentifier(rdts);
+            rdtName = DEFAULT_RDT_NAME;
+        }
+        mRDT = targetRDT != null ? targetRDT :
+                new RDT(activity.getApplicationContext(), rdtName);
 
         // Calculates a baseline expected sharpness level for the target RDT
+        // (unless it was already prepared along with every other RDT)
         // TODO: smarter place to put this?
-        mRDT.refImgSharpness = measureSharpness(mRDT.refImg);
+        if (targetRDT == null)
+            prepareReference(mRDT);
+
+        // Loads what was learned about the exposure and sharpness of this phone model's frames
+        if (CALIBRATION_ENABLED)
+            mCalibrator = new ThresholdCalibrator(activity.getApplicationContext());
 
-        Log.d(TAG, String.format("mRefImg sharpness: %.2f",  mRDT.refImgSharpness));
+        Log.d(TAG, String.format("mRefImg sharpness: %.2f, cached: %b",
+                mRDT.refImgSharpness, mRDT.fromCache));
         Log.d(TAG, "RefImg Size: " + mRDT.refImg.size().toString());
-        Log.d(TAG, "SIFT keypoints: " + mRDT.refKeypoints.toArray().length);
+        Log.d(TAG, mRDT.featureBackend + " keypoints: " + mRDT.refKeypoints.toArray().length);
         Log.d(TAG, "REFERENCE LOAD/DETECT/COMPUTE: " + (System.currentTimeMillis() - startTime));
     }
 
@@ -133,6 +218,18 @@ public class ImageProcessor {
         mRDT.refImgSharpness = measureSharpness(mRDT.refImg);
     }
 
+    /**
+     * Calculates a baseline expected sharpness level for an RDT and caches it along with the
+     * reference's features, unless they were read from the cache in the first place
+     * @param rdt: the RDT that was just loaded
+     */
+    private void prepareReference(RDT rdt) {
+        if (rdt.fromCache)
+            return;
+        rdt.refImgSharpness = measureSharpness(rdt.refImg);
+        rdt.saveToCache();
+    }
+
     public static ImageProcessor getInstance(JSONObject rdtConfig) {
         if (instance == null)
             instance = new ImageProcessor(rdtConfig);
@@ -149,6 +246,15 @@ public class ImageProcessor {
      * Singleton destruction method for this class
      */
     public static void destroy() {
+        if (instance != null) {
+            Log.d(TAG, String.format("Mat pool hits: %d, misses: %d",
+                    instance.mMatPool.getHits(), instance.mMatPool.getMisses()));
+            instance.mMatPool.clear();
+            instance.mTracker.release();
+            instance.mBoundaryFilter.reset();
+            instance.mStaticScene.release();
+            instance.mTiles.release();
+        }
         instance = null;
     }
 
@@ -171,13 +277,13 @@ public class ImageProcessor {
     /**
      * Returns the rectangle corresponding to the viewfinder that the user sees
      * (i.e., region-of-interest) for image quality
-     * @param inputMat: the candidate video frame
+     * @param size: the size of the candidate video frame
      * @return the rectangle corresponding to the viewfinder
      */
-    private Rect getViewfinderRect(Mat inputMat) {
-        Point p1 = new Point(inputMat.size().width*(1-mRDT.viewFinderScaleH)/2,
-                inputMat.size().height*(1-mRDT.viewFinderScaleW)/2);
-        Point p2 = new Point(inputMat.size().width-p1.x, inputMat.size().height-p1.y);
+    private Rect getViewfinderRect(Size size) {
+        Point p1 = new Point(size.width*(1-mRDT.viewFinderScaleH)/2,
+                size.height*(1-mRDT.viewFinderScaleW)/2);
+        Point p2 = new Point(size.width-p1.x, size.height-p1.y);
         return new Rect(p1, p2);
     }
 
@@ -188,126 +294,576 @@ public class ImageProcessor {
      * @param flashEnabled: whether the camera's flash is currently enabled
      * @return an {@link RDTCaptureResult} indicating which quality checks were passed
      */
-    public RDTCaptureResult assessImage(Mat inputMat, boolean flashEnabled) {
+    public RDTCaptureResult assessImage(final Mat inputMat, boolean flashEnabled) {
         // Convert the image to grayscale
-        Mat grayMat = new Mat();
+        Mat grayMat = mMatPool.acquire(inputMat.rows(), inputMat.cols(), CvType.CV_8UC1);
         cvtColor(inputMat, grayMat, Imgproc.COLOR_RGBA2GRAY);
-        Size inputSize = grayMat.size();
 
-        // Check the brightness and the sharpness of the overall camera frame
-        Rect viewFinderRect = getViewfinderRect(grayMat);
-        ExposureResult exposureResult = checkExposure(grayMat);
-        boolean isSharp = checkSharpness(grayMat.submat(viewFinderRect));
-        boolean passed = exposureResult == ExposureResult.NORMAL && isSharp;
-
-        // If the frame passes those two checks, continue to try to detect the RDT
-        if (passed) {
-            // Locate the RDT design within the camera frame
-            MatOfPoint2f boundary = detectRDT(grayMat);
-            grayMat.release();
-
-            // Check the placement, size, and orientation of the RDT,
-            // if it is there in the first place
-            boolean isCentered = false;
-            SizeResult sizeResult = SizeResult.INVALID;
-            boolean isOriented = false;
-            double angle = 0.0;
-            if (boundary.size().width > 0 && boundary.size().height > 0) {
-                isCentered = checkCentering(boundary, inputSize);
-                sizeResult = checkSize(boundary, inputSize);
-                isOriented = checkOrientation(boundary);
-                angle = measureOrientation(boundary);
+        // The colour frame is already available, so there is nothing to defer
+        RDTCaptureResult captureResult = assessImage(grayMat, new ColorFrameProvider() {
+            @Override
+            public Mat rgba() {
+                return inputMat;
             }
-            passed = isCentered && sizeResult == SizeResult.RIGHT_SIZE && isOriented;
+        }, flashEnabled);
+        mMatPool.recycle(grayMat);
+        return captureResult;
+    }
 
-            // Crop around the edges to reduce data size and speedup computation
-            Mat croppedMat = ImageUtil.cropInputMat(inputMat, CROP_RATIO);
-            MatOfPoint2f croppedBoundary = ImageUtil.adjustBoundary(inputMat, boundary, CROP_RATIO);
+    /**
+     * Processes the candidate video frame to see if it passes all of the quality checks
+     * needed to ensure high likelihood of correct automatic analysis
+     * Note: the exposure, sharpness, and RDT detection checks only look at the luma plane,
+     * so the colour frame is only requested for frames that reach the glare check
+     * @param grayMat: the candidate video frame (in grayscale), e.g., the camera's Y plane
+     * @param colorFrame: provides the candidate video frame (in RGBA) on demand
+     * @param flashEnabled: whether the camera's flash is currently enabled
+     * @return an {@link RDTCaptureResult} indicating which quality checks were passed
+     */
+    public RDTCaptureResult assessImage(Mat grayMat, ColorFrameProvider colorFrame,
+                                        boolean flashEnabled) {
+        RDTCaptureResult captureResult = assessFrameQuality(grayMat, flashEnabled);
+        if (!passedFrameQuality(captureResult))
+            return captureResult;
+        return assessRDT(grayMat, colorFrame, captureResult);
+    }
 
-            // Check for glare
-            boolean isGlared = false;
-            if (passed && mRDT.checkGlare) {
-                isGlared = checkGlare(croppedMat, croppedBoundary);
-            }
-            passed = passed && !isGlared;
+    /**
+     * Checks the brightness and the sharpness of the overall camera frame, which is cheap
+     * enough to reject most frames before any feature detection happens
+     * Note: the frame is copied out of native memory first, which
+     * {@link #assessFrameQuality(YuvFrame, boolean)} avoids for camera frames
+     * @param grayMat: the candidate video frame (in grayscale)
+     * @param flashEnabled: whether the camera's flash is currently enabled
+     * @return an {@link RDTCaptureResult} with only the exposure and sharpness checks filled in
+     */
+    public RDTCaptureResult assessFrameQuality(Mat grayMat, boolean flashEnabled) {
+        int size = grayMat.rows() * grayMat.cols();
+        if (mLumaBuffer == null || mLumaBuffer.length != size)
+            mLumaBuffer = new byte[size];
+        grayMat.get(0, 0, mLumaBuffer);
+        return assessFrameQuality(ByteBuffer.wrap(mLumaBuffer), grayMat.cols(), grayMat.size(),
+                flashEnabled);
+    }
 
-            return new RDTCaptureResult(passed, croppedMat, croppedBoundary, flashEnabled,
-                    exposureResult, isSharp, isCentered, sizeResult,
-                    isOriented, angle, isGlared, true);
-        }
-        else {
-            grayMat.release();
-            return new RDTCaptureResult(false, null, new MatOfPoint2f(), flashEnabled,
-                    exposureResult, isSharp, false, SizeResult.INVALID,
-                    false, 0.0, false, false);
+    /**
+     * Checks the brightness and the sharpness of the overall camera frame, reading its luma
+     * plane straight from the camera's buffer
+     * @param frame: the candidate video frame
+     * @param flashEnabled: whether the camera's flash is currently enabled
+     * @return an {@link RDTCaptureResult} with only the exposure and sharpness checks filled in
+     */
+    public RDTCaptureResult assessFrameQuality(YuvFrame frame, boolean flashEnabled) {
+        return assessFrameQuality(frame.lumaBuffer(), frame.lumaRowStride(),
+                new Size(frame.getWidth(), frame.getHeight()), flashEnabled);
+    }
+
+    /**
+     * Checks the brightness and the sharpness of the overall camera frame
+     * @param luma: the luma plane of the candidate video frame
+     * @param rowStride: the distance between the start of two rows of luma in bytes
+     * @param size: the size of the candidate video frame
+     * @param flashEnabled: whether the camera's flash is currently enabled
+     * @return an {@link RDTCaptureResult} with only the exposure and sharpness checks filled in
+     */
+    private RDTCaptureResult assessFrameQuality(ByteBuffer luma, int rowStride, Size size,
+                                                boolean flashEnabled) {
+        Rect viewFinderRect = getViewfinderRect(size);
+        LumaStats lumaStats = measureLuma(luma, rowStride, size, viewFinderRect);
+        ExposureResult exposureResult = checkExposure(lumaStats);
+        double sharpnessMargin = measureSharpnessMargin(lumaStats.laplacianVariance);
+        boolean isSharp = sharpnessMargin > 0;
+        RDTCaptureResult captureResult = new RDTCaptureResult(false, null, new MatOfPoint2f(),
+                flashEnabled, exposureResult, isSharp, false, SizeResult.INVALID,
+                false, 0.0, false, false);
+        captureResult.exposureMargin = measureExposureMargin(lumaStats);
+        captureResult.sharpnessMargin = sharpnessMargin;
+        captureResult.sharpnessRatio = lumaStats.laplacianVariance / mRDT.refImgSharpness;
+        captureResult.maxWhite = lumaStats.maxWhite;
+        captureResult.clippingRatio = lumaStats.clippingRatio;
+        return captureResult;
+    }
+
+    /**
+     * Ranks candidate video frames that passed all of the quality checks against each other
+     * (see {@link FrameSelector})
+     * @param captureResult: the quality checks for the candidate video frame
+     * @return the weighted sum of the quality margins, where higher is better
+     */
+    public static double scoreCaptureResult(RDTCaptureResult captureResult) {
+        return SELECTION_SHARPNESS_WEIGHT * min(max(captureResult.sharpnessMargin, 0), 1) +
+                SELECTION_EXPOSURE_WEIGHT * captureResult.exposureMargin +
+                SELECTION_CENTERING_WEIGHT * (1 - min(captureResult.centeringError, 1)) +
+                SELECTION_GLARE_WEIGHT * (1 - min(captureResult.glareRatio, 1));
+    }
+
+    /**
+     * Whether the candidate video frame passed the checks in {@link #assessFrameQuality}
+     * @param captureResult: the result of {@link #assessFrameQuality}
+     * @return whether it is worth looking for the RDT in the candidate video frame
+     */
+    public static boolean passedFrameQuality(RDTCaptureResult captureResult) {
+        return captureResult.exposureResult == ExposureResult.NORMAL && captureResult.isSharp;
+    }
+
+    /**
+     * Adds a quality check that the detected RDT has to pass, e.g., for shadows
+     * (see {@link QualityCheckChain})
+     * @param check: the quality check
+     */
+    public void addQualityCheck(QualityCheck check) {
+        mQualityChecks.add(check);
+    }
+
+    /**
+     * Removes a quality check that was added by {@link #addQualityCheck}
+     * @param check: the quality check
+     * @return whether the check had been added
+     */
+    public boolean removeQualityCheck(QualityCheck check) {
+        return mQualityChecks.remove(check);
+    }
+
+    /**
+     * Returns how often each quality check has run and failed, and how long it took
+     * @return the statistics of each quality check, in the order they are currently run
+     */
+    public List<QualityCheckChain.Stats> getQualityCheckStats() {
+        return mQualityChecks.getStats();
+    }
+
+    /**
+     * Records whether the user confirmed that a capture was read correctly, so the exposure
+     * and sharpness thresholds can adapt to the phone model (see {@link ThresholdCalibrator})
+     * Note: this does not need an instance, since the user usually confirms the reading on
+     * another screen after the camera (and this class) is gone
+     * @param context: the app's context
+     * @param sharpnessRatio: {@link RDTCaptureResult#sharpnessRatio} of the capture
+     * @param maxWhite: {@link RDTCaptureResult#maxWhite} of the capture
+     * @param clippingRatio: {@link RDTCaptureResult#clippingRatio} of the capture
+     * @param correct: whether the reading matches what the user sees on the test
+     */
+    public static void confirmCapture(Context context, double sharpnessRatio, int maxWhite,
+                                      double clippingRatio, boolean correct) {
+        if (CALIBRATION_ENABLED)
+            new ThresholdCalibrator(context).record(sharpnessRatio, maxWhite, clippingRatio,
+                    correct);
+    }
+
+    /**
+     * Forgets what was learned about the exposure and sharpness of this phone model's frames,
+     * e.g., to start over after a camera update changes how the frames look
+     */
+    public void resetCalibration() {
+        if (mCalibrator != null)
+            mCalibrator.reset();
+    }
+
+    /**
+     * Locates the RDT in a candidate video frame that already passed
+     * {@link #assessFrameQuality} and checks its placement, size, orientation, and glare
+     * @param grayMat: the candidate video frame (in grayscale)
+     * @param colorFrame: provides the candidate video frame (in RGBA) on demand
+     * @param frameQuality: the result of {@link #assessFrameQuality} for this frame
+     * @return an {@link RDTCaptureResult} indicating which quality checks were passed
+     */
+    public RDTCaptureResult assessRDT(Mat grayMat, ColorFrameProvider colorFrame,
+                                      RDTCaptureResult frameQuality) {
+        Size inputSize = grayMat.size();
+        ExposureResult exposureResult = frameQuality.exposureResult;
+        boolean isSharp = frameQuality.isSharp;
+        boolean flashEnabled = frameQuality.flashEnabled;
+
+        // Reuse the geometry of the last analyzed frame if the phone has not moved
+        if (STATIC_SCENE_ENABLED && mStaticScene.isUnchanged(grayMat))
+            return reuseCaptureResult(colorFrame, frameQuality);
+
+        // Locate the RDT design within the camera frame,
+        // starting from where it is expected to be based on the previous frames
+        MatOfPoint2f predictedBoundary = mBoundaryFilter.predict();
+        HomographyQuality quality = new HomographyQuality();
+        MatOfPoint2f boundary = detectRDT(grayMat, predictedBoundary, quality);
+        predictedBoundary.release();
+
+        // Smooth out the frame-to-frame jitter of the detection
+        MatOfPoint2f smoothedBoundary = mBoundaryFilter.correct(boundary);
+        MatOfPoint2f croppedBoundary = ImageUtil.adjustBoundary(grayMat, boundary, CROP_RATIO);
+
+        // The RDT that was just located (which may have just been identified), kept for the
+        // rest of this frame even if the processor switches to another one in the meantime
+        RDT rdt = mRDT;
+
+        // Run the quality checks on the RDT, if it is there in the first place
+        // (the colour frame is only converted if one of the checks needs it)
+        QualityContext context = new QualityContext(this, rdt, mMatPool, grayMat, colorFrame,
+                smoothedBoundary, croppedBoundary, quality.confidence);
+        boolean detected = smoothedBoundary.size().width > 0 &&
+                smoothedBoundary.size().height > 0;
+        String failedCheck = detected ? mQualityChecks.run(context) : "detection";
+        boolean passed = failedCheck == null;
+
+        // Measure the RDT's placement even if its check was skipped (e.g., after an earlier
+        // check failed), since these are needed for the instructions and for ranking frames
+        SizeResult sizeResult = SizeResult.INVALID;
+        double angle = 0.0;
+        double centeringError = Double.MAX_VALUE;
+        boolean isCentered = false;
+        boolean isOriented = false;
+        if (detected) {
+            sizeResult = checkSize(context.getHeight(), inputSize);
+            angle = context.getAngle();
+            centeringError = measureCenteringError(context.getCenter(), inputSize);
+            isCentered = checkCentering(context.getCenter(), inputSize);
+            isOriented = checkOrientation(angle);
         }
+
+        // Keep the cropped colour frame if it is needed for interpretation
+        if (passed)
+            context.getColorMat();
+        Mat croppedMat = context.takeColorMat();
+
+        RDTCaptureResult captureResult = new RDTCaptureResult(passed, croppedMat,
+                croppedBoundary, flashEnabled, exposureResult, isSharp, isCentered,
+                sizeResult, isOriented, angle, context.isGlared, true);
+        copyMargins(frameQuality, captureResult, centeringError, context.glareRatio);
+        captureResult.failedCheck = failedCheck;
+
+        // Garbage collection
+        context.release();
+        smoothedBoundary.release();
+
+        quality.copyTo(captureResult);
+        mBudget.copyTo(captureResult);
+        captureResult.rdtName = rdt.rdtName;
+        captureResult.rdt = rdt;
+        if (STATIC_SCENE_ENABLED)
+            mStaticScene.update(captureResult);
+        return captureResult;
+    }
+
+    /**
+     * Builds the result for a video frame that shows the same scene as the last analyzed
+     * frame (see {@link StaticScene}), reusing the RDT's geometry and glare from that frame
+     * and only taking the exposure and sharpness from this one
+     * @param colorFrame: provides the candidate video frame (in RGBA) on demand
+     * @param frameQuality: the result of {@link #assessFrameQuality} for this frame
+     * @return an {@link RDTCaptureResult} indicating which quality checks were passed
+     */
+    private RDTCaptureResult reuseCaptureResult(ColorFrameProvider colorFrame,
+                                                RDTCaptureResult frameQuality) {
+        RDTCaptureResult analyzed = mStaticScene.getAnalyzedResult();
+        MatOfPoint2f croppedBoundary = new MatOfPoint2f();
+        analyzed.boundary.copyTo(croppedBoundary);
+
+        // The same scene passes the same quality checks, but the RDT still has to be
+        // cropped from this frame for interpretation
+        boolean passed = analyzed.allChecksPassed;
+        Mat croppedMat = passed ? ImageUtil.cropInputMat(colorFrame.rgba(), CROP_RATIO) : null;
+        RDTCaptureResult captureResult = new RDTCaptureResult(passed,
+                croppedMat, croppedBoundary, frameQuality.flashEnabled,
+                frameQuality.exposureResult, frameQuality.isSharp, analyzed.isCentered,
+                analyzed.sizeResult, analyzed.isOriented, analyzed.angle, analyzed.isGlared,
+                analyzed.fiducial);
+        copyMargins(frameQuality, captureResult, analyzed.centeringError, analyzed.glareRatio);
+        captureResult.inlierCount = analyzed.inlierCount;
+        captureResult.inlierRatio = analyzed.inlierRatio;
+        captureResult.reprojectionError = analyzed.reprojectionError;
+        captureResult.homographyConfidence = analyzed.homographyConfidence;
+        captureResult.failedCheck = analyzed.failedCheck;
+        mBudget.copyTo(captureResult);
+        captureResult.rdtName = analyzed.rdtName;
+        captureResult.rdt = analyzed.rdt;
+        return captureResult;
+    }
+
+    /**
+     * Fills in the quality margins of a candidate video frame and scores it
+     * @param frameQuality: the result of {@link #assessFrameQuality} for this frame
+     * @param captureResult: the result of {@link #assessRDT} for this frame
+     * @param centeringError: the result of {@link #measureCenteringError}
+     * @param glareRatio: the result of {@link #measureGlareRatio}
+     */
+    private void copyMargins(RDTCaptureResult frameQuality, RDTCaptureResult captureResult,
+                             double centeringError, double glareRatio) {
+        captureResult.exposureMargin = frameQuality.exposureMargin;
+        captureResult.sharpnessMargin = frameQuality.sharpnessMargin;
+        captureResult.sharpnessRatio = frameQuality.sharpnessRatio;
+        captureResult.maxWhite = frameQuality.maxWhite;
+        captureResult.clippingRatio = frameQuality.clippingRatio;
+        captureResult.centeringError = centeringError;
+        captureResult.glareRatio = glareRatio;
+        captureResult.score = scoreCaptureResult(captureResult);
     }
 
     /**
      * Locates the RDT within the image (if one is presents) produces a bounding box around it
+     * Note: the RDT is first located roughly in a heavily downscaled frame, which is cheap
+     * enough to reject frames without an RDT, and then refined at a higher resolution within
+     * the projected boundary (see {@link Constants#COARSE_TO_FINE_ENABLED}); after a successful
+     * detection, the RDT is followed with optical flow for the next few frames
+     * (see {@link BoundaryTracker}) instead of running SIFT on every frame
      * @param inputMat: the candidate video frame (in grayscale)
+     * @param searchRegion: the corners of the bounding box where the RDT is expected to be,
+     *                    or a blank MatOfPoint2f to search the whole viewfinder
+     * @param quality: receives the quality of the homography behind the boundary
      * @return the corners of the bounding box around the detected RDT if it is present,
      * otherwise a blank MatOfPoint2f
      */
-    private MatOfPoint2f detectRDT(Mat inputMat) {
+    private MatOfPoint2f detectRDT(Mat inputMat, MatOfPoint2f searchRegion,
+                                   HomographyQuality quality) {
         double currentTime = System.currentTimeMillis();
 
         // Resize inputMat for quicker computation
         double scale = SIFT_RESIZE_FACTOR;
-        Mat scaledMat = new Mat();
+        Mat scaledMat = resizeForDetection(inputMat, scale);
+
+        // Follow the RDT from the previous frame if it was found recently
+        // (unless it is still unclear which RDT it is)
+        boolean identifying = mIdentifier != null && !mIdentifier.isLocked();
+        if (TRACKING_ENABLED && !identifying && !mTracker.needsDetection()) {
+            MatOfPoint2f trackedBoundary = mTracker.track(scaledMat);
+            if (trackedBoundary.rows() == 4) {
+                MatOfPoint2f boundary = scaleBoundary(trackedBoundary, 1/scale);
+                trackedBoundary.release();
+                mMatPool.recycle(scaledMat);
+
+                // Vouch for the tracked boundary only as much as for the original detection
+                quality.set(mLastQuality);
+                quality.confidence *= mTracker.getConfidence();
+                Log.d(TAG, String.format("Track RDT time: %.0f, confidence: %.2f",
+                        System.currentTimeMillis()-currentTime, mTracker.getConfidence()));
+                return boundary;
+            }
+            trackedBoundary.release();
+        }
+
+        // Stop tracking until the RDT is found again
+        mTracker.reset();
+
+        // Shrink the frames that the detector sees if detection is over budget
+        double resizeScale = mBudget.getResizeScale();
+
+        MatOfPoint2f boundary;
+        MatOfPoint2f inlierPoints = new MatOfPoint2f();
+        double inlierScale;
+        if (COARSE_TO_FINE_ENABLED && COARSE_RESIZE_FACTOR < scale) {
+            // Find the RDT roughly in a much smaller frame first
+            double coarseScale = COARSE_RESIZE_FACTOR * resizeScale;
+            Mat coarseMat = resizeForDetection(inputMat, coarseScale);
+            boundary = matchRDT(coarseMat, getSearchRect(coarseMat.size(), coarseScale,
+                    searchRegion, KALMAN_SEARCH_MARGIN), coarseScale, identifying, inlierPoints,
+                    quality);
+            inlierScale = coarseScale;
+            mMatPool.recycle(coarseMat);
+            Log.d(TAG, String.format("Coarse detect RDT time: %.0f, found: %b",
+                    System.currentTimeMillis()-currentTime, boundary.rows() == 4));
+
+            // Refine the boundary at a higher resolution, but only around the RDT
+            if (boundary.rows() == 4) {
+                double fineScale = FINE_RESIZE_FACTOR * resizeScale;
+                Mat fineMat = fineScale == 1.0 ? inputMat :
+                        resizeForDetection(inputMat, fineScale);
+                MatOfPoint2f fineInlierPoints = new MatOfPoint2f();
+                HomographyQuality fineQuality = new HomographyQuality();
+                MatOfPoint2f fineBoundary = matchRDT(fineMat, getSearchRect(fineMat.size(),
+                        fineScale, boundary, FINE_SEARCH_MARGIN), fineScale, false,
+                        fineInlierPoints, fineQuality);
+                if (fineMat != inputMat)
+                    mMatPool.recycle(fineMat);
+
+                // Keep the coarse boundary if the refinement did not work out
+                if (fineBoundary.rows() == 4) {
+                    boundary.release();
+                    inlierPoints.release();
+                    boundary = fineBoundary;
+                    inlierPoints = fineInlierPoints;
+                    inlierScale = fineScale;
+                    quality.set(fineQuality);
+                } else {
+                    fineBoundary.release();
+                    fineInlierPoints.release();
+                }
+            }
+        } else {
+            double detectScale = scale * resizeScale;
+            Mat detectMat = resizeScale == 1.0 ? scaledMat :
+                    resizeForDetection(inputMat, detectScale);
+            boundary = matchRDT(detectMat, getSearchRect(detectMat.size(), detectScale,
+                    searchRegion, KALMAN_SEARCH_MARGIN), detectScale, identifying, inlierPoints,
+                    quality);
+            inlierScale = detectScale;
+            if (detectMat != scaledMat)
+                mMatPool.recycle(detectMat);
+        }
+
+        // Follow the matched keypoints that agreed with the homography from now on
+        if (TRACKING_ENABLED && boundary.rows() == 4) {
+            MatOfPoint2f scaledBoundary = scaleBoundary(boundary, scale);
+            MatOfPoint2f scaledInlierPoints = scaleBoundary(inlierPoints, scale/inlierScale);
+            mTracker.start(scaledMat, scaledBoundary, scaledInlierPoints);
+            scaledBoundary.release();
+            scaledInlierPoints.release();
+        }
+
+        mLastQuality.set(quality);
+
+        // Go back to identifying the RDT if the identified one has not been seen for a while
+        if (mIdentifier != null && !identifying)
+            mIdentifier.update(boundary.rows() == 4);
+
+        // Adjust the operating point for the next detection
+        double detectionTime = System.currentTimeMillis()-currentTime;
+        if (DETECTION_BUDGET_ENABLED)
+            mBudget.update(detectionTime);
+
+        // Garbage collection
+        mMatPool.recycle(scaledMat);
+        inlierPoints.release();
+        Log.d(TAG, "Detect RDT time: " + detectionTime);
+        return boundary;
+    }
+
+    /**
+     * Downscales the candidate video frame for feature detection
+     * @param inputMat: the candidate video frame (in grayscale)
+     * @param scale: the scale factor
+     * @return the downscaled video frame, which should be recycled into the pool when done
+     */
+    private Mat resizeForDetection(Mat inputMat, double scale) {
+        Mat scaledMat = mMatPool.acquire((int) Math.round(inputMat.rows()*scale),
+                (int) Math.round(inputMat.cols()*scale), inputMat.type());
         Imgproc.resize(inputMat, scaledMat, new Size(), scale, scale, Imgproc.INTER_LINEAR);
+        return scaledMat;
+    }
 
-        // Create mask for region of interest
-        Mat mask = new Mat(scaledMat.cols(), scaledMat.rows(), CV_8U, new Scalar(0));
-        Point p1 = new Point(0, scaledMat.size().height*(1-mRDT.viewFinderScaleW/CROP_RATIO)/2);
-        Point p2 = new Point(scaledMat.size().width-p1.x, scaledMat.size().height-p1.y);
-        Imgproc.rectangle(mask, p1, p2, new Scalar(255), -1);
+    /**
+     * Returns the part of a downscaled video frame that should be searched for the RDT
+     * @param scaledSize: the size of the downscaled video frame
+     * @param scale: the scale of the downscaled video frame relative to the candidate video frame
+     * @param searchRegion: the corners of the bounding box where the RDT is expected to be
+     *                    (in the candidate video frame), or a blank MatOfPoint2f
+     * @param margin: how much to grow the bounding box of searchRegion, relative to its size
+     * @return the viewfinder's region of interest, narrowed down to around searchRegion if
+     * they overlap
+     */
+    private Rect getSearchRect(Size scaledSize, double scale, MatOfPoint2f searchRegion,
+                               double margin) {
+        // Get the region of interest for this resolution
+        Rect roi = getDetectionRect(scaledSize);
+        if (searchRegion.rows() != 4)
+            return roi;
+
+        // Narrow the region down to around the expected boundary
+        Point p1 = roi.tl();
+        Point p2 = roi.br();
+        MatOfPoint searchPoints = new MatOfPoint(searchRegion.toArray());
+        Rect predictedRect = Imgproc.boundingRect(searchPoints);
+        searchPoints.release();
+        double marginX = predictedRect.width * margin;
+        double marginY = predictedRect.height * margin;
+        Point q1 = new Point(Math.max(p1.x, (predictedRect.x - marginX) * scale),
+                Math.max(p1.y, (predictedRect.y - marginY) * scale));
+        Point q2 = new Point(Math.min(p2.x, (predictedRect.br().x + marginX) * scale),
+                Math.min(p2.y, (predictedRect.br().y + marginY) * scale));
+        if (q1.x < q2.x && q1.y < q2.y)
+            return new Rect(q1, q2);
+        return roi;
+    }
 
-        // Identify SIFT features
+    /**
+     * Matches the features within part of a downscaled video frame against the reference
+     * RDT and estimates where the RDT is
+     * @param scaledMat: the downscaled video frame (in grayscale)
+     * @param roi: the part of scaledMat to search
+     * @param scale: the scale of scaledMat relative to the candidate video frame
+     * @param identifying: whether the RDT still has to be identified (see {@link RDTIdentifier})
+     * @param inlierPoints: receives the matched keypoints in scaledMat that agreed with the
+     *                    homography
+     * @param quality: receives the quality of the homography if the RDT is found
+     * @return the corners of the bounding box around the detected RDT (in the candidate
+     * video frame) if it is present, otherwise a blank MatOfPoint2f
+     */
+    private MatOfPoint2f matchRDT(Mat scaledMat, Rect roi, double scale, boolean identifying,
+                                  MatOfPoint2f inlierPoints, HomographyQuality quality) {
+        // Identify features within the region of interest only
+        // (keypoint coordinates are relative to the region of interest)
+        Mat roiMat = scaledMat.submat(roi);
         Mat inDescriptor = new Mat();
         MatOfKeyPoint inKeypoints = new MatOfKeyPoint();
         MatOfPoint2f boundary = new MatOfPoint2f();
-        mRDT.detector.detectAndCompute(scaledMat, mask, inKeypoints, inDescriptor);
+        if (FEATURE_TILING_ENABLED && mTiles.shouldTile(roi)) {
+            // Spread large regions across the worker threads
+            FeatureBackend backend = identifying ? mIdentifier.getBackend() :
+                    mRDT.featureBackend;
+            mTiles.detectAndCompute(backend, mBudget.getMaxFeatures(),
+                    mBudget.getContrastThreshold(), roiMat, inKeypoints, inDescriptor);
+        } else {
+            Feature2D detector = identifying ? mIdentifier.getDetector() :
+                    mBudget.getDetector(mRDT.featureBackend);
+            detector.detectAndCompute(roiMat, mNoMask, inKeypoints, inDescriptor);
+        }
+        roiMat.release();
 
         // Skip if no features are found
-        if (mRDT.refDescriptor.size().equals(new Size(0,0))) {
+        if (!identifying && mRDT.refIndex.isEmpty()) {
             Log.d(TAG, "No features found in reference");
+            inDescriptor.release();
+            inKeypoints.release();
             return boundary;
         }
         if (inDescriptor.size().equals(new Size(0,0))) {
             Log.d(TAG, "No features found in scene");
+            inDescriptor.release();
+            inKeypoints.release();
             return boundary;
         }
 
-        // Match feature descriptors using KNN
-        List<MatOfDMatch> matches = new ArrayList<>();
-        mRDT.matcher.knnMatch(mRDT.refDescriptor, inDescriptor, matches,
-                2, new Mat(), false);
-
-        // Identify good matches based on nearest neighbor distance ratio test
         ArrayList<DMatch> goodMatches = new ArrayList<>();
-        for (int i = 0; i < matches.size(); i++) {
-            DMatch[] dMatches = matches.get(i).toArray();
-            if (dMatches.length >= 2) {
-                DMatch m = dMatches[0];
-                DMatch n = dMatches[1];
-                if (m.distance <= 0.80 * n.distance)
-                    goodMatches.add(m);
+        if (identifying) {
+            // Let every configured RDT compete for the matches, and only continue with
+            // the winner's matches once it has won enough frames in a row
+            RDT winner = mIdentifier.vote(inDescriptor, goodMatches);
+            if (mIdentifier.confirm(winner))
+                setRDT(winner);
+            else
+                goodMatches.clear();
+        } else {
+            // Match feature descriptors using KNN against the reference's index
+            // (sharded across the worker threads if there are enough descriptors)
+            List<MatOfDMatch> matches = new ArrayList<>();
+            if (FEATURE_TILING_ENABLED && inDescriptor.rows() >= FEATURE_SHARD_MIN_COUNT)
+                mTiles.knnMatch(mRDT.refIndex, inDescriptor, matches, 2);
+            else
+                mRDT.refIndex.knnMatch(inDescriptor, matches, 2);
+
+            // Identify good matches based on nearest neighbor distance ratio test
+            for (int i = 0; i < matches.size(); i++) {
+                DMatch[] dMatches = matches.get(i).toArray();
+                if (dMatches.length >= 2) {
+                    DMatch m = dMatches[0];
+                    DMatch n = dMatches[1];
+                    if (m.distance <= 0.80 * n.distance)
+                        goodMatches.add(m);
+                }
+                matches.get(i).release();
             }
         }
-        MatOfDMatch goodMatchesMat = new MatOfDMatch();
-        goodMatchesMat.fromList(goodMatches);
 
         // If enough matches are found, calculate homography
         if (goodMatches.size() > GOOD_MATCH_COUNT) {
+            // Put the most distinctive matches first for estimators that sample them in order
+            if (HOMOGRAPHY_ESTIMATOR.prefersOrderedMatches())
+                Collections.sort(goodMatches, BY_DISTANCE);
+
             // Extract features from reference and scene and put them into proper structure
             List<KeyPoint> keypointsList1 = mRDT.refKeypoints.toList();
             List<KeyPoint> keypointsList2 = inKeypoints.toList();
             List<Point> objList = new ArrayList<>();
             List<Point> sceneList = new ArrayList<>();
             for (int i=0; i<goodMatches.size(); i++) {
-                objList.add(keypointsList1.get(goodMatches.get(i).queryIdx).pt);
-                sceneList.add(keypointsList2.get(goodMatches.get(i).trainIdx).pt);
+                objList.add(keypointsList1.get(goodMatches.get(i).trainIdx).pt);
+                Point scenePt = keypointsList2.get(goodMatches.get(i).queryIdx).pt;
+                sceneList.add(new Point(scenePt.x + roi.x, scenePt.y + roi.y));
             }
             MatOfPoint2f objMat = new MatOfPoint2f();
             MatOfPoint2f sceneMat = new MatOfPoint2f();
@@ -315,23 +871,27 @@ public class ImageProcessor {
             sceneMat.fromList(sceneList);
 
             // Calculate homography matrix
-            Mat H = Calib3d.findHomography(objMat, sceneMat, Calib3d.RANSAC, RANSAC);
+            Mat inlierMask = new Mat();
+            Mat H = Calib3d.findHomography(objMat, sceneMat, HOMOGRAPHY_ESTIMATOR.getMethod(),
+                    RANSAC, inlierMask, HOMOGRAPHY_MAX_ITERATIONS, HOMOGRAPHY_CONFIDENCE);
+
+            // Count the matches that agreed with the homography
+            byte[] inliers = new byte[inlierMask.rows()];
+            if (inliers.length > 0)
+                inlierMask.get(0, 0, inliers);
+            List<Point> inlierList = new ArrayList<>();
+            for (int i = 0; i < inliers.length; i++) {
+                if (inliers[i] != 0)
+                    inlierList.add(sceneList.get(i));
+            }
 
             // Use homography matrix to find bounding box in scene if it is valid
-            if (H.cols() >= 3 && H.rows() >= 3) {
+            if (H.cols() >= 3 && H.rows() >= 3 && inlierList.size() >= HOMOGRAPHY_MIN_INLIERS) {
                 // Define corners of the reference image
-                Mat objCorners = new Mat(4, 1, CvType.CV_32FC2);
-                double[] a = new double[]{0, 0};
-                double[] b = new double[]{mRDT.refImg.cols()-1, 0};
-                double[] c = new double[]{mRDT.refImg.cols()-1, mRDT.refImg.rows()-1};
-                double[] d = new double[]{0, mRDT.refImg.rows()-1};
-                objCorners.put(0, 0, a);
-                objCorners.put(1, 0, b);
-                objCorners.put(2, 0, c);
-                objCorners.put(3, 0, d);
+                Mat objCorners = mRDT.getReferenceCorners();
 
                 // Get the corresponding corners in the scene
-                Mat sceneCorners = new Mat(4, 1, CvType.CV_32FC2);
+                Mat sceneCorners = mMatPool.acquire(4, 1, CvType.CV_32FC2);
                 perspectiveTransform(objCorners, sceneCorners, H);
 
                 // Extract corners for bounding box and put them in a MatOfPoint2f
@@ -349,85 +909,210 @@ public class ImageProcessor {
                         tlBoundary.x, tlBoundary.y, trBoundary.x, trBoundary.y,
                         brBoundary.x, brBoundary.y, blBoundary.x, blBoundary.y,
                         sceneCorners.width(), sceneCorners.height()));
-                ArrayList<Point> listOfBoundary = new ArrayList<>();
-                listOfBoundary.add(tlBoundary);
-                listOfBoundary.add(trBoundary);
-                listOfBoundary.add(brBoundary);
-                listOfBoundary.add(blBoundary);
-                boundary.fromList(listOfBoundary);
+                Point[] corners = {tlBoundary, trBoundary, brBoundary, blBoundary};
+                mMatPool.recycle(sceneCorners);
+
+                // Reject boundaries that cannot be a real RDT before any other checks
+                double minArea = HOMOGRAPHY_MIN_AREA_RATIO * scaledMat.total() / (scale*scale);
+                if (isDegenerateBoundary(corners, minArea)) {
+                    Log.d(TAG, "Degenerate boundary rejected");
+                } else {
+                    boundary.fromArray(corners);
+
+                    // Keep the matched keypoints that agreed with the homography
+                    inlierPoints.fromList(inlierList);
+
+                    // Measure how well the homography fits its own inliers
+                    quality.inlierCount = inlierList.size();
+                    quality.inlierRatio = (double) inlierList.size() / goodMatches.size();
+                    quality.reprojectionError = measureReprojectionError(objMat, sceneMat,
+                            inliers, H) / scale;
+                    quality.confidence = measureHomographyConfidence(quality);
+                    Log.d(TAG, String.format("%s inliers: %d (%.2f), " +
+                                    "reprojection error: %.2f, confidence: %.2f",
+                            HOMOGRAPHY_ESTIMATOR, quality.inlierCount, quality.inlierRatio,
+                            quality.reprojectionError, quality.confidence));
+                }
             }
             // Garbage collection
             H.release();
+            inlierMask.release();
             objMat.release();
             sceneMat.release();
         }
 
         // Garbage collection
-        scaledMat.release();
-        goodMatchesMat.release();
-        mask.release();
         inDescriptor.release();
         inKeypoints.release();
-        Log.d(TAG, "Detect RDT time: " + (System.currentTimeMillis()-currentTime));
         return boundary;
     }
 
     /**
-     * Calculates the brightness histogram of the candidate video frame
-     * @param inputMat: the candidate video frame (in grayscale)
-     * @return a 256-element histogram that quantifies the number of pixels at each
-     * brightness level for the inputMat
-     */
-    private float[] measureExposure(Mat inputMat) {
-        // Setup the histogram calculation
-        int mHistSizeNum = 256;
-        MatOfInt mHistSize = new MatOfInt(mHistSizeNum);
-        Mat hist = new Mat();
-        final float[] mBuff = new float[mHistSizeNum];
-        final float[] mBuff2 = new float[mHistSizeNum];
-        MatOfFloat histogramRanges = new MatOfFloat(0f, 256f);
-        MatOfInt mChannels[] = new MatOfInt[] { new MatOfInt(0)};
-        org.opencv.core.Size sizeRgba = inputMat.size();
-
-        // Calculate the grayscale histogram
-        Imgproc.calcHist(Arrays.asList(inputMat), mChannels[0], new Mat(), hist,
-                mHistSize, histogramRanges);
-        hist.get(0, 0, mBuff2);
-        Core.divide(hist, new Scalar(sizeRgba.area()), hist);
-        hist.get(0, 0, mBuff);
-        mChannels[0].release();
+     * Orders matches from the most distinctive (smallest descriptor distance) to the least
+     */
+    private static final Comparator<DMatch> BY_DISTANCE = new Comparator<DMatch>() {
+        @Override
+        public int compare(DMatch a, DMatch b) {
+            return Float.compare(a.distance, b.distance);
+        }
+    };
 
-        // Garbage collection
-        mHistSize.release();
-        histogramRanges.release();
-        hist.release();
-        return mBuff;
+    /**
+     * Determines if the corners produced by a homography cannot be a real RDT, i.e., they
+     * are not a convex quadrilateral (the homography folded or flipped the reference) or
+     * they cover too little of the frame
+     * @param corners: the corners of the bounding box (in order around the RDT)
+     * @param minArea: the smallest area that counts as an RDT
+     * @return whether the boundary should be thrown away
+     */
+    private static boolean isDegenerateBoundary(Point[] corners, double minArea) {
+        // Every turn around the quadrilateral must go the same way
+        double area = 0;
+        int sign = 0;
+        for (int i = 0; i < corners.length; i++) {
+            Point a = corners[i];
+            Point b = corners[(i+1) % corners.length];
+            Point c = corners[(i+2) % corners.length];
+            double cross = (b.x-a.x)*(c.y-b.y) - (b.y-a.y)*(c.x-b.x);
+            int turn = cross > 0 ? 1 : cross < 0 ? -1 : 0;
+            if (turn == 0 || (sign != 0 && turn != sign))
+                return true;
+            sign = turn;
+            area += a.x*b.y - b.x*a.y;
+        }
+        return Math.abs(area)/2 < minArea;
+    }
+
+    /**
+     * Measures how far the homography puts the inliers from where they were found
+     * @param objMat: the matched keypoints in the reference image
+     * @param sceneMat: the matched keypoints in the video frame
+     * @param inliers: the inlier mask from findHomography()
+     * @param H: the homography
+     * @return the mean reprojection error over the inliers (in the video frame's pixels)
+     */
+    private static double measureReprojectionError(MatOfPoint2f objMat, MatOfPoint2f sceneMat,
+                                                   byte[] inliers, Mat H) {
+        MatOfPoint2f projected = new MatOfPoint2f();
+        perspectiveTransform(objMat, projected, H);
+        Point[] projectedPoints = projected.toArray();
+        Point[] scenePoints = sceneMat.toArray();
+        projected.release();
+
+        double error = 0;
+        int count = 0;
+        for (int i = 0; i < inliers.length && i < scenePoints.length; i++) {
+            if (inliers[i] == 0)
+                continue;
+            error += Math.hypot(projectedPoints[i].x - scenePoints[i].x,
+                    projectedPoints[i].y - scenePoints[i].y);
+            count++;
+        }
+        return count > 0 ? error/count : Double.MAX_VALUE;
+    }
+
+    /**
+     * Summarizes the quality of a homography as a single number for gating frames
+     * @param quality: the inlier count, inlier ratio, and reprojection error
+     * @return 0 for an untrustworthy homography, up to 1 for one with plenty of inliers
+     * (see {@link Constants#HOMOGRAPHY_CONFIDENT_INLIERS}) that fits them closely
+     */
+    private static double measureHomographyConfidence(HomographyQuality quality) {
+        double support = Math.min(1.0,
+                (double) quality.inlierCount / HOMOGRAPHY_CONFIDENT_INLIERS);
+        double fit = Math.max(0.0,
+                1.0 - quality.reprojectionError / HOMOGRAPHY_MAX_REPROJECTION_ERROR);
+        return quality.inlierRatio * support * fit;
+    }
+
+    /**
+     * Switches to the RDT that was identified in the candidate video frames
+     * Note: this is only called while locating the RDT, so any state that depends on the
+     * previous RDT is thrown away; frames that were already captured keep their own RDT
+     * (see {@link RDTCaptureResult#rdt}), so nothing they might still use is released
+     * @param rdt: the RDT that was identified
+     */
+    private synchronized void setRDT(RDT rdt) {
+        if (mRDT == rdt)
+            return;
+        Log.d(TAG, "Switching to RDT: " + rdt.rdtName);
+        mRDT = rdt;
+        mDetectionRects.clear();
+        mTracker.reset();
+        mBoundaryFilter.reset();
+        mStaticScene.reset();
+        mQualityChecks.resetStats();
+    }
+
+    /**
+     * Returns the part of the downscaled video frame where the RDT is searched for, i.e., the
+     * horizontal band of the viewfinder, which only changes with the frame's resolution
+     * @param scaledSize: the size of the downscaled video frame
+     * @return the rectangle corresponding to the region of interest
+     */
+    private synchronized Rect getDetectionRect(Size scaledSize) {
+        Rect detectionRect = mDetectionRects.get(scaledSize);
+        if (detectionRect == null) {
+            int width = (int) scaledSize.width;
+            int height = (int) scaledSize.height;
+            int top = (int) Math.max(0, height*(1-mRDT.viewFinderScaleW/CROP_RATIO)/2);
+            detectionRect = new Rect(0, top, width, Math.max(1, height-2*top));
+            mDetectionRects.put(scaledSize, detectionRect);
+        }
+        return detectionRect;
+    }
+
+    /**
+     * Scales the corners of a bounding box, e.g., from the downscaled frame used for
+     * detection back to the candidate video frame
+     * @param boundary: the corners of the bounding box
+     * @param factor: the scale factor
+     * @return the scaled corners
+     */
+    private MatOfPoint2f scaleBoundary(MatOfPoint2f boundary, double factor) {
+        Point[] corners = boundary.toArray();
+        for (Point corner : corners) {
+            corner.x *= factor;
+            corner.y *= factor;
+        }
+        return new MatOfPoint2f(corners);
+    }
+
+    /**
+     * Measures the brightness of the candidate video frame and the sharpness of its viewfinder
+     * in a single pass over the luma plane (see {@link LumaStats})
+     * @param luma: the luma plane of the candidate video frame
+     * @param rowStride: the distance between the start of two rows of luma in bytes
+     * @param size: the size of the candidate video frame
+     * @param viewFinderRect: the viewfinder's region of the candidate video frame
+     * @return the brightness histogram, clipping, and Laplacian variance of the frame
+     */
+    private LumaStats measureLuma(ByteBuffer luma, int rowStride, Size size,
+                                  Rect viewFinderRect) {
+        // Resize the viewfinder to the scale of the reference before the Laplacian
+        double scale = mRDT.refImg.size().width / viewFinderRect.width;
+        int scaledCols = (int) Math.round(viewFinderRect.width * scale);
+        int scaledRows = (int) Math.round(viewFinderRect.height * scale);
+        return LumaStats.measure(luma, rowStride, (int) size.width, (int) size.height,
+                viewFinderRect, scaledCols, scaledRows, LUMA_SAMPLE_STEP);
     }
 
     /**
      * Determines whether the candidate video frame has sufficient lighting without being too bright
-     * @param inputMat: the candidate video frame (in grayscale)
+     * @param lumaStats: the brightness statistics of the candidate video frame
+     *                 (see {@link #measureLuma})
      * @return ExposureResult enum for whether the candidate video frame has a reasonable brightness
      */
-    private ExposureResult checkExposure(Mat inputMat) {
-        // Calculate the brightness histogram
-        float[] histograms = measureExposure(inputMat);
-
+    private ExposureResult checkExposure(LumaStats lumaStats) {
         // Identify the highest brightness level in the histogram
         // and the amount at the highest brightness
-        int maxWhite = 0;
-        float whiteCount = 0;
-        for (int i = 0; i < histograms.length; i++) {
-            if (histograms[i] > 0)
-                maxWhite = i;
-            if (i == histograms.length - 1)
-                whiteCount = histograms[i];
-        }
+        int maxWhite = lumaStats.maxWhite;
+        double whiteCount = lumaStats.clippingRatio;
 
         // Assess the brightness relative to thresholds
-        if (maxWhite >= OVER_EXPOSURE_THRESHOLD && whiteCount > OVER_EXPOSURE_WHITE_COUNT) {
+        if (maxWhite >= OVER_EXPOSURE_THRESHOLD && whiteCount > getOverExposureWhiteCount()) {
             return ExposureResult.OVER_EXPOSED;
-        } else if (maxWhite < UNDER_EXPOSURE_THRESHOLD) {
+        } else if (maxWhite < getUnderExposureThreshold()) {
             return ExposureResult.UNDER_EXPOSED;
         } else {
             return ExposureResult.NORMAL;
@@ -441,7 +1126,7 @@ public class ImageProcessor {
      */
     private double measureSharpness(Mat inputMat) {
         // Calculate the Laplacian
-        Mat des = new Mat();
+        Mat des = mMatPool.acquire(inputMat.rows(), inputMat.cols(), CvType.CV_64FC1);
         Laplacian(inputMat, des, CvType.CV_64F);
 
         // Calculate the mean and std
@@ -453,54 +1138,177 @@ public class ImageProcessor {
         double sharpness = pow(std.get(0,0)[0], 2);
 
         // Garbage collection
-        des.release();
+        mMatPool.recycle(des);
+        mean.release();
+        std.release();
         return sharpness;
     }
 
     /**
-     * Determines whether the candidate video frame is focused
-     * @param inputMat: the candidate video frame (in grayscale)
-     * @return whether the candidate video frame has a reasonable sharpness
+     * Measures how far the candidate video frame is from the exposure thresholds
+     * @param lumaStats: the brightness statistics of the candidate video frame
+     *                 (see {@link #measureLuma})
+     * @return 0 if the candidate video frame is at (or past) either threshold, up to 1 if it
+     * is far from both
      */
-    private boolean checkSharpness(Mat inputMat) {
-        // Resize the image to the scale of the reference
-        Mat resized = new Mat();
-        double scale = mRDT.refImg.size().width/inputMat.size().width;
-        resize(inputMat, resized,
-                new Size(inputMat.size().width*scale,inputMat.size().height*scale));
+    private double measureExposureMargin(LumaStats lumaStats) {
+        int maxWhite = lumaStats.maxWhite;
+        double whiteCount = lumaStats.clippingRatio;
 
-        // Calculate sharpness and assess relative to thresholds
-        double sharpness = measureSharpness(resized);
-        boolean isSharp = sharpness > (mRDT.refImgSharpness * (1-SHARPNESS_THRESHOLD));
+        // Distance above the under-exposure threshold
+        double underThreshold = getUnderExposureThreshold();
+        double underMargin = (maxWhite - underThreshold) / (255 - underThreshold);
 
-        // Garbage collection
-        inputMat.release();
-        resized.release();
-        return isSharp;
+        // Distance below the over-exposure threshold
+        double overMargin = 1.0;
+        if (maxWhite >= OVER_EXPOSURE_THRESHOLD)
+            overMargin = 1 - whiteCount / getOverExposureWhiteCount();
+
+        return max(0, min(underMargin, overMargin));
     }
 
     /**
-     * Identifies the center of the detected RDT
-     * @param boundary: the corners of the bounding box around the detected RDT
-     * @return the (x, y) coordinate corresponding to the center of the RDT
+     * Measures how far the candidate video frame's sharpness is above the threshold
+     * (it is focused if the margin is positive)
+     * @param sharpness: the Laplacian variance of the viewfinder at the scale of the
+     *                 reference (see {@link #measureLuma})
+     * @return the difference between the sharpness and the threshold, relative to the threshold
+     */
+    private double measureSharpnessMargin(double sharpness) {
+        // Calculate sharpness relative to thresholds
+        double threshold = mRDT.refImgSharpness * (1-getSharpnessThreshold());
+        return (sharpness - threshold) / threshold;
+    }
+
+    /**
+     * @return the sharpness threshold, adapted to the phone model if calibration is enabled
      */
-    private Point measureCentering (MatOfPoint2f boundary) {
-        RotatedRect rotatedRect = minAreaRect(boundary);
-        return rotatedRect.center;
+    private double getSharpnessThreshold() {
+        return mCalibrator != null ? mCalibrator.getSharpnessThreshold() : SHARPNESS_THRESHOLD;
+    }
+
+    /**
+     * @return the under-exposure threshold, adapted to the phone model if calibration is enabled
+     */
+    private double getUnderExposureThreshold() {
+        return mCalibrator != null ? mCalibrator.getUnderExposureThreshold() :
+                UNDER_EXPOSURE_THRESHOLD;
+    }
+
+    /**
+     * @return the largest fraction of saturated pixels, adapted to the phone model if
+     * calibration is enabled
+     */
+    private double getOverExposureWhiteCount() {
+        return mCalibrator != null ? mCalibrator.getOverExposureWhiteCount() :
+                OVER_EXPOSURE_WHITE_COUNT;
+    }
+
+    /**
+     * Builds the chain of built-in quality checks on the detected RDT's placement, size,
+     * orientation, homography, and glare
+     * Note: the declared costs are rough run times in milliseconds
+     * @return the chain of quality checks
+     */
+    private QualityCheckChain createQualityChecks() {
+        QualityCheckChain chain = new QualityCheckChain();
+        chain.add(new QualityCheck() {
+            @Override
+            public String getName() {
+                return "homography";
+            }
+
+            @Override
+            public double getCost() {
+                return 0.001;
+            }
+
+            @Override
+            public boolean check(QualityContext context) {
+                return context.getHomographyConfidence() >= HOMOGRAPHY_MIN_CONFIDENCE;
+            }
+        });
+        chain.add(new QualityCheck() {
+            @Override
+            public String getName() {
+                return "centering";
+            }
+
+            @Override
+            public double getCost() {
+                return 0.01;
+            }
+
+            @Override
+            public boolean check(QualityContext context) {
+                return checkCentering(context.getCenter(), context.getFrameSize());
+            }
+        });
+        chain.add(new QualityCheck() {
+            @Override
+            public String getName() {
+                return "size";
+            }
+
+            @Override
+            public double getCost() {
+                return 0.01;
+            }
+
+            @Override
+            public boolean check(QualityContext context) {
+                return checkSize(context.getHeight(), context.getFrameSize()) ==
+                        SizeResult.RIGHT_SIZE;
+            }
+        });
+        chain.add(new QualityCheck() {
+            @Override
+            public String getName() {
+                return "orientation";
+            }
+
+            @Override
+            public double getCost() {
+                return 0.01;
+            }
+
+            @Override
+            public boolean check(QualityContext context) {
+                return checkOrientation(context.getAngle());
+            }
+        });
+        chain.add(new QualityCheck() {
+            @Override
+            public String getName() {
+                return "glare";
+            }
+
+            @Override
+            public double getCost() {
+                return 5;
+            }
+
+            @Override
+            public boolean check(QualityContext context) {
+                // The ratio is also used for ranking frames, so always measure it
+                ResultWindowStats stats = context.getResultWindowStats();
+                context.glareRatio = measureGlareRatio(stats);
+                context.isGlared = context.getRDT().checkGlare && checkGlare(stats);
+                return !context.isGlared;
+            }
+        });
+        return chain;
     }
 
     /**
      * Determines whether the detected RDT is close enough to the
      * center of the candidate video frame
-     * @param boundary: the corners of the bounding box around the detected RDT
+     * @param center: the center of the detected RDT (see {@link QualityContext#getCenter()})
      * @param size: the size of the candidate video frame
      * @return whether the boundary of the detected RDT is close enough to the center of the
      * screen for consistent interpretation
      */
-    private boolean checkCentering(MatOfPoint2f boundary, Size size) {
-        // Calculate the center of the detected RDT
-        Point center = measureCentering(boundary);
-
+    private boolean checkCentering(Point center, Size size) {
         // Calculate the center of the screen
         Point trueCenter = new Point(size.width/2, size.height/2);
 
@@ -514,41 +1322,26 @@ public class ImageProcessor {
     }
 
     /**
-     * Measures the desired dimension of the bounding box around the detected RDT
-     * @param boundary: the corners of the bounding box around the detected RDT
-     * @param isHeight: whether the output should be the height (true) or width (false)
-     * @return the desired dimension in pixels
-     */
-    private double measureSize(MatOfPoint2f boundary, boolean isHeight) {
-        // Calculate a non-skew rectangle around the boundary
-        RotatedRect rotatedRect = minAreaRect(boundary);
-
-        // Pick the height and width relative to camera perspective according to angle
-        boolean isUpright = rotatedRect.size.height > rotatedRect.size.width;
-        double height, width;
-        if (isUpright) {
-            height = rotatedRect.size.height;
-            width = rotatedRect.size.width;
-        } else {
-            height = rotatedRect.size.width;
-            width = rotatedRect.size.height;
-        }
-
-        // Return the desired dimension
-        return isHeight ? height : width;
+     * Measures how far the detected RDT is from the center of the candidate video frame
+     * @param center: the center of the detected RDT (see {@link QualityContext#getCenter()})
+     * @param size: the size of the candidate video frame
+     * @return the larger of the horizontal and vertical distance from the center, relative to
+     * the thresholds used by {@link #checkCentering} (less than 1 means it is centered)
+     */
+    private double measureCenteringError(Point center, Size size) {
+        double xError = abs(center.x - size.width/2) / (size.width*POSITION_THRESHOLD);
+        double yError = abs(center.y - size.height/2) / (size.height*POSITION_THRESHOLD);
+        return max(xError, yError);
     }
 
     /**
      * Determines whether the detected RDT is a reasonable size within the camera frame
-     * @param boundary: the corners of the bounding box around the detected RDT
+     * @param height: the height of the detected RDT (see {@link QualityContext#getHeight()})
      * @param size: the size of the candidate video frame
      * @return whether the boundary of the detected RDT is has a reasonable size
      * for consistent interpretation
      */
-    private SizeResult checkSize(MatOfPoint2f boundary, Size size) {
-        // Get the height of the bounding box
-        double height = measureSize(boundary, true);
-
+    private SizeResult checkSize(double height, Size size) {
         // Calculate quality bounds relative to the viewfinder
         double lowerBound = size.width * (mRDT.viewFinderScaleH - SIZE_THRESHOLD);
         double upperBound = size.width * (mRDT.viewFinderScaleH + SIZE_THRESHOLD);
@@ -565,109 +1358,162 @@ public class ImageProcessor {
     }
 
     /**
-     * Measures the orientation of the RDT relative to the camera's perspective
-     * (assumes vertical RDT where height > width)
+     * Determines whether the detected RDT is a reasonable orientation within the camera frame
+     * @param angle: the orientation of the detected RDT (see {@link QualityContext#getAngle()})
+     * @return whether the detected RDT has a reasonable orientation for
+     * consistent interpretation
+     */
+    private boolean checkOrientation(double angle) {
+        return abs(angle) < ANGLE_THRESHOLD;
+    }
+
+    /**
+     * Measures the lightness and the colour of the detected RDT's result window in a single
+     * pass over the pixels inside its outline in the video frame (see {@link ResultWindowStats})
+     * Note: if the RDT has fiducials, the result window can only be located after the
+     * perspective correction, so it is cropped with {@link #cropResultWindow} instead
+     * @param rdt: the RDT that was detected in the candidate video frame
+     * @param inputMat: the candidate video frame (in RGBA)
      * @param boundary: the corners of the bounding box around the detected RDT
-     * @return the orientation of the RDT's vertical axis relative to the vertical axis of
-     * the video frame (0° = upright, 90° = right-to-left, 180° = upside-down, 270° = left-to-right)
-     */
-    private double measureOrientation(MatOfPoint2f boundary) {
-        // Calculate a non-skew rectangle around the boundary
-        RotatedRect rotatedRect = minAreaRect(boundary);
-
-        // Correct orientation so that it is relative to camera perspective
-        boolean isUpright = rotatedRect.size.height > rotatedRect.size.width;
-        if (isUpright) {
-            if (rotatedRect.angle < 0)
-                return 90 + rotatedRect.angle;
-            else
-                return rotatedRect.angle - 90;
-        } else {
-            return rotatedRect.angle;
+     * @param offset: the horizontal fine-tune offset for the result window
+     * @return the statistics of the result window, or null if it is empty or off the frame
+     */
+    ResultWindowStats measureResultWindow(RDT rdt, Mat inputMat, MatOfPoint2f boundary,
+                                          int offset) {
+        if (rdt.hasFiducial) {
+            Mat resultWindowMat = cropResultWindow(rdt, inputMat, boundary, offset);
+            ResultWindowStats stats = measureWindowPixels(resultWindowMat, new double[] {
+                    -0.5, -0.5, resultWindowMat.cols() - 0.5, -0.5,
+                    resultWindowMat.cols() - 0.5, resultWindowMat.rows() - 0.5,
+                    -0.5, resultWindowMat.rows() - 0.5});
+            mMatPool.recycle(resultWindowMat);
+            return stats;
+        }
+        if (boundary.rows() != 4)
+            return null;
+
+        // Calculate the perspective transformation matrix that maps the corners of the
+        // reference image to the corners of the detected RDT
+        Mat M = getPerspectiveTransform(rdt.getReferenceCorners(), boundary);
+        double[] h = new double[9];
+        M.get(0, 0, h);
+        M.release();
+
+        // Project the outline of the result window's pixels into the video frame
+        Rect window = rdt.resultWindowRect;
+        double left = window.x + offset - 0.5;
+        double top = window.y - 0.5;
+        double right = left + window.width;
+        double bottom = top + window.height;
+        double[] corners = {left, top, right, top, right, bottom, left, bottom};
+        for (int i = 0; i < corners.length; i += 2) {
+            double x = corners[i];
+            double y = corners[i + 1];
+            double w = h[6]*x + h[7]*y + h[8];
+            corners[i] = (h[0]*x + h[1]*y + h[2]) / w;
+            corners[i + 1] = (h[3]*x + h[4]*y + h[5]) / w;
         }
+        return measureWindowPixels(inputMat, corners);
     }
 
     /**
-     * Determines whether the detected RDT is a reasonable orientation within the camera frame
-     * @param boundary: the corners of the bounding box around the detected RDT
-     * @return whether the `boundary` of the detected RDT has a reasonable orientation for
-     * consistent interpretation
+     * Copies out the pixels within the bounding box of a quadrilateral and measures the ones
+     * inside it (see {@link ResultWindowStats#measure})
+     * @param inputMat: the image (in RGBA)
+     * @param corners: the quadrilateral's corners within inputMat, as x0, y0, x1, y1, ...
+     * @return the statistics of the pixels inside, or null if there are none
      */
-    private boolean checkOrientation(MatOfPoint2f boundary) {
-        double angle = measureOrientation(boundary);
-        return abs(angle) < ANGLE_THRESHOLD;
+    private ResultWindowStats measureWindowPixels(Mat inputMat, double[] corners) {
+        double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE;
+        double maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+        for (int i = 0; i < corners.length; i += 2) {
+            minX = min(minX, corners[i]);
+            maxX = max(maxX, corners[i]);
+            minY = min(minY, corners[i + 1]);
+            maxY = max(maxY, corners[i + 1]);
+        }
+        int x1 = (int) max(0, Math.floor(minX));
+        int y1 = (int) max(0, Math.floor(minY));
+        int x2 = (int) min(inputMat.cols(), Math.ceil(maxX) + 1);
+        int y2 = (int) min(inputMat.rows(), Math.ceil(maxY) + 1);
+        if (x2 <= x1 || y2 <= y1 || inputMat.channels() < 3)
+            return null;
+
+        // Only the bounding box is copied, which is small next to the frame
+        int channels = inputMat.channels();
+        byte[] data = new byte[(x2 - x1) * (y2 - y1) * channels];
+        Mat roiMat = inputMat.submat(y1, y2, x1, x2);
+        roiMat.get(0, 0, data);
+        roiMat.release();
+
+        double[] shifted = new double[corners.length];
+        for (int i = 0; i < corners.length; i += 2) {
+            shifted[i] = corners[i] - x1;
+            shifted[i + 1] = corners[i + 1] - y1;
+        }
+        return ResultWindowStats.measure(data, x2 - x1, y2 - y1, channels, shifted,
+                BLOOD_COLOR_LOW_HUE_LOWER, BLOOD_COLOR_LOW_HUE_UPPER,
+                BLOOD_COLOR_HIGH_HUE_LOWER, BLOOD_COLOR_HIGH_HUE_UPPER);
     }
 
     /**
      * Determines if there is glare within the detected RDT's result window (often due to
      * protective covering of the immunoassay)
-     * @param inputMat: the candidate video frame (in grayscale)
-     * @param boundary: the corners of the bounding box around the detected RDT
+     * @param stats: the result of {@link #measureResultWindow}
      * @return whether there is glare within the detected RDT's result window
      */
-    private boolean checkGlare(Mat inputMat, MatOfPoint2f boundary) {
-        // Crop the image around the RDT's result window
-        Mat resultWindowMat = cropResultWindow(inputMat, boundary);
-
-        if (resultWindowMat.height() == 0 || resultWindowMat.width() == 0)
+    private boolean checkGlare(ResultWindowStats stats) {
+        if (stats == null)
             return true;
 
-        // Convert the image to HLS
-        Mat hls = new Mat();
-        cvtColor(resultWindowMat, hls, COLOR_BGR2HLS);
-
-        // Calculate brightness histogram across L channel
-        ArrayList<Mat> channels = new ArrayList<>();
-        Core.split(hls, channels);
-        float[] histograms = measureExposure(channels.get(1));
-
-        // Identify the highest brightness level in the histogram
-        // and the amount at the highest brightness
-        int maxWhite = 0;
-        float clippingCount = 0;
-        for (int i = 0; i < histograms.length; i++) {
-            if (histograms[i] > 0)
-                maxWhite = i;
-            if (i == histograms.length - 1)
-                clippingCount = histograms[i];
-        }
+        // Identify the highest lightness level in the result window
+        // and the amount at the highest lightness
+        int maxWhite = stats.maxLightness;
+        double clippingCount = stats.clippingRatio;
         Log.d(TAG, String.format("maxWhite: %d, clippingCount: %.20f", maxWhite, clippingCount));
 
         // Assess glare relative to thresholds
         return maxWhite >= GLARE_WHITE_VALUE || clippingCount > GLARE_WHITE_RATIO;
     }
 
+    /**
+     * Measures how close the brightest part of the detected RDT's result window is to glare
+     * @param stats: the result of {@link #measureResultWindow}
+     * @return the highest lightness level relative to {@link Constants#GLARE_WHITE_VALUE}
+     * (less than 1 means there is no glare)
+     */
+    private double measureGlareRatio(ResultWindowStats stats) {
+        if (stats == null)
+            return Double.MAX_VALUE;
+        return (double) stats.maxLightness / GLARE_WHITE_VALUE;
+    }
+
     /**
      * Determines if there is blood within the detected RDT's result window
-     * @param inputMat: the candidate video frame (in grayscale)
+     * @param inputMat: the candidate video frame (in RGBA)
      * @param boundary: the corners of the bounding box around the detected RDT
-     * @param offset: the fine-tune offset for the bounding box
+     * @param offset: the horizontal fine-tune offset for the result window
      * @return whether there is blood within the detected RDT's result window
      */
     public boolean checkBlood(Mat inputMat, MatOfPoint2f boundary, int offset) {
-        // Crop the image around the RDT's result window
-        Mat resultWindowMat = cropResultWindow(inputMat, boundary, offset);
+        return checkBlood(mRDT, inputMat, boundary, offset);
+    }
 
-        if (resultWindowMat.height() == 0 || resultWindowMat.width() == 0)
+    /**
+     * Determines if there is blood within the detected RDT's result window
+     * @param rdt: the RDT that was detected in the candidate video frame
+     * @param inputMat: the candidate video frame (in RGBA)
+     * @param boundary: the corners of the bounding box around the detected RDT
+     * @param offset: the horizontal fine-tune offset for the result window
+     * @return whether there is blood within the detected RDT's result window
+     */
+    private boolean checkBlood(RDT rdt, Mat inputMat, MatOfPoint2f boundary, int offset) {
+        ResultWindowStats stats = measureResultWindow(rdt, inputMat, boundary, offset);
+        if (stats == null)
             return true;
 
-        // Convert the image to HSV
-        Mat hsv = new Mat();
-
-        cvtColor(resultWindowMat, hsv, Imgproc.COLOR_BGR2HSV);
-
-        // Filter image according to two definitions of red
-        // (note: H in HSV is circular, so red can have low and high H values)
-        Mat lowerRedThresh = new Mat();
-        Mat upperRedThresh = new Mat();
-        Mat redThresh = new Mat();
-        inRange(hsv, BLOOD_COLOR_LOW_HUE_LOWER, BLOOD_COLOR_LOW_HUE_UPPER, lowerRedThresh);
-        inRange(hsv, BLOOD_COLOR_HIGH_HUE_LOWER, BLOOD_COLOR_HIGH_HUE_UPPER, upperRedThresh);
-        addWeighted(lowerRedThresh, 1.0, upperRedThresh, 1.0, 0.0,  redThresh);
-
         // Determine if there is too much blood for analysis
-        double bloodPercentage = countNonZero(redThresh) / redThresh.size().area();
-        return bloodPercentage > BLOOD_PERCENTAGE_THRESHOLD;
+        return stats.redRatio > BLOOD_PERCENTAGE_THRESHOLD;
     }
 
     /**
@@ -750,72 +1596,156 @@ public class ImageProcessor {
 
     /**
      * Crops out the detected RDT's result window as a rectangle
+     * @param rdt: the RDT that was detected in the candidate video frame
      * @param inputMat: the candidate video frame (in grayscale)
      * @param boundary: the corners of the bounding box around the detected RDT
      * @return the RDT image tightly cropped and de-skewed around the result window
      */
-    private Mat cropResultWindow(Mat inputMat, MatOfPoint2f boundary) {
-        return cropResultWindow(inputMat, boundary, 0);
+    Mat cropResultWindow(RDT rdt, Mat inputMat, MatOfPoint2f boundary) {
+        return cropResultWindow(rdt, inputMat, boundary, 0);
     }
 
     /**
      * Crops out the detected RDT's result window as a rectangle
+     * @param rdt: the RDT that was detected in the candidate video frame
      * @param inputMat: the candidate video frame (in grayscale)
      * @param boundary: the corners of the bounding box around the detected RDT
-     * @param offset: offset of result window for fine-tuned cropping
+     * @param offset: horizontal offset of result window for fine-tuned cropping
      * @return the RDT image tightly cropped and de-skewed around the result window
      */
-    private Mat cropResultWindow(Mat inputMat, MatOfPoint2f boundary, int offset) {
-        // Get the corners of the reference RDT image
-        Mat refBoundary = new Mat(4, 1, CvType.CV_32FC2);
-        double[] a = new double[]{0, 0};
-        double[] b = new double[]{mRDT.refImg.cols() - 1, 0};
-        double[] c = new double[]{mRDT.refImg.cols() - 1, mRDT.refImg.rows() - 1};
-        double[] d = new double[]{0, mRDT.refImg.rows() - 1};
-        refBoundary.put(0, 0, a);
-        refBoundary.put(1, 0, b);
-        refBoundary.put(2, 0, c);
-        refBoundary.put(3, 0, d);
-
+    private Mat cropResultWindow(RDT rdt, Mat inputMat, MatOfPoint2f boundary, int offset) {
         // Calculate the perspective transformation matrix that maps the corners of the
         // detected RDT to the corners of the reference image
-        Mat M = getPerspectiveTransform(boundary, refBoundary);
+        Mat M = getPerspectiveTransform(boundary, rdt.getReferenceCorners());
 
         // Apply perspective correction to the RDT in the video frame
-        Mat correctedMat = new Mat(mRDT.refImg.rows(), mRDT.refImg.cols(), mRDT.refImg.type());
-        warpPerspective(inputMat, correctedMat, M, new Size(mRDT.refImg.cols(), mRDT.refImg.rows()));
+        Mat correctedMat = mMatPool.acquire(rdt.refImg.rows(), rdt.refImg.cols(),
+                inputMat.type());
+        warpPerspective(inputMat, correctedMat, M, new Size(rdt.refImg.cols(), rdt.refImg.rows()));
+        M.release();
 
         // If fiducials are specified, use them to improve the estimate of the
         // result window's location, otherwise use the default rectangle specified by the user
-        Rect resultWindowRect = mRDT.hasFiducial ?
-                cropResultWindowWithFidicual(correctedMat, offset) :
-                new Rect(mRDT.resultWindowRect.x + offset, mRDT.resultWindowRect.y + offset, mRDT.resultWindowRect.width, mRDT.resultWindowRect.height);
+        Rect resultWindowRect = rdt.hasFiducial ?
+                cropResultWindowWithFidicual(rdt, correctedMat, offset) :
+                new Rect(rdt.resultWindowRect.x + offset, rdt.resultWindowRect.y, rdt.resultWindowRect.width, rdt.resultWindowRect.height);
 
-        if (resultWindowRect.width == 0 || resultWindowRect.height == 0)
+        if (resultWindowRect.width == 0 || resultWindowRect.height == 0) {
+            mMatPool.recycle(correctedMat);
             return new Mat();
+        }
 
         Log.d(TAG, String.format("result rect: %d, %d, %d, %d, %d", resultWindowRect.x, resultWindowRect.y, resultWindowRect.width, resultWindowRect.height, offset));
+        Mat resultWindowMat = mMatPool.acquire(rdt.resultWindowRect.height,
+                rdt.resultWindowRect.width, correctedMat.type());
+
         // Resize the window so it's the same size as in the template
-        correctedMat = new Mat(correctedMat, resultWindowRect);
-        if (correctedMat.width() > 0 && correctedMat.height() > 0)
-            resize(correctedMat, correctedMat,
-                    new Size(mRDT.resultWindowRect.width, mRDT.resultWindowRect.height));
-        return correctedMat;
+        Mat windowMat = new Mat(correctedMat, resultWindowRect);
+        if (windowMat.width() > 0 && windowMat.height() > 0)
+            resize(windowMat, resultWindowMat,
+                    new Size(rdt.resultWindowRect.width, rdt.resultWindowRect.height));
+        windowMat.release();
+
+        // Garbage collection
+        mMatPool.recycle(correctedMat);
+        return resultWindowMat;
+    }
+
+    /**
+     * Refines the perspective correction around the result window by aligning the corrected
+     * RDT image with the reference image using ECC (enhanced correlation coefficient)
+     * maximization, which removes the sub-pixel error that the homography leaves behind
+     * Note: only the region around the result window is perspective-corrected
+     * @param rdt: the RDT that was detected in the candidate video frame
+     * @param inputMat: the candidate video frame (in RGBA)
+     * @param M: the perspective transformation from the video frame to the reference image
+     * @param resultWindowRect: the result window within the reference image
+     * @return the 2x3 affine warp (row-major) that maps the reference image's coordinates to
+     * the perspective-corrected frame's around the result window,
+     * or null if the alignment did not converge
+     */
+    private double[] alignResultWindow(RDT rdt, Mat inputMat, Mat M, Rect resultWindowRect) {
+        double currentTime = System.currentTimeMillis();
+
+        // Only align a small region around the result window
+        int x1 = max(0, resultWindowRect.x - ECC_ALIGNMENT_MARGIN);
+        int y1 = max(0, resultWindowRect.y - ECC_ALIGNMENT_MARGIN);
+        int x2 = min(rdt.refImg.cols(),
+                resultWindowRect.x + resultWindowRect.width + ECC_ALIGNMENT_MARGIN);
+        int y2 = min(rdt.refImg.rows(),
+                resultWindowRect.y + resultWindowRect.height + ECC_ALIGNMENT_MARGIN);
+        if (x2 - x1 < 2 || y2 - y1 < 2)
+            return null;
+        Rect roi = new Rect(x1, y1, x2 - x1, y2 - y1);
+
+        // Apply perspective correction to the region alone
+        // (by moving its top-left corner to the origin after the homography)
+        Mat T = new Mat(3, 3, CvType.CV_64F);
+        T.put(0, 0, 1, 0, -x1, 0, 1, -y1, 0, 0, 1);
+        Mat roiTransform = new Mat();
+        Core.gemm(T, M, 1, mNoMask, 0, roiTransform);
+        Mat roiMat = mMatPool.acquire(roi.height, roi.width, inputMat.type());
+        warpPerspective(inputMat, roiMat, roiTransform, roi.size());
+        T.release();
+        roiTransform.release();
+
+        // Prepare the region the same way as the reference image
+        Mat templateMat = rdt.refImg.submat(roi);
+        Mat grayMat = mMatPool.acquire(roi.height, roi.width, CV_8U);
+        cvtColor(roiMat, grayMat, Imgproc.COLOR_RGBA2GRAY);
+        Size kernel = new Size(SHARPNESS_GAUSSIAN_BLUR_WINDOW, SHARPNESS_GAUSSIAN_BLUR_WINDOW);
+        Imgproc.GaussianBlur(grayMat, grayMat, kernel, 0, 0);
+
+        // Estimate the warp within the region (starting from no correction at all)
+        Mat warpMatrix = Mat.eye(2, 3, CvType.CV_32F);
+        TermCriteria criteria = new TermCriteria(TermCriteria.COUNT+TermCriteria.EPS,
+                ECC_MAX_ITERATIONS, ECC_EPSILON);
+        double[] warp = null;
+        try {
+            double correlation = Video.findTransformECC(templateMat, grayMat, warpMatrix,
+                    ECC_MOTION_TYPE, criteria, mNoMask);
+            float[] w = new float[6];
+            warpMatrix.get(0, 0, w);
+            Log.d(TAG, String.format("ECC correlation: %.3f, shift: (%.2f, %.2f), time: %.0f",
+                    correlation, w[2], w[5], System.currentTimeMillis()-currentTime));
+
+            // Only trust the warp if the region actually looks like the reference
+            // and it did not wander off
+            if (correlation >= ECC_MIN_CORRELATION &&
+                    abs(w[2]) <= ECC_ALIGNMENT_MARGIN && abs(w[5]) <= ECC_ALIGNMENT_MARGIN) {
+                // Shift the warp from the region's coordinates to the reference image's
+                warp = new double[] {
+                        w[0], w[1], w[2] + x1 - (w[0]*x1 + w[1]*y1),
+                        w[3], w[4], w[5] + y1 - (w[3]*x1 + w[4]*y1)
+                };
+            }
+        } catch (CvException e) {
+            // findTransformECC() throws if the iterations diverge
+            e.printStackTrace();
+        }
+
+        // Garbage collection
+        templateMat.release();
+        mMatPool.recycle(roiMat);
+        mMatPool.recycle(grayMat);
+        warpMatrix.release();
+        return warp;
     }
 
     /**
      * Uses color clustering to identify explicit 'fiducials' (densely colored markers) on the
      * detected RDT that can be used as reference points for locating the result window
+     * @param rdt: the RDT that was detected in the candidate video frame
      * @param inputMat: the candidate video frame (in RGBA and de-skewed)
      * @param offset: offset of result window for fine-tuned cropping
      * @return the RDT image tightly cropped and de-skewed around the result window
      */
-    private Rect cropResultWindowWithFidicual(Mat inputMat, int offset) {
+    private Rect cropResultWindowWithFidicual(RDT rdt, Mat inputMat, int offset) {
         // Flatten the input data
-        Mat data = new Mat();
-        inputMat.convertTo(data, CV_32F);
-        cvtColor(data, data, COLOR_RGBA2RGB);
-        data = data.reshape(1, (int) data.total());
+        Mat pixels = new Mat();
+        inputMat.convertTo(pixels, CV_32F);
+        cvtColor(pixels, pixels, COLOR_RGBA2RGB);
+        Mat data = pixels.reshape(1, (int) pixels.total());
 
         // Run k-means clustering
         Mat centers = new Mat();
@@ -826,28 +1756,29 @@ public class ImageProcessor {
                 10, KMEANS_PP_CENTERS, centers);
 
         // Extract output of k-means clustering
-        centers = centers.reshape(3, centers.rows());
-        data = data.reshape(3, data.rows());
-        for (int i=0; i<data.rows(); i++) {
+        Mat centerColors = centers.reshape(3, centers.rows());
+        Mat flatPixels = data.reshape(3, data.rows());
+        for (int i=0; i<flatPixels.rows(); i++) {
             int centerId = (int) labels.get(i,0)[0];
-            data.put(i, 0, centers.get(centerId,0));
+            flatPixels.put(i, 0, centerColors.get(centerId,0));
         }
-        data = data.reshape(3, inputMat.rows());
-        data.convertTo(data, CV_8UC3);
+        Mat clustered = mMatPool.acquire(inputMat.rows(), inputMat.cols(), CV_8UC3);
+        pixels.convertTo(clustered, CV_8UC3);
 
         // Identify the darkest cluster
         double minCenterBrightness = Double.MAX_VALUE;
-        for (int i=0; i < centers.rows(); i++) {
-            double[] center = centers.get(i, 0);
+        for (int i=0; i < centerColors.rows(); i++) {
+            double[] center = centerColors.get(i, 0);
             double yval = ImageUtil.rgbToY(center);
             if (yval < minCenterBrightness)
                 minCenterBrightness = yval;
         }
 
         // Threshold the image based on the darkest cluster's brightness
-        cvtColor(data, data, COLOR_RGB2GRAY);
-        Mat threshold = new Mat();
-        Imgproc.threshold(data, threshold, minCenterBrightness, 255, THRESH_BINARY_INV);
+        Mat clusteredGray = mMatPool.acquire(inputMat.rows(), inputMat.cols(), CV_8U);
+        cvtColor(clustered, clusteredGray, COLOR_RGB2GRAY);
+        Mat threshold = mMatPool.acquire(inputMat.rows(), inputMat.cols(), CV_8U);
+        Imgproc.threshold(clusteredGray, threshold, minCenterBrightness, 255, THRESH_BINARY_INV);
 
         // Smooth the binary mask
         Mat element_erode = Imgproc.getStructuringElement(Imgproc.MORPH_ELLIPSE, new Size(5, 5));
@@ -868,7 +1799,7 @@ public class ImageProcessor {
             Rect rect = Imgproc.boundingRect(contours.get(i));
             double rectPos = rect.x + rect.width;
 
-            for (Rect trueFiducialRect: mRDT.fiducialRects) {
+            for (Rect trueFiducialRect: rdt.fiducialRects) {
                 if (trueFiducialRect.x + trueFiducialRect.width - Constants.FIDUCIAL_THRESHOLD < rectPos && rectPos < trueFiducialRect.x + trueFiducialRect.width + Constants.FIDUCIAL_THRESHOLD &&
                         trueFiducialRect.height - Constants.FIDUCIAL_THRESHOLD < rect.height &&
                         trueFiducialRect.width - Constants.FIDUCIAL_THRESHOLD < rect.width && rect.width < trueFiducialRect.width + Constants.FIDUCIAL_THRESHOLD) {
@@ -880,7 +1811,7 @@ public class ImageProcessor {
         // If the correct number of fiducials was found,
         // find the position of the result window relative to them
         Rect resultWindowMat = new Rect(0, 0, 0, 0);
-        if (fiducialRects.size() == mRDT.fiducials.length()) {
+        if (fiducialRects.size() == rdt.fiducials.length()) {
             // Find the average fiducial position
             double rectBR0 = fiducialRects.get(0).x + fiducialRects.get(0).width;
             double rectBR1 = fiducialRects.get(0).x + fiducialRects.get(0).width;
@@ -890,27 +1821,143 @@ public class ImageProcessor {
             int midpoint = (int) ((rectBR0 + rectBR1) / 2);
 
             // Locate the result window relative the fiducials
-            Point tl = new Point(midpoint + mRDT.distanctFromFiducialToResultWindow + offset,
-                    mRDT.resultWindowRect.y);
-            Point br = new Point(midpoint + mRDT.distanctFromFiducialToResultWindow + mRDT.resultWindowRect.width + offset,
-                    mRDT.resultWindowRect.y+mRDT.resultWindowRect.height);
+            Point tl = new Point(midpoint + rdt.distanctFromFiducialToResultWindow + offset,
+                    rdt.resultWindowRect.y);
+            Point br = new Point(midpoint + rdt.distanctFromFiducialToResultWindow + rdt.resultWindowRect.width + offset,
+                    rdt.resultWindowRect.y+rdt.resultWindowRect.height);
             resultWindowMat = new Rect(tl, br);
         }
 
         // Garbage collection
         labels.release();
         centers.release();
+        centerColors.release();
+        pixels.release();
         data.release();
-        threshold.release();
+        flatPixels.release();
+        mMatPool.recycle(clustered);
+        mMatPool.recycle(clusteredGray);
+        mMatPool.recycle(threshold);
         element_erode.release();
         element_dilate.release();
+        hierarchy.release();
+        for (MatOfPoint contour : contours)
+            contour.release();
         return resultWindowMat;
     }
 
+    /**
+     * Crops out the detected RDT's result window along with a margin of columns on either
+     * side, warping only that region of the video frame straight to the template's scale
+     * so that the offset search in {@link #interpretRDT} can shift over it without another warp
+     * Note: with ECC alignment, the same single warp goes through the refined placement
+     * (see {@link #alignResultWindow}), which leaves nothing to search unless the alignment fails
+     * @param rdt: the RDT that was detected in the candidate video frame
+     * @param inputMat: the candidate video frame (in RGBA)
+     * @param boundary: the corners of the bounding box around the detected RDT
+     * @param margin: the number of columns to include on either side of the result window
+     * @param resultWindowMat: receives the result window, 2 * margin columns wider than in the
+     *                       template (or is left empty if there is no result window)
+     * @return whether the result window was aligned with the reference image
+     */
+    private boolean rectifyResultWindow(RDT rdt, Mat inputMat, MatOfPoint2f boundary,
+                                        int margin, Mat resultWindowMat) {
+        // Calculate the perspective transformation matrix that maps the corners of the
+        // detected RDT to the corners of the reference image
+        Mat M = getPerspectiveTransform(boundary, rdt.getReferenceCorners());
+
+        // Fiducials can only be found in the whole perspective-corrected image
+        Rect resultWindowRect = rdt.resultWindowRect;
+        if (rdt.hasFiducial) {
+            Mat correctedMat = mMatPool.acquire(rdt.refImg.rows(), rdt.refImg.cols(),
+                    inputMat.type());
+            warpPerspective(inputMat, correctedMat, M,
+                    new Size(rdt.refImg.cols(), rdt.refImg.rows()));
+            resultWindowRect = cropResultWindowWithFidicual(rdt, correctedMat, 0);
+            mMatPool.recycle(correctedMat);
+        }
+        if (resultWindowRect.width == 0 || resultWindowRect.height == 0) {
+            M.release();
+            return false;
+        }
+
+        // Refine the placement of the result window (no correction if that fails)
+        double[] warp = ECC_ALIGNMENT_ENABLED ?
+                alignResultWindow(rdt, inputMat, M, resultWindowRect) : null;
+        double[] w = warp != null ? warp : new double[] {1, 0, 0, 0, 1, 0};
+
+        // Map each pixel of the (resized) window and its margins to the reference image,
+        // then through the warp, and back into the video frame, so only the window is filled in
+        double sx = (double) resultWindowRect.width / rdt.resultWindowRect.width;
+        double sy = (double) resultWindowRect.height / rdt.resultWindowRect.height;
+        double x = resultWindowRect.x - margin * sx;
+        double y = resultWindowRect.y;
+        Mat A = new Mat(3, 3, CvType.CV_64F);
+        A.put(0, 0, w[0]*sx, w[1]*sy, w[0]*x + w[1]*y + w[2],
+                w[3]*sx, w[4]*sy, w[3]*x + w[4]*y + w[5],
+                0, 0, 1);
+        Mat MInv = M.inv();
+        Mat windowTransform = new Mat();
+        Core.gemm(MInv, A, 1, mNoMask, 0, windowTransform);
+
+        // Apply perspective correction to the result window and its margins
+        resultWindowMat.create(rdt.resultWindowRect.height,
+                rdt.resultWindowRect.width + 2 * margin, inputMat.type());
+        warpPerspective(inputMat, resultWindowMat, windowTransform, resultWindowMat.size(),
+                Imgproc.INTER_LINEAR + Imgproc.WARP_INVERSE_MAP);
+
+        // Garbage collection
+        M.release();
+        A.release();
+        MInv.release();
+        windowTransform.release();
+        return warp != null;
+    }
+
+    /**
+     * Takes the per-pixel median of the result windows of several video frames,
+     * since each window is already de-skewed onto the reference image
+     * @param windows: the result windows (see {@link #rectifyResultWindow}), all the same size
+     * @return the fused result window (the window itself if there is only one),
+     * or an empty Mat if there are none
+     */
+    private Mat fuseResultWindows(List<Mat> windows) {
+        if (windows.isEmpty())
+            return new Mat();
+        Mat first = windows.get(0);
+        if (windows.size() == 1)
+            return first;
+
+        // Flatten each window into a single row
+        List<Mat> flattened = new ArrayList<>();
+        for (Mat window : windows)
+            flattened.add(window.reshape(1, 1));
+
+        // Sort each pixel's values across the frames and keep the middle one
+        Mat stacked = mMatPool.acquire(flattened.size(), (int) (first.total() * first.channels()),
+                first.depth());
+        Core.vconcat(flattened, stacked);
+        Core.sort(stacked, stacked, Core.SORT_EVERY_COLUMN + Core.SORT_ASCENDING);
+        Mat medianRow = stacked.row(flattened.size() / 2);
+        Mat fusedMat = mMatPool.acquire(first.rows(), first.cols(), first.type());
+        Mat fusedRow = fusedMat.reshape(1, 1);
+        medianRow.copyTo(fusedRow);
+
+        // Garbage collection
+        fusedRow.release();
+        medianRow.release();
+        mMatPool.recycle(stacked);
+        for (Mat row : flattened)
+            row.release();
+        for (Mat window : windows)
+            window.release();
+        return fusedMat;
+    }
+
     /**
      * Applies CLAHE (https://en.wikipedia.org/wiki/Adaptive_histogram_equalization)
      * to enhance faint marks on the RDT's result window
-     * @param resultWindowMat: the RDT's result window (in RGBA)
+     * @param resultWindowMat: the RDT's result window (in RGBA, without any margins)
      * @return a contrast-enhanced version of the RDT's result window
      */
     private Mat enhanceResultWindow(Mat resultWindowMat) {
@@ -928,18 +1975,51 @@ public class ImageProcessor {
         Core.split(enhancedMat, channels);
 
         // Apply CLAHE to L channel
-        Mat newChannel = new Mat();
-        Core.normalize(channels.get(1), channels.get(1), 0, 255, Core.NORM_MINMAX);
-        clahe.apply(channels.get(1), newChannel);
+        Mat lightness = channels.get(1);
+        Mat newChannel = mMatPool.acquire(lightness.rows(), lightness.cols(), lightness.type());
+        Core.normalize(lightness, lightness, 0, 255, Core.NORM_MINMAX);
+        clahe.apply(lightness, newChannel);
         channels.set(1, newChannel);
         Core.merge(channels, enhancedMat);
 
         // Convert the image back to RGBA
         cvtColor(enhancedMat, enhancedMat, Imgproc.COLOR_HLS2RGB);
         cvtColor(enhancedMat, enhancedMat, Imgproc.COLOR_RGB2RGBA);
+
+        // Garbage collection
+        lightness.release();
+        for (Mat channel : channels)
+            mMatPool.recycle(channel);
         return enhancedMat;
     }
 
+    /**
+     * Calculates the average lightness of each column of the result window
+     * @param resultWindowMat: the RDT's result window (in RGBA)
+     * @return the mean of the L channel (in HLS) of each column
+     */
+    private double[] measureColumnLightness(Mat resultWindowMat) {
+        // Convert the image to HLS
+        Mat hls = mMatPool.acquire(resultWindowMat.rows(), resultWindowMat.cols(), CV_8UC3);
+        cvtColor(resultWindowMat, hls, COLOR_BGR2HLS);
+
+        // Extract the lightness channel
+        Mat lightness = mMatPool.acquire(hls.rows(), hls.cols(), CV_8U);
+        Core.extractChannel(hls, lightness, 1);
+
+        // Average each column
+        Mat profileMat = new Mat();
+        Core.reduce(lightness, profileMat, 0, Core.REDUCE_AVG, CvType.CV_64F);
+        double[] profile = new double[lightness.cols()];
+        profileMat.get(0, 0, profile);
+
+        // Garbage collection
+        mMatPool.recycle(hls);
+        mMatPool.recycle(lightness);
+        profileMat.release();
+        return profile;
+    }
+
     /**
      * Interprets any lines that appear within the detected RDT's result window
      * @param inputMat: the candidate video frame
@@ -947,7 +2027,41 @@ public class ImageProcessor {
      * @return an {@link RDTInterpretationResult} indicating the test results
      */
     public RDTInterpretationResult interpretRDT(Mat inputMat, MatOfPoint2f boundary) {
-        Mat resultWindowMat;
+        return interpretRDT(mRDT, Collections.singletonList(inputMat),
+                Collections.singletonList(boundary));
+    }
+
+    /**
+     * Interprets any lines that appear within the detected RDT's result window after fusing
+     * the result windows of several candidate video frames (see {@link #interpretRDT(RDT, List, List)})
+     * @param inputMats: the candidate video frames, oldest first
+     * @param boundaries: the corners of the bounding box around the detected RDT
+     *                  in each of the candidate video frames
+     * @return an {@link RDTInterpretationResult} indicating the test results
+     */
+    public RDTInterpretationResult interpretRDT(List<Mat> inputMats, List<MatOfPoint2f> boundaries) {
+        return interpretRDT(mRDT, inputMats, boundaries);
+    }
+
+    /**
+     * Interprets any lines that appear within the detected RDT's result window after fusing
+     * the result windows of several candidate video frames, which brings out faint lines
+     * that would be lost in the noise of a single frame
+     * Note: each video frame is warped once, with a margin on either side of the result window;
+     * if none of the frames can be aligned with ECC, only the most recent one is interpreted,
+     * searching for the control line's offset over the lightness of its columns instead;
+     * the blood check only looks at the most recent video frame
+     * @param rdt: the RDT that was detected in the candidate video frames
+     *           (see {@link RDTCaptureResult#rdt}), which may no longer be the current one
+     * @param inputMats: the candidate video frames, oldest first
+     * @param boundaries: the corners of the bounding box around the detected RDT
+     *                  in each of the candidate video frames
+     * @return an {@link RDTInterpretationResult} indicating the test results
+     */
+    public RDTInterpretationResult interpretRDT(RDT rdt, List<Mat> inputMats,
+                                                List<MatOfPoint2f> boundaries) {
+        Mat inputMat = inputMats.get(inputMats.size() - 1);
+        MatOfPoint2f boundary = boundaries.get(boundaries.size() - 1);
 
         boolean topLine = false;
         boolean middleLine = false;
@@ -956,75 +2070,120 @@ public class ImageProcessor {
         boolean tuned = false;
 
         int offset = 0;
+        int windowOffset = 0;
         int controlLineIndex = 0;
         double controlLinePosition = 0;
 
         boolean hasTooMuchBlood = false;
 
-        if (mRDT.topLineName.toLowerCase().equals(CONTROL_LINE_NAME)) {
+        int margin = RESULT_WINDOW_SEARCH_MARGIN;
+
+        if (rdt.topLineName.toLowerCase().equals(CONTROL_LINE_NAME)) {
             controlLineIndex = 0;
-            controlLinePosition = mRDT.topLinePosition;
-        } else if (mRDT.middleLineName.toLowerCase().equals(CONTROL_LINE_NAME)) {
+            controlLinePosition = rdt.topLinePosition;
+        } else if (rdt.middleLineName.toLowerCase().equals(CONTROL_LINE_NAME)) {
             controlLineIndex = 1;
-            controlLinePosition = mRDT.middleLinePosition;
-        } else if (mRDT.bottomLineName.toLowerCase().equals(CONTROL_LINE_NAME)) {
+            controlLinePosition = rdt.middleLinePosition;
+        } else if (rdt.bottomLineName.toLowerCase().equals(CONTROL_LINE_NAME)) {
             controlLineIndex = 2;
-            controlLinePosition = mRDT.bottomLinePosition;
+            controlLinePosition = rdt.bottomLinePosition;
         }
 
+        // Crop the result window and its margins from every frame,
+        // keeping track of which ones could be aligned with the reference image
+        List<Mat> alignedWindows = new ArrayList<>();
+        List<Mat> windows = new ArrayList<>();
+        for (int i = 0; i < inputMats.size(); i++) {
+            Mat window = new Mat();
+            boolean aligned = rectifyResultWindow(rdt, inputMats.get(i), boundaries.get(i),
+                    margin, window);
+            if (window.empty())
+                window.release();
+            else if (aligned)
+                alignedWindows.add(window);
+            else
+                windows.add(window);
+        }
+
+        // Aligned windows are already in place, so only fuse those (the others would blur
+        // the lines) and skip the search; if none of the frames could be aligned,
+        // fall back to searching for the control line's offset within the margins
+        // of the most recent window alone, since each window may be off by a different amount
+        int maxTuningCount = 10;
+        if (!alignedWindows.isEmpty()) {
+            for (Mat window : windows)
+                window.release();
+            windows = alignedWindows;
+            maxTuningCount = 1;
+        } else if (windows.size() > 1) {
+            for (Mat window : windows.subList(0, windows.size() - 1))
+                window.release();
+            windows = windows.subList(windows.size() - 1, windows.size());
+        }
+        Log.d(TAG, String.format("aligned windows: %d/%d", alignedWindows.size(),
+                inputMats.size()));
+        Mat resultWindowMat = fuseResultWindows(windows);
+
+        // Skip if there is no window to interpret
+        if (resultWindowMat.width() == 0 && resultWindowMat.height() == 0)
+            return new RDTInterpretationResult(resultWindowMat,
+                    false, false, false,
+                    rdt.topLineName, rdt.middleLineName, rdt.bottomLineName, false);
+        int windowWidth = resultWindowMat.cols() - 2 * margin;
+
+        // Convert the result window (without its margins) to grayscale
+        Mat windowMat = resultWindowMat.colRange(margin, margin + windowWidth);
+        Mat grayMat = mMatPool.acquire(windowMat.rows(), windowMat.cols(), CV_8U);
+        cvtColor(windowMat, grayMat, COLOR_RGB2GRAY);
+        windowMat.release();
+
+        // Compute variance within the window
+        MatOfDouble mu = new MatOfDouble();
+        MatOfDouble sigma = new MatOfDouble();
+        Core.meanStdDev(grayMat, mu, sigma);
+        Core.MinMaxLocResult minMaxLocResult = Core.minMaxLoc(grayMat);
+        Log.d(TAG, String.format("stdev %.2f, minval %.2f at %s, maxval %.2f at %s",
+                sigma.get(0, 0)[0],
+                minMaxLocResult.minVal, minMaxLocResult.minLoc,
+                minMaxLocResult.maxVal, minMaxLocResult.maxLoc));
+
+        // Enhance the result window if there is something worth enhancing in the first place
+        boolean enhance = sigma.get(0, 0)[0] > RESULT_WINDOW_ENHANCE_THRESHOLD;
+
+        // Garbage collection
+        mMatPool.recycle(grayMat);
+        mu.release();
+        sigma.release();
+
+        // Compute the average intensity for each column of the result window and its margins,
+        // unless the window is enhanced: its contrast depends on what is inside it,
+        // so it is enhanced on its own at each offset instead
+        double[] profile = enhance ? null : measureColumnLightness(resultWindowMat);
+        Mat enhancedMat = null;
+
         int cnt = 0;
         do {
-            // Crop the result window
-            resultWindowMat = cropResultWindow(inputMat, boundary, offset);
-
-            // Skip if there is no window to interpret
-            if (resultWindowMat.width() == 0 && resultWindowMat.height() == 0)
-                return new RDTInterpretationResult(resultWindowMat,
-                        false, false, false,
-                        mRDT.topLineName, mRDT.middleLineName, mRDT.bottomLineName, false);
-
-            // Convert the result window to grayscale
-            Mat grayMat = new Mat();
-            cvtColor(resultWindowMat, grayMat, COLOR_RGB2GRAY);
-
-            // Detect if image has too much blood (which may gives incorrect result)
-            hasTooMuchBlood = checkBlood(inputMat, boundary, offset);
-
-            // Compute variance within the window
-            MatOfDouble mu = new MatOfDouble();
-            MatOfDouble sigma = new MatOfDouble();
-            Core.meanStdDev(grayMat, mu, sigma);
-            Core.MinMaxLocResult minMaxLocResult = Core.minMaxLoc(grayMat);
-            Log.d(TAG, String.format("stdev %.2f, minval %.2f at %s, maxval %.2f at %s",
-                    sigma.get(0, 0)[0],
-                    minMaxLocResult.minVal, minMaxLocResult.minLoc,
-                    minMaxLocResult.maxVal, minMaxLocResult.maxLoc));
-
-            // Enhance the result window if there is something worth enhancing in the first place
-            if (sigma.get(0, 0)[0] > RESULT_WINDOW_ENHANCE_THRESHOLD)
-                resultWindowMat = enhanceResultWindow(resultWindowMat);
-
-            // Detect the lines in the result window
-            // Convert the image to HLS
-            Mat hls = new Mat();
-            cvtColor(resultWindowMat, hls, COLOR_BGR2HLS);
-
-            // Split the channels
-            List<Mat> channels = new ArrayList<>();
-            Core.split(hls, channels);
-
-            // Compute the average intensity for each column of the result window
-            Mat lightness = channels.get(1);
-            double[] avgIntensities = new double[lightness.cols()];
-            for (int i = 0; i < lightness.cols(); i++) {
-                avgIntensities[i] = 0;
-                for (int j = 0; j < lightness.rows(); j++)
-                    avgIntensities[i] += lightness.get(j, i)[0];
-                avgIntensities[i] /= lightness.rows();
+            // Shift the window within its margins, stopping if it cannot move any further
+            int clampedOffset = max(-margin, min(margin, offset));
+            if (cnt > 0 && clampedOffset == windowOffset)
+                break;
+            windowOffset = clampedOffset;
+            double[] avgIntensities;
+            if (enhance) {
+                Mat sliceMat = resultWindowMat.colRange(margin + windowOffset,
+                        margin + windowOffset + windowWidth);
+                if (enhancedMat != null)
+                    enhancedMat.release();
+                enhancedMat = enhanceResultWindow(sliceMat);
+                sliceMat.release();
+                avgIntensities = measureColumnLightness(enhancedMat);
+            } else {
+                avgIntensities = Arrays.copyOfRange(profile, margin + windowOffset,
+                        margin + windowOffset + windowWidth);
             }
 
             // Detect the peaks
-            ArrayList<double[]> peaks = ImageUtil.detectPeaks(avgIntensities, mRDT.lineIntensity, false);
+            ArrayList<double[]> peaks = ImageUtil.detectPeaks(avgIntensities, rdt.lineIntensity, false);
             for (double[] p : peaks)
                 Log.d(TAG, String.format("peak: %.2f, %.2f, %.2f", p[0], p[1], p[2]));
 
@@ -1032,15 +2191,15 @@ public class ImageProcessor {
             int detectedControlLineIndex = -1;
             double detectedControlLineDiff = Double.MAX_VALUE;
             for (int i = 0; i < peaks.size(); i ++) {
-                if (Math.abs(peaks.get(i)[0] - mRDT.topLinePosition) < mRDT.lineSearchWidth) {
+                if (Math.abs(peaks.get(i)[0] - rdt.topLinePosition) < rdt.lineSearchWidth) {
                     topLine = true;
-                    if (detectedControlLineDiff >  Math.abs(peaks.get(i)[0] - mRDT.topLinePosition)) {
-                        detectedControlLineDiff = Math.abs(peaks.get(i)[0] - mRDT.topLinePosition);
+                    if (detectedControlLineDiff >  Math.abs(peaks.get(i)[0] - rdt.topLinePosition)) {
+                        detectedControlLineDiff = Math.abs(peaks.get(i)[0] - rdt.topLinePosition);
                         detectedControlLineIndex = i;
                     }
-                } else if (Math.abs(peaks.get(i)[0] - mRDT.middleLinePosition) < mRDT.lineSearchWidth) {
+                } else if (Math.abs(peaks.get(i)[0] - rdt.middleLinePosition) < rdt.lineSearchWidth) {
                     middleLine = true;
-                } else if (Math.abs(peaks.get(i)[0] - mRDT.bottomLinePosition) < mRDT.lineSearchWidth) {
+                } else if (Math.abs(peaks.get(i)[0] - rdt.bottomLinePosition) < rdt.lineSearchWidth) {
                     bottomLine = true;
                 }
             }
@@ -1066,10 +2225,18 @@ public class ImageProcessor {
             Log.d(TAG, String.format("Tuned: %s, offset: %d", tuned, offset));
 
             cnt++;
-        } while (!tuned && cnt < 10);
+        } while (!tuned && cnt < maxTuningCount);
+
+        // Detect if image has too much blood (which may gives incorrect result)
+        hasTooMuchBlood = checkBlood(rdt, inputMat, boundary, windowOffset);
 
-        return new RDTInterpretationResult(resultWindowMat,
+        // Crop the margins off the result window (already done if it was enhanced)
+        Mat croppedMat = enhancedMat != null ? enhancedMat :
+                resultWindowMat.colRange(margin + windowOffset,
+                        margin + windowOffset + windowWidth).clone();
+        mMatPool.recycle(resultWindowMat);
+        return new RDTInterpretationResult(croppedMat,
                 topLine, middleLine, bottomLine,
-                mRDT.topLineName, mRDT.middleLineName, mRDT.bottomLineName, hasTooMuchBlood);
+                rdt.topLineName, rdt.middleLineName, rdt.bottomLineName, hasTooMuchBlood);
     }
 }
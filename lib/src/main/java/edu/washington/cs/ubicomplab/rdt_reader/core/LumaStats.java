@@ -0,0 +1,208 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import org.opencv.core.Rect;
+
+import java.nio.ByteBuffer;
+
+/**
+ * The brightness and sharpness statistics of a video frame's luma plane, which
+ * {@link #measure} gathers in a single pass over the pixels instead of separate passes for
+ * the histogram, the resize, the Laplacian, and its variance
+ * Note: the region of interest is resized the way Imgproc.resize() does with INTER_LINEAR
+ * (including the rounding to 8 bits) and the Laplacian's border is reflected like
+ * Imgproc.Laplacian()'s, so the sharpness is comparable with the reference image's, which is
+ * still measured with OpenCV; only the rows that the resize actually samples are interpolated
+ */
+final class LumaStats {
+    // The number of brightness levels
+    static final int LEVELS = 256;
+
+    // The fraction of the sampled pixels at each brightness level
+    final float[] histogram = new float[LEVELS];
+
+    // The highest brightness level with at least one sampled pixel
+    int maxWhite;
+
+    // The fraction of the sampled pixels that are fully saturated
+    double clippingRatio;
+
+    // The variance of the Laplacian within the region of interest
+    double laplacianVariance;
+
+    /**
+     * Measures the brightness of a whole video frame and the sharpness within a region of it
+     * @param data: the luma plane, one byte per pixel (read in place, e.g., the camera's buffer)
+     * @param rowStride: the distance between the start of two rows in bytes
+     * @param cols: the width of the luma plane
+     * @param rows: the height of the luma plane
+     * @param roi: the region whose sharpness is measured, e.g., the viewfinder
+     * @param scaledCols: the width the region is resized to before the Laplacian
+     * @param scaledRows: the height the region is resized to before the Laplacian
+     * @param step: only every step-th row and column is sampled (1 to sample every pixel),
+     *            in which case the sampled pixels of the region are resized instead
+     * @return the statistics of the video frame
+     */
+    static LumaStats measure(ByteBuffer data, int rowStride, int cols, int rows, Rect roi,
+                             int scaledCols, int scaledRows, int step) {
+        step = Math.max(1, step);
+
+        // The sampled pixels within the region
+        int roiLeft = (roi.x + step - 1) / step * step;
+        int roiTop = (roi.y + step - 1) / step * step;
+        int roiRight = Math.min(cols, roi.x + roi.width);
+        int roiBottom = Math.min(rows, roi.y + roi.height);
+        int srcCols = Math.max(0, (roiRight - roiLeft + step - 1) / step);
+        int srcRows = Math.max(0, (roiBottom - roiTop + step - 1) / step);
+        if (srcCols == 0 || srcRows == 0 || scaledCols <= 0 || scaledRows <= 0) {
+            scaledCols = 0;
+            scaledRows = 0;
+        }
+
+        // Where each resized column samples the region, like INTER_LINEAR
+        // (the column to its left, the one to its right, and the weight of the right one)
+        int[] leftCols = new int[scaledCols];
+        int[] rightCols = new int[scaledCols];
+        double[] colWeights = new double[scaledCols];
+        for (int c = 0; c < scaledCols; c++) {
+            double fx = (c + 0.5) * srcCols / scaledCols - 0.5;
+            int sx = (int) Math.floor(fx);
+            fx -= sx;
+            if (sx < 0) {
+                sx = 0;
+                fx = 0;
+            }
+            if (sx >= srcCols - 1) {
+                sx = srcCols - 1;
+                fx = 0;
+            }
+            leftCols[c] = roiLeft + sx * step;
+            rightCols[c] = roiLeft + Math.min(sx + 1, srcCols - 1) * step;
+            colWeights[c] = fx;
+        }
+
+        // Likewise for the rows, along with the last sampled row each resized row needs
+        // and which sampled rows are needed at all
+        int[] lastRows = new int[scaledRows];
+        double[] rowWeights = new double[scaledRows];
+        boolean[] neededRows = new boolean[srcRows];
+        for (int r = 0; r < scaledRows; r++) {
+            double fy = (r + 0.5) * srcRows / scaledRows - 0.5;
+            int sy = (int) Math.floor(fy);
+            fy -= sy;
+            if (sy < 0) {
+                sy = 0;
+                fy = 0;
+            }
+            if (sy >= srcRows - 1) {
+                sy = srcRows - 1;
+                fy = 0;
+            }
+            lastRows[r] = fy > 0 ? sy + 1 : sy;
+            rowWeights[r] = fy;
+            neededRows[sy] = true;
+            neededRows[lastRows[r]] = true;
+        }
+
+        // The last two sampled rows resized horizontally and the last three resized rows
+        int[] counts = new int[LEVELS];
+        double[] previous = new double[scaledCols];
+        double[] current = new double[scaledCols];
+        double[] above = new double[scaledCols];
+        double[] middle = new double[scaledCols];
+        double[] below = new double[scaledCols];
+        double[] moments = new double[3];
+        int nextRow = 0;
+
+        for (int y = 0; y < rows; y += step) {
+            int rowStart = y * rowStride;
+
+            // The histogram covers the whole frame
+            for (int x = 0; x < cols; x += step)
+                counts[data.get(rowStart + x) & 0xff]++;
+
+            // Resize the sampled row horizontally if any resized row needs it
+            int k = (y - roiTop) / step;
+            if (y < roiTop || y >= roiBottom || !neededRows[k])
+                continue;
+            double[] recycled = previous;
+            previous = current;
+            current = recycled;
+            for (int c = 0; c < scaledCols; c++) {
+                int left = data.get(rowStart + leftCols[c]) & 0xff;
+                int right = data.get(rowStart + rightCols[c]) & 0xff;
+                current[c] = left + (right - left) * colWeights[c];
+            }
+
+            // Finish every resized row whose last sampled row this was
+            for (; nextRow < scaledRows && lastRows[nextRow] == k; nextRow++) {
+                recycled = above;
+                above = middle;
+                middle = below;
+                below = recycled;
+                double weight = rowWeights[nextRow];
+                double[] top = weight > 0 ? previous : current;
+                for (int c = 0; c < scaledCols; c++)
+                    below[c] = Math.floor(top[c] + (current[c] - top[c]) * weight + 0.5);
+
+                // The Laplacian of the row before it, now that its neighbors are known
+                // (the border is reflected without repeating the edge, like BORDER_REFLECT_101)
+                if (nextRow >= 1)
+                    accumulateLaplacian(nextRow >= 2 ? above : below, middle, below, moments);
+            }
+        }
+
+        // The Laplacian of the last resized row
+        if (scaledRows == 1)
+            accumulateLaplacian(below, below, below, moments);
+        else if (scaledRows > 1)
+            accumulateLaplacian(middle, below, middle, moments);
+
+        // Normalize the histogram by the number of sampled pixels
+        LumaStats stats = new LumaStats();
+        long total = 0;
+        for (int i = 0; i < LEVELS; i++) {
+            total += counts[i];
+            if (counts[i] > 0)
+                stats.maxWhite = i;
+        }
+        for (int i = 0; i < LEVELS && total > 0; i++)
+            stats.histogram[i] = (float) counts[i] / total;
+        stats.clippingRatio = stats.histogram[LEVELS - 1];
+
+        // Calculate variance
+        if (moments[2] > 0) {
+            double mean = moments[0] / moments[2];
+            stats.laplacianVariance = Math.max(0, moments[1] / moments[2] - mean * mean);
+        }
+        return stats;
+    }
+
+    /**
+     * Adds the Laplacian of one resized row, with the kernel [0 1 0; 1 -4 1; 0 1 0], to the
+     * running sums
+     * @param above: the row above (or its reflection)
+     * @param middle: the row itself
+     * @param below: the row below (or its reflection)
+     * @param moments: the sum, the sum of squares, and the number of values so far
+     */
+    private static void accumulateLaplacian(double[] above, double[] middle, double[] below,
+                                            double[] moments) {
+        int last = middle.length - 1;
+        for (int i = 0; i <= last; i++) {
+            double left = middle[i > 0 ? i - 1 : Math.min(1, last)];
+            double right = middle[i < last ? i + 1 : Math.max(0, last - 1)];
+            double laplacian = above[i] + below[i] + left + right - 4 * middle[i];
+            moments[0] += laplacian;
+            moments[1] += laplacian * laplacian;
+        }
+        moments[2] += middle.length;
+    }
+}
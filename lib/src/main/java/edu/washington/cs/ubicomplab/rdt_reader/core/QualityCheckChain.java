@@ -0,0 +1,175 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import edu.washington.cs.ubicomplab.rdt_reader.interfaces.QualityCheck;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Runs a set of {@link QualityCheck}s on a candidate video frame, stopping at the first one
+ * that fails, and keeps timing and failure counts for each check
+ * Note: every {@link Constants#QUALITY_CHECK_REORDER_INTERVAL} frames, the checks are put in
+ * order of their declared cost divided by their observed failure rate, so cheap checks that
+ * often reject frames run first; with {@link Constants#QUALITY_CHECK_SHORT_CIRCUIT} off, every
+ * check runs on every frame
+ */
+public class QualityCheckChain {
+    // Debugging tag
+    private static final String TAG = "QualityCheckChain";
+
+    private final List<Entry> entries = new ArrayList<>();
+    private int runCount = 0;
+
+    /**
+     * The statistics of a single check
+     */
+    public static final class Stats {
+        public final String name;
+        public final double cost;
+        public final long runCount;
+        public final long failureCount;
+        public final double meanTime;
+
+        private Stats(Entry entry) {
+            name = entry.check.getName();
+            cost = entry.check.getCost();
+            runCount = entry.runCount;
+            failureCount = entry.failureCount;
+            meanTime = entry.runCount > 0 ? entry.totalTime / 1e6 / entry.runCount : 0;
+        }
+
+        /**
+         * @return the fraction of the frames that failed the check
+         */
+        public double getFailureRate() {
+            return runCount > 0 ? (double) failureCount / runCount : 0;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: cost %.2f, %d/%d failed, %.2f ms", name, cost,
+                    failureCount, runCount, meanTime);
+        }
+    }
+
+    /**
+     * A check and its counters
+     */
+    private static final class Entry {
+        private final QualityCheck check;
+        private long runCount = 0;
+        private long failureCount = 0;
+        private long totalTime = 0;
+
+        private Entry(QualityCheck check) {
+            this.check = check;
+        }
+
+        /**
+         * The expected cost of running the check for each frame it rejects, where the
+         * failure rate starts at 1/2 and moves towards the observed rate
+         */
+        private double getRank() {
+            double failureRate = (failureCount + 1.0) / (runCount + 2.0);
+            return check.getCost() / failureRate;
+        }
+    }
+
+    private static final Comparator<Entry> BY_RANK = new Comparator<Entry>() {
+        @Override
+        public int compare(Entry a, Entry b) {
+            return Double.compare(a.getRank(), b.getRank());
+        }
+    };
+
+    /**
+     * Adds a check to the chain
+     * @param check: the check
+     */
+    public synchronized void add(QualityCheck check) {
+        entries.add(new Entry(check));
+        Collections.sort(entries, BY_RANK);
+    }
+
+    /**
+     * Removes a check from the chain
+     * @param check: the check
+     * @return whether the check was in the chain
+     */
+    public synchronized boolean remove(QualityCheck check) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).check == check) {
+                entries.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Runs the checks on a candidate video frame
+     * @param context: the candidate video frame and the detected RDT
+     * @return the name of the first check that failed, or null if all of them passed
+     */
+    public synchronized String run(QualityContext context) {
+        // Move the checks that reject frames most cheaply to the front every so often
+        if (++runCount % QUALITY_CHECK_REORDER_INTERVAL == 0) {
+            Collections.sort(entries, BY_RANK);
+            Log.d(TAG, "Order: " + getStats());
+        }
+
+        String failedCheck = null;
+        for (Entry entry : entries) {
+            long startTime = System.nanoTime();
+            boolean passed = entry.check.check(context);
+            entry.totalTime += System.nanoTime() - startTime;
+            entry.runCount++;
+            if (passed)
+                continue;
+
+            entry.failureCount++;
+            if (failedCheck == null)
+                failedCheck = entry.check.getName();
+            if (QUALITY_CHECK_SHORT_CIRCUIT)
+                break;
+        }
+        return failedCheck;
+    }
+
+    /**
+     * Returns the statistics of every check, in the order they are currently run
+     * @return the statistics of each check
+     */
+    public synchronized List<Stats> getStats() {
+        List<Stats> stats = new ArrayList<>();
+        for (Entry entry : entries)
+            stats.add(new Stats(entry));
+        return stats;
+    }
+
+    /**
+     * Forgets the statistics of every check, e.g., when switching to a different RDT
+     */
+    public synchronized void resetStats() {
+        for (Entry entry : entries) {
+            entry.runCount = 0;
+            entry.failureCount = 0;
+            entry.totalTime = 0;
+        }
+        runCount = 0;
+    }
+}
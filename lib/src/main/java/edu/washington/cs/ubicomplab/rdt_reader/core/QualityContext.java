@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Point;
+import org.opencv.core.RotatedRect;
+import org.opencv.core.Size;
+
+import edu.washington.cs.ubicomplab.rdt_reader.interfaces.ColorFrameProvider;
+import edu.washington.cs.ubicomplab.rdt_reader.interfaces.QualityCheck;
+import edu.washington.cs.ubicomplab.rdt_reader.utils.ImageUtil;
+import edu.washington.cs.ubicomplab.rdt_reader.utils.MatPool;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.CROP_RATIO;
+import static org.opencv.imgproc.Imgproc.minAreaRect;
+
+/**
+ * The state that every {@link QualityCheck} shares while a single candidate video frame is
+ * checked, where the values that more than one check needs (e.g., the rotated rectangle
+ * around the RDT, the colour frame, and the result window) are only computed on first use
+ * Note: the context belongs to the frame it was created for and must not be kept
+ */
+public final class QualityContext {
+    private final ImageProcessor processor;
+    private final RDT rdt;
+    private final MatPool matPool;
+    private final Mat grayMat;
+    private final ColorFrameProvider colorFrame;
+    private final MatOfPoint2f boundary;
+    private final MatOfPoint2f croppedBoundary;
+    private final double homographyConfidence;
+
+    // Computed on first use
+    private RotatedRect rotatedRect = null;
+    private Mat croppedMat = null;
+    private Mat resultWindowMat = null;
+    private ResultWindowStats resultWindowStats = null;
+    private boolean measuredResultWindow = false;
+
+    // The outcomes of the built-in glare check (see ImageProcessor), which end up on the
+    // RDTCaptureResult and keep their defaults if the check was never run
+    boolean isGlared = false;
+    double glareRatio = Double.MAX_VALUE;
+
+    /**
+     * Constructor
+     * @param processor: the ImageProcessor that is checking the frame
+     * @param rdt: the RDT that was detected in the frame
+     * @param matPool: the pool that the lazily computed Mats come from
+     * @param grayMat: the candidate video frame (in grayscale)
+     * @param colorFrame: provides the candidate video frame (in RGBA) on demand
+     * @param boundary: the corners of the bounding box around the detected RDT, smoothed
+     *                over the previous frames
+     * @param croppedBoundary: the corners of the bounding box around the RDT as it was
+     *                       detected in this frame (not smoothed), within the colour frame
+     *                       after it is cropped by {@link Constants#CROP_RATIO}
+     * @param homographyConfidence: the confidence of the homography that located the RDT
+     */
+    QualityContext(ImageProcessor processor, RDT rdt, MatPool matPool, Mat grayMat,
+                   ColorFrameProvider colorFrame, MatOfPoint2f boundary,
+                   MatOfPoint2f croppedBoundary, double homographyConfidence) {
+        this.processor = processor;
+        this.rdt = rdt;
+        this.matPool = matPool;
+        this.grayMat = grayMat;
+        this.colorFrame = colorFrame;
+        this.boundary = boundary;
+        this.croppedBoundary = croppedBoundary;
+        this.homographyConfidence = homographyConfidence;
+    }
+
+    /**
+     * @return the RDT that was detected in the frame
+     */
+    public RDT getRDT() {
+        return rdt;
+    }
+
+    /**
+     * @return the candidate video frame (in grayscale)
+     */
+    public Mat getGrayMat() {
+        return grayMat;
+    }
+
+    /**
+     * @return the size of the candidate video frame
+     */
+    public Size getFrameSize() {
+        return grayMat.size();
+    }
+
+    /**
+     * @return the corners of the bounding box around the detected RDT, smoothed over the
+     * previous frames
+     */
+    public MatOfPoint2f getBoundary() {
+        return boundary;
+    }
+
+    /**
+     * @return the corners of the bounding box around the RDT as it was detected in this frame
+     * (not smoothed) within {@link #getColorMat()}
+     */
+    public MatOfPoint2f getCroppedBoundary() {
+        return croppedBoundary;
+    }
+
+    /**
+     * @return the confidence of the homography that located the RDT, from 0 to 1
+     * (see {@link RDTCaptureResult#homographyConfidence})
+     */
+    public double getHomographyConfidence() {
+        return homographyConfidence;
+    }
+
+    /**
+     * @return the smallest rotated rectangle around the detected RDT
+     */
+    public RotatedRect getRotatedRect() {
+        if (rotatedRect == null)
+            rotatedRect = minAreaRect(boundary);
+        return rotatedRect;
+    }
+
+    /**
+     * @return the (x, y) coordinate corresponding to the center of the RDT
+     */
+    public Point getCenter() {
+        return getRotatedRect().center;
+    }
+
+    /**
+     * @return the length of the RDT's longer side (in pixels)
+     */
+    public double getHeight() {
+        Size size = getRotatedRect().size;
+        return Math.max(size.width, size.height);
+    }
+
+    /**
+     * Measures the orientation of the RDT relative to the camera's perspective
+     * (assumes vertical RDT where height > width)
+     * @return the orientation of the RDT's vertical axis relative to the vertical axis of
+     * the video frame (0° = upright, 90° = right-to-left, 180° = upside-down, 270° = left-to-right)
+     */
+    public double getAngle() {
+        // Correct orientation so that it is relative to camera perspective
+        RotatedRect rect = getRotatedRect();
+        boolean isUpright = rect.size.height > rect.size.width;
+        if (isUpright) {
+            if (rect.angle < 0)
+                return 90 + rect.angle;
+            else
+                return rect.angle - 90;
+        } else {
+            return rect.angle;
+        }
+    }
+
+    /**
+     * Returns the candidate video frame (in RGBA), cropped by {@link Constants#CROP_RATIO},
+     * converting it on first use
+     * @return the cropped colour frame
+     */
+    public Mat getColorMat() {
+        if (croppedMat == null)
+            croppedMat = ImageUtil.cropInputMat(colorFrame.rgba(), CROP_RATIO);
+        return croppedMat;
+    }
+
+    /**
+     * Returns the RDT's result window, cropped and de-skewed from {@link #getColorMat()}
+     * on first use
+     * @return the result window (in RGBA), which may be empty
+     */
+    public Mat getResultWindow() {
+        if (resultWindowMat == null)
+            resultWindowMat = processor.cropResultWindow(rdt, getColorMat(), croppedBoundary);
+        return resultWindowMat;
+    }
+
+    /**
+     * Returns the lightness and colour statistics of the RDT's result window, measured
+     * within {@link #getColorMat()} on first use without cropping the window out
+     * @return the statistics, or null if the result window is empty
+     */
+    ResultWindowStats getResultWindowStats() {
+        if (!measuredResultWindow) {
+            resultWindowStats = processor.measureResultWindow(rdt, getColorMat(),
+                    croppedBoundary, 0);
+            measuredResultWindow = true;
+        }
+        return resultWindowStats;
+    }
+
+    /**
+     * Hands the cropped colour frame over to the caller, e.g., for the capture result
+     * @return the cropped colour frame, or null if no check needed it
+     */
+    Mat takeColorMat() {
+        Mat mat = croppedMat;
+        croppedMat = null;
+        return mat;
+    }
+
+    /**
+     * Releases the Mats that were computed on first use (except one taken by
+     * {@link #takeColorMat()})
+     */
+    void release() {
+        matPool.recycle(resultWindowMat);
+        resultWindowMat = null;
+        if (croppedMat != null)
+            croppedMat.release();
+        croppedMat = null;
+    }
+}
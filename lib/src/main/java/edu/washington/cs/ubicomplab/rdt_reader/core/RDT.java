@@ -10,18 +10,23 @@ import org.json.JSONException;
 import org.json.JSONObject;
 import org.opencv.android.Utils;
 import org.opencv.core.Core;
+import org.opencv.core.CvType;
 import org.opencv.core.Mat;
 import org.opencv.core.MatOfKeyPoint;
 import org.opencv.core.Point;
 import org.opencv.core.Rect;
 import org.opencv.core.Size;
-import org.opencv.features2d.BFMatcher;
+import org.opencv.features2d.Feature2D;
 import org.opencv.imgproc.Imgproc;
-import org.opencv.xfeatures2d.SIFT;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.InputStream;
 import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.REFERENCE_CACHE_DIR;
 import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.SHARPNESS_GAUSSIAN_BLUR_WINDOW;
 import static org.opencv.imgproc.Imgproc.cvtColor;
 
@@ -53,13 +58,21 @@ public class RDT {
     public double refImgSharpness;
     public Mat refDescriptor;
     public MatOfKeyPoint refKeypoints;
-    public SIFT detector;
-    public BFMatcher matcher;
+    public FeatureBackend featureBackend;
+    public Feature2D detector;
+    public FeatureIndex refIndex;
     //Glare check variables
     public boolean checkGlare;
 
     public boolean rotated = false;
 
+    // Whether the prepared reference and its features were read from the cache
+    public boolean fromCache = false;
+    private File cacheFile = null;
+    private byte[] cacheKey = null;
+
+    // The corners of the reference image, built on first use and kept for as long as the RDT
+    private Mat refCorners = null;
 
     public RDT(JSONObject rdtConfig) {
         try {
@@ -71,22 +84,101 @@ public class RDT {
 
     public RDT(Context context, String rdtName) {
         try {
-            // Read config.json
-            InputStream is = context.getAssets().open(Constants.CONFIG_FILE_NAME);
-            int size = is.available();
-            byte[] buffer = new byte[size];
-            is.read(buffer);
-            is.close();
-            JSONObject obj = new JSONObject(new String(buffer, "UTF-8")).getJSONObject(rdtName);
-            refImageID = context.getResources().getIdentifier(obj.getString("REF_IMG"),
-                    "drawable", context.getPackageName());
-            Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), refImageID);
-            init(obj, bitmap);
+            load(context, rdtName, readConfig(context).getJSONObject(rdtName));
         } catch (Exception ex) {
             ex.printStackTrace();
         }
     }
 
+    private RDT(Context context, String rdtName, JSONObject obj) throws JSONException {
+        load(context, rdtName, obj);
+    }
+
+    /**
+     * Loads every RDT in config.json, e.g., for identifying the RDT automatically
+     * @param context: the app's context
+     * @return the RDTs that could be loaded
+     */
+    public static List<RDT> loadAll(Context context) {
+        List<RDT> rdts = new ArrayList<>();
+        try {
+            JSONObject config = readConfig(context);
+            Iterator<String> names = config.keys();
+            while (names.hasNext()) {
+                String name = names.next();
+                try {
+                    rdts.add(new RDT(context, name, config.getJSONObject(name)));
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+        return rdts;
+    }
+
+    private static JSONObject readConfig(Context context) throws IOException, JSONException {
+        // Read config.json
+        InputStream is = context.getAssets().open(Constants.CONFIG_FILE_NAME);
+        int size = is.available();
+        byte[] buffer = new byte[size];
+        is.read(buffer);
+        is.close();
+        return new JSONObject(new String(buffer, "UTF-8"));
+    }
+
+    private void load(Context context, String rdtName, JSONObject obj) throws JSONException {
+        this.rdtName = rdtName;
+        refImageID = context.getResources().getIdentifier(obj.getString("REF_IMG"),
+                "drawable", context.getPackageName());
+
+        // Skip decoding the reference image and detecting its features
+        // if that was already done on an earlier startup
+        cacheFile = new File(new File(context.getCacheDir(), REFERENCE_CACHE_DIR),
+                rdtName + ".bin");
+        cacheKey = ReferenceCache.computeKey(
+                context.getResources().openRawResource(refImageID), obj,
+                context.getResources().getDisplayMetrics().densityDpi);
+        if (cacheKey != null && ReferenceCache.read(cacheFile, cacheKey, this)) {
+            fromCache = true;
+            initConfig(obj);
+            initFeatures(obj, false);
+            return;
+        }
+
+        Bitmap bitmap = BitmapFactory.decodeResource(context.getResources(), refImageID);
+        init(obj, bitmap);
+    }
+
+    /**
+     * Saves the prepared reference image and its features to the app's cache directory
+     * (see {@link ReferenceCache}) so later startups can skip preparing them again
+     * Note: only call this once refImgSharpness has been measured
+     */
+    public void saveToCache() {
+        if (cacheFile != null && cacheKey != null)
+            ReferenceCache.write(cacheFile, cacheKey, this);
+    }
+
+    /**
+     * Returns the corners of the reference image, which are shared by every frame of this RDT
+     * Note: the Mat is never released, so frames that are still being interpreted can keep
+     * using it after the processor switches to another RDT
+     * @return a 4x1 Mat (in CV_32FC2) with the top-left, top-right, bottom-right, and
+     * bottom-left corners of the reference image
+     */
+    public synchronized Mat getReferenceCorners() {
+        if (refCorners == null) {
+            refCorners = new Mat(4, 1, CvType.CV_32FC2);
+            refCorners.put(0, 0, 0, 0);
+            refCorners.put(1, 0, refImg.cols()-1, 0);
+            refCorners.put(2, 0, refImg.cols()-1, refImg.rows()-1);
+            refCorners.put(3, 0, 0, refImg.rows()-1);
+        }
+        return refCorners;
+    }
+
     private Bitmap convertBase64StrToBitmap(String base64Str) {
         return convertByteArrayToBitmap(Base64.decode(base64Str.getBytes(), Base64.DEFAULT));
     }
@@ -106,8 +198,12 @@ public class RDT {
         }
 
         cvtColor(refImg, refImg, Imgproc.COLOR_RGB2GRAY);
-        this.rdtName = rdtName;
 
+        initConfig(obj);
+        initFeatures(obj, true);
+    }
+
+    private void initConfig(JSONObject obj) throws JSONException {
         // Pull data related to UI
         viewFinderScaleH = obj.getDouble("VIEW_FINDER_SCALE");
         viewFinderScaleW = (viewFinderScaleH * (double)refImg.height()/(double)refImg.width())+Constants.VIEW_FINDER_SCALE_W_PADDING;
@@ -161,18 +257,25 @@ public class RDT {
 
             distanctFromFiducialToResultWindow = resultWindowRect.x - (trueFiducialBR2.x + trueFiducialBR1.x)/2.0;
         }
+    }
 
-        // Store the reference's sharpness
-        Size kernel = new Size(SHARPNESS_GAUSSIAN_BLUR_WINDOW,
-                SHARPNESS_GAUSSIAN_BLUR_WINDOW);
-        Imgproc.GaussianBlur(refImg, refImg, kernel, 0, 0);
-
-        // Load the reference image's features
-        refDescriptor = new Mat();
-        refKeypoints = new MatOfKeyPoint();
-        detector = SIFT.create();
-        matcher = BFMatcher.create(BFMatcher.BRUTEFORCE, false);
-        detector.detectAndCompute(refImg, new Mat(), refKeypoints, refDescriptor);
+    private void initFeatures(JSONObject obj, boolean detect) {
+        featureBackend = FeatureBackend.fromName(obj.optString("FEATURE_BACKEND"));
+        detector = featureBackend.createDetector();
+
+        // The cached reference is already blurred and has its features
+        if (detect) {
+            // Store the reference's sharpness
+            Size kernel = new Size(SHARPNESS_GAUSSIAN_BLUR_WINDOW,
+                    SHARPNESS_GAUSSIAN_BLUR_WINDOW);
+            Imgproc.GaussianBlur(refImg, refImg, kernel, 0, 0);
+
+            // Load the reference image's features
+            refDescriptor = new Mat();
+            refKeypoints = new MatOfKeyPoint();
+            detector.detectAndCompute(refImg, new Mat(), refKeypoints, refDescriptor);
+        }
+        refIndex = FeatureIndex.build(featureBackend, refDescriptor);
     }
 
     private double getBottomLinePosition(JSONObject rdtConfig, boolean rotated) throws JSONException {
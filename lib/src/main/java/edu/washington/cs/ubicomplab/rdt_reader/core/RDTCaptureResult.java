@@ -9,6 +9,10 @@ import org.opencv.core.MatOfPoint2f;
  */
 public class RDTCaptureResult {
     // High-level variables
+    // rdt: the RDT that was detected, which the frame must be interpreted with even if the
+    // processor has since identified another one
+    public String rdtName;
+    public RDT rdt;
     public boolean allChecksPassed;
     public Mat resultMat;
     public MatOfPoint2f boundary;
@@ -28,7 +32,53 @@ public class RDTCaptureResult {
     public boolean isGlared;
     public boolean fiducial;
 
+    // The name of the first quality check that failed, or null if all of them passed
+    // (see QualityCheckChain)
+    public String failedCheck;
 
+    // Quality margins for ranking candidate video frames (higher is better unless noted)
+    // sharpnessMargin: how far the sharpness is above the threshold, relative to the threshold
+    // exposureMargin: 0 at the under/over-exposure thresholds, 1 when far from both
+    // centeringError: distance from the center, relative to the threshold (lower is better)
+    // glareRatio: brightest result window pixel, relative to the threshold (lower is better)
+    // score: the weighted combination of the above, see ImageProcessor.scoreCaptureResult()
+    public double sharpnessMargin;
+    public double exposureMargin;
+    public double centeringError = Double.MAX_VALUE;
+    public double glareRatio = Double.MAX_VALUE;
+    public double score;
+
+    // Quality of the homography that located the RDT
+    // inlierCount: the number of matches that agreed with the homography
+    // inlierRatio: the fraction of the good matches that agreed with the homography
+    // reprojectionError: mean distance (in pixels) between the inliers and where the
+    // homography puts them (lower is better)
+    // homographyConfidence: 0 to 1, see ImageProcessor.measureHomographyConfidence(),
+    // scaled by the tracker's confidence when the RDT was tracked instead of detected
+    public int inlierCount;
+    public double inlierRatio;
+    public double reprojectionError = Double.MAX_VALUE;
+    public double homographyConfidence;
+
+    // Operating point of the feature detector (see DetectionBudget)
+    // detectionLevel: 0 for the most thorough operating point, higher is faster
+    // detectionTime: how long the last full detection took (in milliseconds)
+    // detectionMaxFeatures: the cap on the number of keypoints (0 for no cap)
+    // detectionContrastThreshold: the lowest contrast of a keypoint (SIFT only)
+    // detectionResizeScale: how much the frames were shrunk for the detector
+    public int detectionLevel;
+    public double detectionTime;
+    public int detectionMaxFeatures;
+    public double detectionContrastThreshold;
+    public double detectionResizeScale = 1.0;
+
+    // Raw measurements behind the exposure and sharpness checks (see ThresholdCalibrator)
+    // sharpnessRatio: the Laplacian variance relative to the reference's
+    // maxWhite: the highest brightness level in the frame
+    // clippingRatio: the fraction of the frame that is fully saturated
+    public double sharpnessRatio;
+    public int maxWhite;
+    public double clippingRatio;
 
     public RDTCaptureResult(boolean allChecksPassed, Mat resultMat,
                             MatOfPoint2f boundary, boolean flashEnabled,
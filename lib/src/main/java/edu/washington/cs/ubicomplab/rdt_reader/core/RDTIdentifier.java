@@ -0,0 +1,186 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.core.DMatch;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.features2d.Feature2D;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Figures out which of the configured RDTs is in front of the camera by matching each video
+ * frame against a single index over all of the reference images and letting every good match
+ * vote for the RDT it came from
+ * Note: the winner is only trusted once it has won {@link Constants#IDENTIFICATION_FRAME_COUNT}
+ * frames in a row, after which {@link ImageProcessor} only matches against that RDT until it
+ * has not been seen for {@link Constants#IDENTIFICATION_MAX_MISSES} frames; this class is not
+ * thread-safe
+ */
+class RDTIdentifier {
+    // Debugging tag
+    private static final String TAG = "RDTIdentifier";
+
+    private final List<RDT> rdts = new ArrayList<>();
+    private final FeatureIndex index;
+    private final FeatureBackend backend;
+    private final Feature2D detector;
+
+    // Bookkeeping for deciding when the winner can be trusted
+    private RDT candidate = null;
+    private int candidateFrames = 0;
+    private RDT lockedRDT = null;
+    private int missedFrames = 0;
+
+    /**
+     * Constructor
+     * @param rdts: the RDTs that can be told apart, which must all use the same
+     *            {@link FeatureBackend} as the first one (the others are ignored)
+     */
+    RDTIdentifier(List<RDT> rdts) {
+        List<Mat> refDescriptors = new ArrayList<>();
+        backend = rdts.isEmpty() ? FeatureBackend.SIFT : rdts.get(0).featureBackend;
+        for (RDT rdt : rdts) {
+            if (rdt.featureBackend != backend) {
+                Log.d(TAG, String.format("Skipping %s: uses %s instead of %s",
+                        rdt.rdtName, rdt.featureBackend, backend));
+            } else if (rdt.refIndex == null || rdt.refIndex.isEmpty()) {
+                Log.d(TAG, String.format("Skipping %s: no reference features", rdt.rdtName));
+            } else {
+                this.rdts.add(rdt);
+                refDescriptors.add(rdt.refDescriptor);
+            }
+        }
+        index = FeatureIndex.build(backend, refDescriptors);
+        detector = backend.createDetector();
+    }
+
+    /**
+     * The feature detector that matches the descriptors in the index
+     * @return the detector for the {@link FeatureBackend} shared by the RDTs
+     */
+    Feature2D getDetector() {
+        return detector;
+    }
+
+    /**
+     * The feature backend shared by the RDTs
+     * @return the {@link FeatureBackend} that produced the descriptors in the index
+     */
+    FeatureBackend getBackend() {
+        return backend;
+    }
+
+    /**
+     * Whether an RDT has been identified
+     * @return whether the RDT that is in front of the camera is known
+     */
+    boolean isLocked() {
+        return lockedRDT != null;
+    }
+
+    /**
+     * Matches a video frame against all of the reference images and finds the RDT with the
+     * most matches that pass the nearest neighbor distance ratio test
+     * @param queryDescriptors: the descriptors of the candidate video frame
+     * @param winnerMatches: receives the good matches for the winning RDT, where trainIdx
+     *                     refers to that RDT's own reference keypoints
+     * @return the winning RDT, or null if no RDT has enough good matches
+     */
+    RDT vote(Mat queryDescriptors, List<DMatch> winnerMatches) {
+        if (index.isEmpty())
+            return null;
+
+        // Match feature descriptors using KNN against every reference at once
+        List<MatOfDMatch> matches = new ArrayList<>();
+        index.knnMatch(queryDescriptors, matches, 2);
+
+        // Each good match votes for the reference it came from
+        int[] votes = new int[rdts.size()];
+        List<DMatch> goodMatches = new ArrayList<>();
+        for (MatOfDMatch match : matches) {
+            DMatch[] dMatches = match.toArray();
+            if (dMatches.length >= 2 && dMatches[0].distance <= 0.80 * dMatches[1].distance) {
+                goodMatches.add(dMatches[0]);
+                votes[dMatches[0].imgIdx]++;
+            }
+            match.release();
+        }
+
+        // Pick the reference with the most votes
+        int winner = -1;
+        for (int i = 0; i < votes.length; i++) {
+            if (winner < 0 || votes[i] > votes[winner])
+                winner = i;
+        }
+        if (winner < 0 || votes[winner] <= GOOD_MATCH_COUNT)
+            return null;
+
+        for (DMatch match : goodMatches) {
+            if (match.imgIdx == winner)
+                winnerMatches.add(match);
+        }
+        Log.d(TAG, String.format("Vote winner: %s with %d of %d good matches",
+                rdts.get(winner).rdtName, votes[winner], goodMatches.size()));
+        return rdts.get(winner);
+    }
+
+    /**
+     * Records the winner of a frame
+     * @param winner: the result of {@link #vote} (can be null)
+     * @return whether the winner has now won enough frames in a row to be trusted
+     */
+    boolean confirm(RDT winner) {
+        if (winner == null || winner != candidate) {
+            candidate = winner;
+            candidateFrames = 0;
+        }
+        if (winner == null)
+            return false;
+        if (++candidateFrames >= IDENTIFICATION_FRAME_COUNT) {
+            lockedRDT = winner;
+            missedFrames = 0;
+            Log.d(TAG, "Identified RDT: " + winner.rdtName);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records whether the identified RDT was found in a frame, and goes back to identifying
+     * once it has been missing for too long (e.g., because a different RDT is being held up)
+     * @param found: whether the identified RDT was found in the frame
+     */
+    void update(boolean found) {
+        if (!isLocked())
+            return;
+        if (found) {
+            missedFrames = 0;
+        } else if (++missedFrames > IDENTIFICATION_MAX_MISSES) {
+            Log.d(TAG, "Lost RDT: " + lockedRDT.rdtName);
+            reset();
+        }
+    }
+
+    /**
+     * Forgets the identified RDT
+     */
+    void reset() {
+        candidate = null;
+        candidateFrames = 0;
+        lockedRDT = null;
+        missedFrames = 0;
+    }
+}
@@ -0,0 +1,272 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.json.JSONObject;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Stores the prepared reference RDT image (rotated, grayscale, and blurred), its sharpness,
+ * keypoints, and descriptors in a compact binary file in the app's cache directory, so later
+ * startups can skip decoding the image and detecting its features
+ * Note: the file is keyed by a hash of the reference image's bytes, the RDT's entry in
+ * config.json, the screen density, and the parameters that affect the prepared image and
+ * the features, and it is read back through a memory-mapped buffer; anything that does not
+ * match is treated as a cache miss
+ */
+class ReferenceCache {
+    // Debugging tag
+    private static final String TAG = "ReferenceCache";
+
+    // Bump whenever the file layout or the way the reference is prepared changes
+    private static final int MAGIC = 0x52445443;
+    private static final int VERSION = 1;
+    private static final int KEY_SIZE = 20;
+
+    /**
+     * Computes the key that a cache file must match to be used
+     * @param refImage: the reference image's raw bytes (e.g., the drawable resource)
+     * @param rdtConfig: the RDT's entry in config.json (including its feature backend)
+     * @param densityDpi: the screen density the drawable resource is decoded at,
+     *                  which scales the reference image
+     * @return the SHA-1 digest of everything that affects the cached data,
+     * or null if it could not be computed
+     */
+    static byte[] computeKey(InputStream refImage, JSONObject rdtConfig, int densityDpi) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] buffer = new byte[8192];
+            int count;
+            while ((count = refImage.read(buffer)) > 0)
+                digest.update(buffer, 0, count);
+            // The blur that prepares the reference, and the detector settings of
+            // FeatureBackend.createDetector() (its literal ones are covered by VERSION)
+            String params = String.format("%d|%s|%s|%d|%d|%d|%s", VERSION, Core.VERSION,
+                    rdtConfig.toString(), densityDpi, SHARPNESS_GAUSSIAN_BLUR_WINDOW,
+                    ORB_MAX_FEATURES, String.valueOf(SIFT_CONTRAST_THRESHOLD));
+            digest.update(params.getBytes("UTF-8"));
+            return digest.digest();
+        } catch (IOException | NoSuchAlgorithmException e) {
+            e.printStackTrace();
+            return null;
+        } finally {
+            try {
+                refImage.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Loads the prepared reference image and its features into an RDT
+     * @param file: the cache file
+     * @param key: the result of {@link #computeKey}
+     * @param rdt: the RDT that receives refImg, refImgSharpness, refKeypoints,
+     *           refDescriptor, and rotated
+     * @return whether the cache file existed and matched the key
+     */
+    static boolean read(File file, byte[] key, RDT rdt) {
+        if (!file.exists())
+            return false;
+        long startTime = System.currentTimeMillis();
+        FileInputStream stream = null;
+        try {
+            stream = new FileInputStream(file);
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                    channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+
+            // Check that the file was written for the same reference and parameters
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+                return false;
+            byte[] fileKey = new byte[KEY_SIZE];
+            buffer.get(fileKey);
+            if (!Arrays.equals(fileKey, key)) {
+                Log.d(TAG, "Stale reference cache: " + file.getName());
+                return false;
+            }
+
+            boolean rotated = buffer.get() != 0;
+            double sharpness = buffer.getDouble();
+            Mat refImg = readMat(buffer);
+            Mat keypoints = readMat(buffer);
+            Mat refDescriptor = readMat(buffer);
+
+            rdt.rotated = rotated;
+            rdt.refImgSharpness = sharpness;
+            rdt.refImg = refImg;
+            rdt.refKeypoints = new MatOfKeyPoint(keypoints);
+            rdt.refDescriptor = refDescriptor;
+            keypoints.release();
+            Log.d(TAG, String.format("Read reference cache %s in %d ms", file.getName(),
+                    System.currentTimeMillis() - startTime));
+            return true;
+        } catch (Exception e) {
+            // A truncated or corrupted file is just a cache miss
+            e.printStackTrace();
+            return false;
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Saves the prepared reference image and its features
+     * Note: the file is written next to its final location and then renamed,
+     * so a partially written file is never read
+     * @param file: the cache file
+     * @param key: the result of {@link #computeKey}
+     * @param rdt: the RDT whose refImg, refImgSharpness, refKeypoints,
+     *           refDescriptor, and rotated should be saved
+     */
+    static void write(File file, byte[] key, RDT rdt) {
+        File dir = file.getParentFile();
+        if (dir != null && !dir.exists() && !dir.mkdirs()) {
+            Log.d(TAG, "Cannot create the reference cache directory: " + dir);
+            return;
+        }
+
+        int size = 4 + 4 + KEY_SIZE + 1 + 8 + matSize(rdt.refImg) + matSize(rdt.refKeypoints) +
+                matSize(rdt.refDescriptor);
+        ByteBuffer buffer = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+        buffer.put(key);
+        buffer.put((byte) (rdt.rotated ? 1 : 0));
+        buffer.putDouble(rdt.refImgSharpness);
+        if (!writeMat(buffer, rdt.refImg) || !writeMat(buffer, rdt.refKeypoints) ||
+                !writeMat(buffer, rdt.refDescriptor))
+            return;
+        buffer.flip();
+
+        File tempFile = new File(file.getPath() + ".tmp");
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(tempFile);
+            FileChannel channel = stream.getChannel();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            stream.close();
+            stream = null;
+            if (!tempFile.renameTo(file))
+                Log.d(TAG, "Cannot write the reference cache: " + file);
+        } catch (IOException e) {
+            e.printStackTrace();
+        } finally {
+            if (stream != null) {
+                try {
+                    stream.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+            tempFile.delete();
+        }
+    }
+
+    /**
+     * The number of bytes that {@link #writeMat} needs for a Mat
+     * @param mat: the Mat to save
+     * @return the size of the header and data
+     */
+    private static int matSize(Mat mat) {
+        return 4 + 4 + 4 + (int) (mat.total() * mat.elemSize());
+    }
+
+    /**
+     * Appends a Mat's header (rows, columns, and type) and data to a buffer
+     * @param buffer: the buffer to write to
+     * @param mat: the Mat to save, which must hold 8-bit or 32-bit floating-point values
+     * @return whether the Mat could be saved
+     */
+    private static boolean writeMat(ByteBuffer buffer, Mat mat) {
+        int depth = CvType.depth(mat.type());
+        if (mat.total() > 0 && depth != CvType.CV_8U && depth != CvType.CV_32F) {
+            Log.d(TAG, "Cannot cache Mat of type " + CvType.typeToString(mat.type()));
+            return false;
+        }
+        buffer.putInt(mat.rows());
+        buffer.putInt(mat.cols());
+        buffer.putInt(mat.type());
+        if (mat.total() == 0)
+            return true;
+
+        // Mat.get() only works on continuous data
+        Mat data = mat.isContinuous() ? mat : mat.clone();
+        int count = (int) (data.total() * data.channels());
+        if (depth == CvType.CV_8U) {
+            byte[] values = new byte[count];
+            data.get(0, 0, values);
+            buffer.put(values);
+        } else {
+            float[] values = new float[count];
+            data.get(0, 0, values);
+            buffer.asFloatBuffer().put(values);
+            buffer.position(buffer.position() + 4 * count);
+        }
+        if (data != mat)
+            data.release();
+        return true;
+    }
+
+    /**
+     * Reads a Mat that was saved by {@link #writeMat}
+     * @param buffer: the buffer to read from
+     * @return the Mat
+     */
+    private static Mat readMat(ByteBuffer buffer) {
+        int rows = buffer.getInt();
+        int cols = buffer.getInt();
+        int type = buffer.getInt();
+        if (rows == 0 || cols == 0)
+            return new Mat();
+
+        Mat mat = new Mat(rows, cols, type);
+        int count = rows * cols * CvType.channels(type);
+        if (CvType.depth(type) == CvType.CV_8U) {
+            byte[] values = new byte[count];
+            buffer.get(values);
+            mat.put(0, 0, values);
+        } else {
+            float[] values = new float[count];
+            buffer.asFloatBuffer().get(values);
+            buffer.position(buffer.position() + 4 * count);
+            mat.put(0, 0, values);
+        }
+        return mat;
+    }
+}
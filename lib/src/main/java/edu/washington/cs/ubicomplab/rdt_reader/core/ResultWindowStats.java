@@ -0,0 +1,160 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import org.opencv.core.Scalar;
+
+/**
+ * The lightness and colour statistics of the RDT's result window, which {@link #measure}
+ * gathers in a single pass over the pixels inside the window's outline in the video frame,
+ * instead of warping the frame to the reference image and converting the cropped window
+ * to HLS (for glare) and HSV (for blood) separately
+ * Note: the pixels are converted the way OpenCV converts 8-bit images with COLOR_BGR2HLS and
+ * COLOR_BGR2HSV, with the channels taken in the same order as the checks always took them;
+ * the ranges of red are passed in (rather than read from {@link Constants}), so the
+ * measurement can be tested on the development machine
+ */
+final class ResultWindowStats {
+    // The number of lightness levels
+    static final int LEVELS = 256;
+
+    // The fixed-point precision and lookup tables of OpenCV's 8-bit HSV conversion
+    private static final int HSV_SHIFT = 12;
+    private static final int[] SATURATION_DIV = new int[LEVELS];
+    private static final int[] HUE_DIV = new int[LEVELS];
+    static {
+        for (int i = 1; i < LEVELS; i++) {
+            SATURATION_DIV[i] = (int) Math.rint((255 << HSV_SHIFT) / (double) i);
+            HUE_DIV[i] = (int) Math.rint((180 << HSV_SHIFT) / (6.0 * i));
+        }
+    }
+
+    // The fraction of the pixels at each lightness level (the L channel of HLS)
+    final float[] lightnessHistogram = new float[LEVELS];
+
+    // The highest lightness level with at least one pixel
+    int maxLightness;
+
+    // The fraction of the pixels that are fully saturated
+    double clippingRatio;
+
+    // The fraction of the pixels within either range of red
+    double redRatio;
+
+    // The number of pixels inside the window's outline
+    int pixelCount;
+
+    /**
+     * Measures the pixels inside a convex quadrilateral of an image
+     * @param data: the image, channels interleaved with no row padding
+     * @param cols: the width of the image
+     * @param rows: the height of the image
+     * @param channels: the number of channels (at least 3, any after the third are ignored)
+     * @param corners: the quadrilateral's corners in order, as x0, y0, x1, y1, ..., where
+     *               pixel centers are at integer coordinates (like OpenCV)
+     * @param lowRedLower: the lower bounds (H, S, V) of red with low hues
+     *                   (e.g., {@link Constants#BLOOD_COLOR_LOW_HUE_LOWER})
+     * @param lowRedUpper: the upper bounds (H, S, V) of red with low hues
+     * @param highRedLower: the lower bounds (H, S, V) of red with high hues
+     * @param highRedUpper: the upper bounds (H, S, V) of red with high hues
+     * @return the statistics of the pixels inside, or null if there are none
+     */
+    static ResultWindowStats measure(byte[] data, int cols, int rows, int channels,
+                                     double[] corners, Scalar lowRedLower, Scalar lowRedUpper,
+                                     Scalar highRedLower, Scalar highRedUpper) {
+        // Read the thresholds once
+        int lowHueMin = (int) Math.ceil(lowRedLower.val[0]);
+        int lowHueMax = (int) Math.floor(lowRedUpper.val[0]);
+        int highHueMin = (int) Math.ceil(highRedLower.val[0]);
+        int highHueMax = (int) Math.floor(highRedUpper.val[0]);
+        int lowSatMin = (int) Math.ceil(lowRedLower.val[1]);
+        int lowSatMax = (int) Math.floor(lowRedUpper.val[1]);
+        int highSatMin = (int) Math.ceil(highRedLower.val[1]);
+        int highSatMax = (int) Math.floor(highRedUpper.val[1]);
+        int lowValMin = (int) Math.ceil(lowRedLower.val[2]);
+        int lowValMax = (int) Math.floor(lowRedUpper.val[2]);
+        int highValMin = (int) Math.ceil(highRedLower.val[2]);
+        int highValMax = (int) Math.floor(highRedUpper.val[2]);
+
+        int[] counts = new int[LEVELS];
+        int total = 0;
+        int red = 0;
+        int edges = corners.length / 2;
+
+        for (int y = 0; y < rows; y++) {
+            // Where the row's pixel centers enter and leave the quadrilateral
+            double left = Double.MAX_VALUE;
+            double right = -Double.MAX_VALUE;
+            for (int i = 0; i < edges; i++) {
+                int j = (i + 1) % edges;
+                double x0 = corners[2 * i], y0 = corners[2 * i + 1];
+                double x1 = corners[2 * j], y1 = corners[2 * j + 1];
+                if ((y0 <= y && y < y1) || (y1 <= y && y < y0)) {
+                    double x = x0 + (y - y0) * (x1 - x0) / (y1 - y0);
+                    left = Math.min(left, x);
+                    right = Math.max(right, x);
+                }
+            }
+            if (left > right)
+                continue;
+            int start = Math.max(0, (int) Math.ceil(left));
+            int end = Math.min(cols, (int) Math.ceil(right));
+
+            for (int x = start; x < end; x++) {
+                int index = (y * cols + x) * channels;
+                int b = data[index] & 0xff;
+                int g = data[index + 1] & 0xff;
+                int r = data[index + 2] & 0xff;
+                int max = Math.max(r, Math.max(g, b));
+                int min = Math.min(r, Math.min(g, b));
+
+                // Lightness, as in HLS
+                counts[(int) Math.rint((max + min) * 0.5)]++;
+                total++;
+
+                // Hue and saturation, as in HSV (the value is the max)
+                int diff = max - min;
+                int s = (diff * SATURATION_DIV[max] + (1 << (HSV_SHIFT - 1))) >> HSV_SHIFT;
+                int h;
+                if (max == r)
+                    h = g - b;
+                else if (max == g)
+                    h = b - r + 2 * diff;
+                else
+                    h = r - g + 4 * diff;
+                h = (h * HUE_DIV[diff] + (1 << (HSV_SHIFT - 1))) >> HSV_SHIFT;
+                if (h < 0)
+                    h += 180;
+
+                // Filter according to two definitions of red
+                // (note: H in HSV is circular, so red can have low and high H values)
+                boolean lowRed = h >= lowHueMin && h <= lowHueMax &&
+                        s >= lowSatMin && s <= lowSatMax && max >= lowValMin && max <= lowValMax;
+                boolean highRed = h >= highHueMin && h <= highHueMax &&
+                        s >= highSatMin && s <= highSatMax && max >= highValMin && max <= highValMax;
+                if (lowRed || highRed)
+                    red++;
+            }
+        }
+        if (total == 0)
+            return null;
+
+        // Normalize by the number of pixels inside
+        ResultWindowStats stats = new ResultWindowStats();
+        for (int i = 0; i < LEVELS; i++) {
+            stats.lightnessHistogram[i] = (float) counts[i] / total;
+            if (counts[i] > 0)
+                stats.maxLightness = i;
+        }
+        stats.clippingRatio = stats.lightnessHistogram[LEVELS - 1];
+        stats.redRatio = (double) red / total;
+        stats.pixelCount = total;
+        return stats;
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfPoint2f;
+import org.opencv.core.Size;
+import org.opencv.img_hash.ImgHashBase;
+import org.opencv.img_hash.PHash;
+import org.opencv.imgproc.Imgproc;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Recognizes when the phone is held still over the same scene by comparing a perceptual hash
+ * (pHash) of each video frame with the hash of the last frame that was fully analyzed, so the
+ * RDT's geometry from that frame can be reused instead of running SIFT and the placement
+ * checks again
+ * Note: frames are always compared with the last analyzed frame rather than the previous
+ * frame, so slow drift eventually triggers a new analysis, and the geometry is only reused
+ * for up to {@link Constants#STATIC_SCENE_MAX_REUSE} frames in a row; this class is not
+ * thread-safe
+ */
+class StaticScene {
+    // Debugging tag
+    private static final String TAG = "StaticScene";
+
+    private final ImgHashBase hasher = PHash.create();
+    private final Mat thumbnail = new Mat();
+    private final Mat hash = new Mat();
+    private final Mat analyzedHash = new Mat();
+
+    // The geometry of the last analyzed frame (without its cropped RDT)
+    private RDTCaptureResult analyzedResult = null;
+    private int reuseCount = 0;
+
+    /**
+     * Hashes a video frame and compares it with the last analyzed frame
+     * @param grayMat: the candidate video frame (in grayscale)
+     * @return whether the frame shows the same scene as the last analyzed frame and its
+     * geometry can be reused (see {@link #getAnalyzedResult()})
+     */
+    boolean isUnchanged(Mat grayMat) {
+        // Hash a small thumbnail, since the hash only looks at the lowest frequencies anyway
+        Size thumbnailSize = new Size(STATIC_SCENE_THUMBNAIL_SIZE, STATIC_SCENE_THUMBNAIL_SIZE);
+        Imgproc.resize(grayMat, thumbnail, thumbnailSize, 0, 0, Imgproc.INTER_AREA);
+        hasher.compute(thumbnail, hash);
+
+        if (analyzedResult == null || reuseCount >= STATIC_SCENE_MAX_REUSE)
+            return false;
+        double distance = hasher.compare(hash, analyzedHash);
+        if (distance > STATIC_SCENE_HASH_THRESHOLD)
+            return false;
+
+        reuseCount++;
+        Log.d(TAG, String.format("Static scene, distance: %.0f, reused: %d",
+                distance, reuseCount));
+        return true;
+    }
+
+    /**
+     * The geometry of the last analyzed frame
+     * Note: the result has no cropped RDT, and its boundary belongs to this object
+     * @return the result of {@link ImageProcessor#assessRDT} for the last analyzed frame,
+     * or null if there is none
+     */
+    RDTCaptureResult getAnalyzedResult() {
+        return analyzedResult;
+    }
+
+    /**
+     * Remembers the frame that was just hashed by {@link #isUnchanged} as the last
+     * analyzed frame
+     * @param captureResult: the result of {@link ImageProcessor#assessRDT} for that frame
+     */
+    void update(RDTCaptureResult captureResult) {
+        hash.copyTo(analyzedHash);
+        if (analyzedResult != null)
+            analyzedResult.boundary.release();
+        analyzedResult = copyOf(captureResult);
+        reuseCount = 0;
+    }
+
+    /**
+     * Forgets the last analyzed frame, e.g., when switching to a different RDT
+     */
+    void reset() {
+        if (analyzedResult != null)
+            analyzedResult.boundary.release();
+        analyzedResult = null;
+        reuseCount = 0;
+    }
+
+    /**
+     * Releases the native memory held by the hashes
+     */
+    void release() {
+        reset();
+        thumbnail.release();
+        hash.release();
+        analyzedHash.release();
+    }
+
+    /**
+     * Copies the geometry of a result without its cropped RDT
+     * @param captureResult: the result to copy
+     * @return the copy
+     */
+    private static RDTCaptureResult copyOf(RDTCaptureResult captureResult) {
+        MatOfPoint2f boundary = new MatOfPoint2f();
+        if (captureResult.boundary != null)
+            captureResult.boundary.copyTo(boundary);
+        RDTCaptureResult copy = new RDTCaptureResult(captureResult.allChecksPassed,
+                null, boundary, captureResult.flashEnabled,
+                captureResult.exposureResult, captureResult.isSharp,
+                captureResult.isCentered, captureResult.sizeResult,
+                captureResult.isOriented, captureResult.angle,
+                captureResult.isGlared, captureResult.fiducial);
+        copy.rdtName = captureResult.rdtName;
+        copy.rdt = captureResult.rdt;
+        copy.centeringError = captureResult.centeringError;
+        copy.glareRatio = captureResult.glareRatio;
+        copy.inlierCount = captureResult.inlierCount;
+        copy.inlierRatio = captureResult.inlierRatio;
+        copy.reprojectionError = captureResult.reprojectionError;
+        copy.homographyConfidence = captureResult.homographyConfidence;
+        copy.failedCheck = captureResult.failedCheck;
+        copy.detectionLevel = captureResult.detectionLevel;
+        copy.detectionTime = captureResult.detectionTime;
+        copy.detectionMaxFeatures = captureResult.detectionMaxFeatures;
+        copy.detectionContrastThreshold = captureResult.detectionContrastThreshold;
+        copy.detectionResizeScale = captureResult.detectionResizeScale;
+        copy.sharpnessRatio = captureResult.sharpnessRatio;
+        copy.maxWhite = captureResult.maxWhite;
+        copy.clippingRatio = captureResult.clippingRatio;
+        return copy;
+    }
+}
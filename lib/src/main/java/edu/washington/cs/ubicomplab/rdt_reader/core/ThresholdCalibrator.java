@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.Build;
+import android.util.Log;
+
+import java.util.Arrays;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Learns, for the phone model it runs on, how sharp and how well exposed the frames behind
+ * correctly interpreted captures are, and relaxes the exposure and sharpness thresholds
+ * within {@link Constants}'s CALIBRATION_* bounds when those frames keep landing just past
+ * the cutoffs (e.g., phones with soft optics that are rarely much sharper than required)
+ * Note: a capture only counts as correct when the user confirms that the reading matches
+ * the test (see {@link ImageProcessor#confirmCapture}), since the reader itself cannot tell;
+ * and only frames that passed the current thresholds are ever recorded, so they always
+ * crowd a relaxed cutoff; each threshold is therefore only moved one step at a time, once
+ * enough captures were confirmed under the current thresholds, and all of them go back to
+ * the configured ones as soon as the confirmed accuracy drops
+ */
+class ThresholdCalibrator {
+    // Debugging tag
+    private static final String TAG = "ThresholdCalibrator";
+
+    // Keys within the calibration file, prefixed by the phone model
+    private static final String KEY_SHARPNESS = "sharpness";
+    private static final String KEY_MAX_WHITE = "max_white";
+    private static final String KEY_CLIPPING = "clipping";
+    private static final String KEY_SHARPNESS_OFFSET = "sharpness_offset";
+    private static final String KEY_UNDER_EXPOSURE_OFFSET = "under_exposure_offset";
+    private static final String KEY_OVER_EXPOSURE_OFFSET = "over_exposure_offset";
+    private static final String KEY_BASELINE_READS = "baseline_reads";
+    private static final String KEY_BASELINE_CORRECT = "baseline_correct";
+    private static final String KEY_RELAXED_READS = "relaxed_reads";
+    private static final String KEY_RELAXED_CORRECT = "relaxed_correct";
+
+    // The number of bins in each distribution
+    private static final int BINS = 64;
+
+    private final SharedPreferences prefs;
+    private final String prefix;
+
+    // The distributions of the measurements behind correct reads
+    // sharpness: the Laplacian variance relative to the reference's
+    // maxWhite: the highest brightness level in the frame
+    // clipping: the fraction of the frame that is fully saturated
+    private final Histogram sharpness = new Histogram(0, 2);
+    private final Histogram maxWhite = new Histogram(0, 256);
+    private final Histogram clipping = new Histogram(0, 1);
+
+    // How far each threshold has been relaxed from the one in Constants
+    private double sharpnessOffset = 0;
+    private double underExposureOffset = 0;
+    private double overExposureOffset = 0;
+
+    // The number of confirmed captures (and correct reads among them) under the configured
+    // thresholds and under the current relaxed ones
+    private int baselineReads = 0;
+    private int baselineCorrect = 0;
+    private int relaxedReads = 0;
+    private int relaxedCorrect = 0;
+
+    /**
+     * A distribution over a fixed range of values, in equally sized bins
+     */
+    private static final class Histogram {
+        private final double min;
+        private final double max;
+        private final float[] counts = new float[BINS];
+        private float total = 0;
+
+        private Histogram(double min, double max) {
+            this.min = min;
+            this.max = max;
+        }
+
+        /**
+         * Adds a value, clamped to the range
+         * @param value: the value
+         */
+        private void add(double value) {
+            int bin = (int) ((value - min) / (max - min) * BINS);
+            counts[Math.max(0, Math.min(BINS - 1, bin))]++;
+            total++;
+
+            // Fade out older values so the distribution follows changes, e.g., OS updates
+            if (total > CALIBRATION_MAX_SAMPLES) {
+                float scale = (float) CALIBRATION_MAX_SAMPLES / total;
+                for (int i = 0; i < BINS; i++)
+                    counts[i] *= scale;
+                total = CALIBRATION_MAX_SAMPLES;
+            }
+        }
+
+        /**
+         * @param q: the fraction of the values that should be below the result, from 0 to 1
+         * @return the value at the given quantile, interpolated within its bin
+         */
+        private double quantile(double q) {
+            double target = q * total;
+            double cumulative = 0;
+            for (int i = 0; i < BINS; i++) {
+                if (counts[i] > 0 && cumulative + counts[i] >= target) {
+                    double fraction = (target - cumulative) / counts[i];
+                    return min + (i + fraction) * (max - min) / BINS;
+                }
+                cumulative += counts[i];
+            }
+            return max;
+        }
+
+        private String serialize() {
+            StringBuilder builder = new StringBuilder();
+            for (int i = 0; i < BINS; i++) {
+                if (i > 0)
+                    builder.append(',');
+                builder.append(counts[i]);
+            }
+            return builder.toString();
+        }
+
+        private void deserialize(String value) {
+            if (value == null)
+                return;
+            String[] parts = value.split(",");
+            if (parts.length != BINS)
+                return;
+            try {
+                for (int i = 0; i < BINS; i++) {
+                    counts[i] = Float.parseFloat(parts[i]);
+                    total += counts[i];
+                }
+            } catch (NumberFormatException e) {
+                e.printStackTrace();
+                Arrays.fill(counts, 0);
+                total = 0;
+            }
+        }
+    }
+
+    /**
+     * Constructor, which loads what was learned earlier on this phone model
+     * @param context: the app's context
+     */
+    ThresholdCalibrator(Context context) {
+        prefs = context.getSharedPreferences(CALIBRATION_FILE_NAME, Context.MODE_PRIVATE);
+        prefix = Build.MANUFACTURER + "/" + Build.MODEL + "/";
+
+        sharpness.deserialize(prefs.getString(prefix + KEY_SHARPNESS, null));
+        maxWhite.deserialize(prefs.getString(prefix + KEY_MAX_WHITE, null));
+        clipping.deserialize(prefs.getString(prefix + KEY_CLIPPING, null));
+        sharpnessOffset = prefs.getFloat(prefix + KEY_SHARPNESS_OFFSET, 0);
+        underExposureOffset = prefs.getFloat(prefix + KEY_UNDER_EXPOSURE_OFFSET, 0);
+        overExposureOffset = prefs.getFloat(prefix + KEY_OVER_EXPOSURE_OFFSET, 0);
+        baselineReads = prefs.getInt(prefix + KEY_BASELINE_READS, 0);
+        baselineCorrect = prefs.getInt(prefix + KEY_BASELINE_CORRECT, 0);
+        relaxedReads = prefs.getInt(prefix + KEY_RELAXED_READS, 0);
+        relaxedCorrect = prefs.getInt(prefix + KEY_RELAXED_CORRECT, 0);
+
+        Log.d(TAG, String.format("%s: %.0f samples, sharpness %.2f, " +
+                        "under-exposure %.0f, over-exposure %.2f", prefix, sharpness.total,
+                getSharpnessThreshold(), getUnderExposureThreshold(),
+                getOverExposureWhiteCount()));
+    }
+
+    /**
+     * @return the sharpness threshold to use instead of {@link Constants#SHARPNESS_THRESHOLD}
+     */
+    synchronized double getSharpnessThreshold() {
+        return Math.min(SHARPNESS_THRESHOLD + sharpnessOffset,
+                CALIBRATION_SHARPNESS_THRESHOLD_LIMIT);
+    }
+
+    /**
+     * @return the threshold to use instead of {@link Constants#UNDER_EXPOSURE_THRESHOLD}
+     */
+    synchronized double getUnderExposureThreshold() {
+        return UNDER_EXPOSURE_THRESHOLD - underExposureOffset;
+    }
+
+    /**
+     * @return the fraction to use instead of {@link Constants#OVER_EXPOSURE_WHITE_COUNT}
+     */
+    synchronized double getOverExposureWhiteCount() {
+        return Math.min(OVER_EXPOSURE_WHITE_COUNT + overExposureOffset, 1);
+    }
+
+    /**
+     * Records whether a capture was read correctly and adapts the thresholds
+     * @param sharpnessRatio: the capture's Laplacian variance relative to the reference's
+     * @param maxWhite: the highest brightness level in the capture
+     * @param clippingRatio: the fraction of the capture that is fully saturated
+     * @param correct: whether the user confirmed that the reading matches the test
+     */
+    synchronized void record(double sharpnessRatio, int maxWhite, double clippingRatio,
+                             boolean correct) {
+        // Keep track of the accuracy under the configured thresholds and under relaxed ones
+        if (isRelaxed()) {
+            relaxedReads++;
+            relaxedCorrect += correct ? 1 : 0;
+        } else {
+            baselineReads++;
+            baselineCorrect += correct ? 1 : 0;
+        }
+
+        // Only frames that were read correctly say what this phone's good frames look like
+        if (correct) {
+            sharpness.add(sharpnessRatio);
+            this.maxWhite.add(maxWhite);
+            clipping.add(clippingRatio);
+        }
+
+        adapt();
+        save();
+    }
+
+    /**
+     * Forgets everything that was learned on this phone model
+     */
+    synchronized void reset() {
+        Arrays.fill(sharpness.counts, 0);
+        Arrays.fill(maxWhite.counts, 0);
+        Arrays.fill(clipping.counts, 0);
+        sharpness.total = maxWhite.total = clipping.total = 0;
+        sharpnessOffset = underExposureOffset = overExposureOffset = 0;
+        baselineReads = baselineCorrect = relaxedReads = relaxedCorrect = 0;
+        save();
+    }
+
+    /**
+     * @return whether any threshold is currently relaxed
+     */
+    private boolean isRelaxed() {
+        return sharpnessOffset > 0 || underExposureOffset > 0 || overExposureOffset > 0;
+    }
+
+    /**
+     * Moves each threshold a step towards or away from the configured one
+     */
+    private void adapt() {
+        // Back off entirely if relaxing the thresholds costs accuracy
+        if (relaxedReads >= CALIBRATION_MIN_READS) {
+            double baselineRate = (baselineCorrect + 1.0) / (baselineReads + 1.0);
+            double relaxedRate = (double) relaxedCorrect / relaxedReads;
+            if (relaxedRate < baselineRate - CALIBRATION_ACCURACY_TOLERANCE) {
+                Log.d(TAG, String.format("Correct reads dropped from %.2f to %.2f, resetting",
+                        baselineRate, relaxedRate));
+                sharpnessOffset = underExposureOffset = overExposureOffset = 0;
+                relaxedReads = relaxedCorrect = 0;
+                return;
+            }
+        }
+
+        // Only take another step once the current thresholds have been tried
+        // (the configured ones at first, since they are the accuracy to keep up with)
+        if (baselineReads < CALIBRATION_MIN_READS ||
+                (isRelaxed() && relaxedReads < CALIBRATION_MIN_READS))
+            return;
+        if (sharpness.total < CALIBRATION_MIN_SAMPLES)
+            return;
+        double[] previous = {sharpnessOffset, underExposureOffset, overExposureOffset};
+
+        // Sharpness: the low end of the sharpness ratio against 1 - threshold
+        double sharpnessCutoff = 1 - getSharpnessThreshold();
+        double sharpnessRoom = (sharpness.quantile(CALIBRATION_QUANTILE) - sharpnessCutoff) /
+                sharpnessCutoff;
+        sharpnessOffset = step(sharpnessOffset, sharpnessRoom, CALIBRATION_SHARPNESS_STEP,
+                CALIBRATION_MAX_SHARPNESS_RELAXATION);
+
+        // Under-exposure: the low end of the brightest level against the threshold
+        double underCutoff = getUnderExposureThreshold();
+        double underRoom = (maxWhite.quantile(CALIBRATION_QUANTILE) - underCutoff) /
+                (255 - underCutoff);
+        underExposureOffset = step(underExposureOffset, underRoom,
+                CALIBRATION_UNDER_EXPOSURE_STEP, CALIBRATION_MAX_UNDER_EXPOSURE_RELAXATION);
+
+        // Over-exposure: the high end of the saturated fraction against the threshold
+        double overCutoff = getOverExposureWhiteCount();
+        double overRoom = (overCutoff - clipping.quantile(1 - CALIBRATION_QUANTILE)) /
+                overCutoff;
+        overExposureOffset = step(overExposureOffset, overRoom,
+                CALIBRATION_OVER_EXPOSURE_STEP, CALIBRATION_MAX_OVER_EXPOSURE_RELAXATION);
+
+        // The new thresholds need their own confirmed captures
+        if (sharpnessOffset != previous[0] || underExposureOffset != previous[1] ||
+                overExposureOffset != previous[2])
+            relaxedReads = relaxedCorrect = 0;
+    }
+
+    /**
+     * Relaxes a threshold by a step if the recorded frames crowd its cutoff, or tightens it
+     * by a step if they have plenty of room
+     * @param offset: how far the threshold is currently relaxed
+     * @param room: how far the recorded frames are from the cutoff, relative to it
+     * @param step: the size of the step
+     * @param maxOffset: the furthest the threshold may be relaxed
+     * @return the new offset
+     */
+    private static double step(double offset, double room, double step, double maxOffset) {
+        if (room < CALIBRATION_HEADROOM)
+            offset += step;
+        else if (room > 2 * CALIBRATION_HEADROOM)
+            offset -= step;
+        return Math.max(0, Math.min(maxOffset, offset));
+    }
+
+    /**
+     * Writes what was learned to the calibration file
+     */
+    private void save() {
+        prefs.edit()
+                .putString(prefix + KEY_SHARPNESS, sharpness.serialize())
+                .putString(prefix + KEY_MAX_WHITE, maxWhite.serialize())
+                .putString(prefix + KEY_CLIPPING, clipping.serialize())
+                .putFloat(prefix + KEY_SHARPNESS_OFFSET, (float) sharpnessOffset)
+                .putFloat(prefix + KEY_UNDER_EXPOSURE_OFFSET, (float) underExposureOffset)
+                .putFloat(prefix + KEY_OVER_EXPOSURE_OFFSET, (float) overExposureOffset)
+                .putInt(prefix + KEY_BASELINE_READS, baselineReads)
+                .putInt(prefix + KEY_BASELINE_CORRECT, baselineCorrect)
+                .putInt(prefix + KEY_RELAXED_READS, relaxedReads)
+                .putInt(prefix + KEY_RELAXED_CORRECT, relaxedCorrect)
+                .apply();
+    }
+}
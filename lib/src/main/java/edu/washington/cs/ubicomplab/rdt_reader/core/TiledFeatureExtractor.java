@@ -0,0 +1,300 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import android.util.Log;
+
+import org.opencv.core.Core;
+import org.opencv.core.DMatch;
+import org.opencv.core.KeyPoint;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfDMatch;
+import org.opencv.core.MatOfKeyPoint;
+import org.opencv.core.Rect;
+import org.opencv.features2d.Feature2D;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.*;
+
+/**
+ * Spreads feature detection and matching across a small pool of worker threads by splitting
+ * the search region into a grid of overlapping tiles and the frame's descriptors into shards
+ * Note: each tile only keeps the keypoints that fall within its own cell of the grid (the
+ * overlap only gives keypoints near a seam enough context), so no keypoint is found twice;
+ * the keypoints differ slightly from those found on the whole region at once, since the
+ * detector cannot see across a tile's outer edge; this class is not thread-safe
+ */
+class TiledFeatureExtractor {
+    // Debugging tag
+    private static final String TAG = "TiledFeatureExtractor";
+
+    private final int tileCount = FEATURE_TILE_COLUMNS * FEATURE_TILE_ROWS;
+    private final ExecutorService executor;
+
+    // One detector and index per worker, since OpenCV's objects are not meant to be shared
+    private FeatureBackend backend = null;
+    private int maxFeatures = -1;
+    private double contrastThreshold = -1;
+    private final Feature2D[] detectors = new Feature2D[tileCount];
+    private FeatureIndex sourceIndex = null;
+    private final FeatureIndex[] shardIndices;
+
+    /**
+     * Constructor
+     */
+    TiledFeatureExtractor() {
+        int threads = Math.max(1, Math.min(FEATURE_TILE_THREADS,
+                Runtime.getRuntime().availableProcessors()));
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "FeatureTile-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        shardIndices = new FeatureIndex[threads];
+    }
+
+    /**
+     * Whether a search region is large enough to be worth splitting into tiles
+     * @param roi: the search region
+     * @return whether {@link #detectAndCompute} should be used instead of a single detector
+     */
+    boolean shouldTile(Rect roi) {
+        return roi.area() >= FEATURE_TILE_MIN_AREA;
+    }
+
+    /**
+     * Detects keypoints and computes their descriptors in every tile at the same time
+     * @param backend: the {@link FeatureBackend} of the reference RDT
+     * @param maxFeatures: the most keypoints to keep across all tiles, or 0 for no cap
+     *                   (see {@link DetectionBudget})
+     * @param contrastThreshold: the lowest contrast of a keypoint (SIFT only)
+     * @param image: the search region (in grayscale)
+     * @param keypoints: receives the keypoints (relative to image)
+     * @param descriptors: receives the descriptors, one row per keypoint
+     */
+    void detectAndCompute(FeatureBackend backend, int maxFeatures, double contrastThreshold,
+                          final Mat image, MatOfKeyPoint keypoints, Mat descriptors) {
+        long startTime = System.currentTimeMillis();
+        if (this.backend != backend || this.maxFeatures != maxFeatures ||
+                this.contrastThreshold != contrastThreshold) {
+            // Split the cap on keypoints evenly between the tiles
+            int tileMaxFeatures = maxFeatures > 0 ?
+                    (int) Math.ceil((double) maxFeatures / tileCount) : 0;
+            for (int i = 0; i < tileCount; i++)
+                detectors[i] = backend.createDetector(tileMaxFeatures, contrastThreshold);
+            this.backend = backend;
+            this.maxFeatures = maxFeatures;
+            this.contrastThreshold = contrastThreshold;
+        }
+
+        // Detect features in every tile, each with its own detector
+        List<Callable<Tile>> tasks = new ArrayList<>();
+        int cellWidth = (int) Math.ceil((double) image.cols() / FEATURE_TILE_COLUMNS);
+        int cellHeight = (int) Math.ceil((double) image.rows() / FEATURE_TILE_ROWS);
+        for (int row = 0; row < FEATURE_TILE_ROWS; row++) {
+            for (int col = 0; col < FEATURE_TILE_COLUMNS; col++) {
+                final Feature2D detector = detectors[row * FEATURE_TILE_COLUMNS + col];
+                final Rect cell = clip(new Rect(col * cellWidth, row * cellHeight,
+                        cellWidth, cellHeight), image);
+                final Rect tileRect = clip(new Rect(cell.x - FEATURE_TILE_OVERLAP,
+                        cell.y - FEATURE_TILE_OVERLAP, cell.width + 2 * FEATURE_TILE_OVERLAP,
+                        cell.height + 2 * FEATURE_TILE_OVERLAP), image);
+                if (cell.area() <= 0)
+                    continue;
+                tasks.add(new Callable<Tile>() {
+                    @Override
+                    public Tile call() {
+                        return detectTile(detector, image, cell, tileRect);
+                    }
+                });
+            }
+        }
+        List<Tile> tiles = new ArrayList<>();
+        try {
+            for (Future<Tile> future : executor.invokeAll(tasks))
+                tiles.add(future.get());
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+
+        // Stitch the tiles back together in a fixed order, so the result is deterministic
+        List<KeyPoint> keypointList = new ArrayList<>();
+        List<Mat> descriptorRows = new ArrayList<>();
+        for (Tile tile : tiles) {
+            keypointList.addAll(tile.keypoints);
+            if (tile.descriptors.rows() > 0)
+                descriptorRows.add(tile.descriptors);
+        }
+        keypoints.fromList(keypointList);
+        if (descriptorRows.isEmpty())
+            descriptors.release();
+        else
+            Core.vconcat(descriptorRows, descriptors);
+
+        // Garbage collection
+        for (Tile tile : tiles)
+            tile.descriptors.release();
+        Log.d(TAG, String.format("Tiled detection: %d keypoints in %d tiles, %d ms",
+                keypointList.size(), tiles.size(), System.currentTimeMillis() - startTime));
+    }
+
+    /**
+     * Finds the closest reference descriptors for each descriptor in a video frame, with
+     * each worker searching its own copy of the index for a contiguous shard of descriptors
+     * @param index: the index over the reference RDT's descriptors
+     * @param queryDescriptors: the descriptors of the candidate video frame
+     * @param matches: receives the k nearest reference descriptors for each query descriptor,
+     *               in the same order and with the same queryIdx as {@link FeatureIndex#knnMatch}
+     * @param k: the number of neighbors to find
+     */
+    void knnMatch(FeatureIndex index, final Mat queryDescriptors, List<MatOfDMatch> matches,
+                  final int k) {
+        // Build a copy of the index for each worker the first time it is used
+        if (index != sourceIndex) {
+            shardIndices[0] = index;
+            for (int i = 1; i < shardIndices.length; i++)
+                shardIndices[i] = index.copy();
+            sourceIndex = index;
+        }
+
+        // Split the descriptors into one contiguous shard per worker
+        List<Callable<List<MatOfDMatch>>> tasks = new ArrayList<>();
+        int shardSize = (int) Math.ceil((double) queryDescriptors.rows() / shardIndices.length);
+        for (int i = 0; i < shardIndices.length; i++) {
+            final FeatureIndex shardIndex = shardIndices[i];
+            final int start = i * shardSize;
+            final int end = Math.min(queryDescriptors.rows(), start + shardSize);
+            if (start >= end)
+                break;
+            tasks.add(new Callable<List<MatOfDMatch>>() {
+                @Override
+                public List<MatOfDMatch> call() {
+                    return matchShard(shardIndex, queryDescriptors, start, end, k);
+                }
+            });
+        }
+        try {
+            for (Future<List<MatOfDMatch>> future : executor.invokeAll(tasks))
+                matches.addAll(future.get());
+        } catch (InterruptedException | ExecutionException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Stops the worker threads
+     */
+    void release() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * The keypoints that a single tile found within its own cell
+     */
+    private static final class Tile {
+        private final List<KeyPoint> keypoints = new ArrayList<>();
+        private final Mat descriptors = new Mat();
+    }
+
+    /**
+     * Detects the features in a single tile
+     * @param detector: the worker's detector
+     * @param image: the search region (in grayscale)
+     * @param cell: the tile's cell of the grid, whose keypoints it keeps
+     * @param tileRect: the cell grown by {@link Constants#FEATURE_TILE_OVERLAP}
+     * @return the keypoints (relative to image) and descriptors within the cell
+     */
+    private static Tile detectTile(Feature2D detector, Mat image, Rect cell, Rect tileRect) {
+        Mat tileMat = image.submat(tileRect);
+        MatOfKeyPoint tileKeypoints = new MatOfKeyPoint();
+        Mat tileDescriptors = new Mat();
+        detector.detectAndCompute(tileMat, new Mat(), tileKeypoints, tileDescriptors);
+
+        // Only keep the keypoints within the cell, so those in the overlap are not repeated
+        Tile tile = new Tile();
+        KeyPoint[] keypoints = tileKeypoints.toArray();
+        List<Mat> rows = new ArrayList<>();
+        for (int i = 0; i < keypoints.length; i++) {
+            KeyPoint keypoint = keypoints[i];
+            keypoint.pt.x += tileRect.x;
+            keypoint.pt.y += tileRect.y;
+            if (keypoint.pt.x >= cell.x && keypoint.pt.x < cell.x + cell.width &&
+                    keypoint.pt.y >= cell.y && keypoint.pt.y < cell.y + cell.height) {
+                tile.keypoints.add(keypoint);
+                rows.add(tileDescriptors.row(i));
+            }
+        }
+        if (!rows.isEmpty())
+            Core.vconcat(rows, tile.descriptors);
+
+        // Garbage collection
+        for (Mat row : rows)
+            row.release();
+        tileMat.release();
+        tileKeypoints.release();
+        tileDescriptors.release();
+        return tile;
+    }
+
+    /**
+     * Matches a contiguous shard of the frame's descriptors
+     * @param index: the worker's copy of the index
+     * @param queryDescriptors: all of the frame's descriptors
+     * @param start: the first row of the shard
+     * @param end: the row after the last row of the shard
+     * @param k: the number of neighbors to find
+     * @return the matches for each row of the shard, with queryIdx relative to
+     * queryDescriptors
+     */
+    private static List<MatOfDMatch> matchShard(FeatureIndex index, Mat queryDescriptors,
+                                                int start, int end, int k) {
+        Mat shard = queryDescriptors.rowRange(start, end);
+        List<MatOfDMatch> matches = new ArrayList<>();
+        index.knnMatch(shard, matches, k);
+        shard.release();
+        if (start == 0)
+            return matches;
+
+        // Point the matches back at the rows of the whole frame
+        for (MatOfDMatch match : matches) {
+            DMatch[] dMatches = match.toArray();
+            for (DMatch dMatch : dMatches)
+                dMatch.queryIdx += start;
+            match.fromArray(dMatches);
+        }
+        return matches;
+    }
+
+    /**
+     * Clips a rectangle to an image
+     * @param rect: the rectangle
+     * @param image: the image
+     * @return the part of rect that is within image
+     */
+    private static Rect clip(Rect rect, Mat image) {
+        int x1 = Math.max(0, rect.x);
+        int y1 = Math.max(0, rect.y);
+        int x2 = Math.min(image.cols(), rect.x + rect.width);
+        int y2 = Math.min(image.rows(), rect.y + rect.height);
+        return new Rect(x1, y1, Math.max(0, x2 - x1), Math.max(0, y2 - y1));
+    }
+}
@@ -0,0 +1,24 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.interfaces;
+
+import org.opencv.core.Mat;
+
+/**
+ * Interface for lazily providing the colour version of a candidate video frame, so that
+ * frames rejected on their luma alone never pay for a colour conversion
+ */
+public interface ColorFrameProvider {
+    /**
+     * Method that should return the candidate video frame (in RGBA), converting it on first use
+     * Note: the returned Mat is owned by the provider and must not be released by the caller
+     * @return the candidate video frame (in RGBA)
+     */
+    Mat rgba();
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.interfaces;
+
+import edu.washington.cs.ubicomplab.rdt_reader.core.QualityCheckChain;
+import edu.washington.cs.ubicomplab.rdt_reader.core.QualityContext;
+
+/**
+ * Interface for a quality check that the detected RDT has to pass before the candidate video
+ * frame is interpreted; the checks are run by a {@link QualityCheckChain}, which puts cheap
+ * checks that often fail first and stops at the first failure
+ */
+public interface QualityCheck {
+    /**
+     * Method that should return a short name for the check, e.g., for its statistics
+     * @return the name of the check
+     */
+    String getName();
+
+    /**
+     * Method that should return how expensive the check is relative to the others
+     * (e.g., its typical run time in milliseconds)
+     * @return the declared cost of the check
+     */
+    double getCost();
+
+    /**
+     * Method that should check the candidate video frame
+     * Note: values that other checks also need (e.g., the rotated rectangle around the RDT or
+     * its result window) should come from the context, which computes each at most once
+     * @param context: the candidate video frame and the detected RDT
+     * @return whether the candidate video frame passed the check
+     */
+    boolean check(QualityContext context);
+}
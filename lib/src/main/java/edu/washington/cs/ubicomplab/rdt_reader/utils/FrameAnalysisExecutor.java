@@ -0,0 +1,211 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.utils;
+
+/**
+ * A single worker thread that analyzes camera frames one at a time using a latest-frame
+ * mailbox: at most one frame waits while another is being analyzed, and a newer frame
+ * replaces (drops) the waiting one, so latency stays bounded no matter how slow analysis is
+ * @param <T> the type of frame, e.g., {@link android.media.Image}
+ */
+public class FrameAnalysisExecutor<T> {
+    /**
+     * Interface for the work done on each frame
+     * @param <T> the type of frame
+     */
+    public interface Analyzer<T> {
+        /**
+         * Method that should analyze the frame and release it once done with it
+         * @param frame: the frame to analyze
+         * @return whether more frames should be analyzed; returning false cancels the executor
+         */
+        boolean analyze(T frame);
+
+        /**
+         * Method that should release a frame that will never be analyzed
+         * @param frame: the dropped frame
+         */
+        void discard(T frame);
+    }
+
+    private final Analyzer<T> analyzer;
+    private final Thread worker;
+    private final Object lock = new Object();
+
+    // State guarded by the lock
+    private T pending = null;
+    private boolean cancelled = false;
+    private boolean shutdown = false;
+
+    // Counters guarded by the lock
+    private long framesReceived = 0;
+    private long framesDropped = 0;
+    private long framesAnalyzed = 0;
+
+    /**
+     * Constructor
+     * @param name: the name of the worker thread
+     * @param analyzer: the {@link Analyzer} that is run on each frame
+     */
+    public FrameAnalysisExecutor(String name, Analyzer<T> analyzer) {
+        this.analyzer = analyzer;
+        this.worker = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                processFrames();
+            }
+        }, name);
+        this.worker.start();
+    }
+
+    /**
+     * Hands a new frame to the executor, dropping the frame that was waiting (if any)
+     * @param frame: the new frame
+     * @return whether the frame was accepted for analysis
+     */
+    public boolean submit(T frame) {
+        T dropped;
+        boolean accepted;
+        synchronized (lock) {
+            framesReceived++;
+            if (cancelled || shutdown) {
+                dropped = frame;
+                accepted = false;
+            } else {
+                dropped = pending;
+                pending = frame;
+                accepted = true;
+                lock.notifyAll();
+            }
+            if (dropped != null)
+                framesDropped++;
+        }
+        if (dropped != null)
+            analyzer.discard(dropped);
+        return accepted;
+    }
+
+    /**
+     * Stops analyzing new frames (e.g., once a result has been accepted) and drops the frame
+     * that was waiting; the frame currently being analyzed (if any) is allowed to finish
+     */
+    public void cancel() {
+        T dropped;
+        synchronized (lock) {
+            cancelled = true;
+            dropped = pending;
+            pending = null;
+            if (dropped != null)
+                framesDropped++;
+        }
+        if (dropped != null)
+            analyzer.discard(dropped);
+    }
+
+    /**
+     * Starts accepting frames again after {@link #cancel()}
+     */
+    public void resume() {
+        synchronized (lock) {
+            cancelled = false;
+        }
+    }
+
+    public boolean isCancelled() {
+        synchronized (lock) {
+            return cancelled;
+        }
+    }
+
+    /**
+     * Stops the worker thread, waiting for the frame currently being analyzed (if any)
+     */
+    public void shutdown() {
+        cancel();
+        synchronized (lock) {
+            shutdown = true;
+            lock.notifyAll();
+        }
+        if (Thread.currentThread() == worker)
+            return;
+        try {
+            worker.join();
+        } catch (InterruptedException e) {
+            e.printStackTrace();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public long getFramesReceived() {
+        synchronized (lock) {
+            return framesReceived;
+        }
+    }
+
+    public long getFramesDropped() {
+        synchronized (lock) {
+            return framesDropped;
+        }
+    }
+
+    public long getFramesAnalyzed() {
+        synchronized (lock) {
+            return framesAnalyzed;
+        }
+    }
+
+    /**
+     * The worker loop: waits for a frame, analyzes it, and repeats until shutdown
+     */
+    private void processFrames() {
+        while (true) {
+            // Wait for the latest frame
+            T frame;
+            synchronized (lock) {
+                while (pending == null && !shutdown) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        shutdown = true;
+                    }
+                }
+                if (shutdown)
+                    break;
+                frame = pending;
+                pending = null;
+            }
+
+            // Analyze it outside of the lock so new frames can keep replacing the waiting one
+            boolean keepGoing = true;
+            try {
+                keepGoing = analyzer.analyze(frame);
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+            synchronized (lock) {
+                framesAnalyzed++;
+            }
+
+            // Stop as soon as a result has been accepted
+            if (!keepGoing)
+                cancel();
+        }
+
+        // Release whatever was still waiting
+        T dropped;
+        synchronized (lock) {
+            dropped = pending;
+            pending = null;
+            if (dropped != null)
+                framesDropped++;
+        }
+        if (dropped != null)
+            analyzer.discard(dropped);
+    }
+}
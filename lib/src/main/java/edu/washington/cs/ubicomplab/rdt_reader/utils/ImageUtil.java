@@ -11,7 +11,6 @@ package edu.washington.cs.ubicomplab.rdt_reader.utils;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Bitmap;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Rect;
 import android.graphics.YuvImage;
@@ -36,7 +35,6 @@ import org.opencv.imgproc.Imgproc;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
-import java.nio.ByteBuffer;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
@@ -64,61 +62,11 @@ public final class ImageUtil {
      * @return the same image as an OpenCV Mat
      */
     public static Mat imageToRGBMat(Image image) {
-        ByteBuffer buffer;
-        int rowStride;
-        int pixelStride;
-        int width = image.getWidth();
-        int height = image.getHeight();
-        int offset = 0;
-
-        // Initialize data structure for output
-        Image.Plane[] planes = image.getPlanes();
-        byte[] data = new byte[image.getWidth() * image.getHeight() * ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8];
-        byte[] rowData = new byte[planes[0].getRowStride()];
-
-        // Extract data as YUV
-        for (int i = 0; i < planes.length; i++) {
-            buffer = planes[i].getBuffer();
-            rowStride = planes[i].getRowStride();
-            pixelStride = planes[i].getPixelStride();
-            int w = (i == 0) ? width : width / 2;
-            int h = (i == 0) ? height : height / 2;
-            for (int row = 0; row < h; row++) {
-                int bytesPerPixel = ImageFormat.getBitsPerPixel(ImageFormat.YUV_420_888) / 8;
-                if (pixelStride == bytesPerPixel) {
-                    int length = w * bytesPerPixel;
-                    buffer.get(data, offset, length);
-
-                    if (h-row != 1)
-                        buffer.position(buffer.position() + rowStride - length);
-                    offset += length;
-                } else {
-                    if (h - row == 1)
-                        buffer.get(rowData, 0, width - pixelStride + 1);
-                    else
-                        buffer.get(rowData, 0, rowStride);
-
-                    for (int col=0; col<w; col++)
-                        data[offset++] = rowData[col * pixelStride];
-                }
-            }
-        }
-
-        // Put data in a Mat object
-        Mat yuvMat = new Mat(height + height/2, width, CvType.CV_8UC1);
-        yuvMat.put(0, 0, data);
-
-        // Convert from YUV to RGBA
-        Mat bgrMat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC4);
-        image.close();
-        cvtColor(yuvMat, bgrMat, Imgproc.COLOR_YUV2BGR_I420);
+        // Convert straight from the camera's planes and close the image
+        YuvFrame frame = YuvFrame.fromImage(image);
         Mat rgbaMat = new Mat();
-        cvtColor(bgrMat, rgbaMat, Imgproc.COLOR_BGR2RGBA, 0);
-
-        // Garbage collection
-        yuvMat.release();
-        bgrMat.release();
-
+        frame.toRGBA(rgbaMat);
+        frame.release();
         return rgbaMat;
     }
 
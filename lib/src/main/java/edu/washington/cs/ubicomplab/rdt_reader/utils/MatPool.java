@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.utils;
+
+import org.opencv.core.Mat;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A pool of scratch Mats keyed by their size and type, so the per-frame processing can reuse
+ * the same native buffers from one camera frame to the next instead of allocating new ones
+ * Note: a Mat is owned by the caller between {@link #acquire} and {@link #recycle}; it is
+ * filed under whatever size and type it has when it is recycled, so OpenCV functions that
+ * reallocate their output do not break the pool
+ */
+public class MatPool {
+    // Number of idle Mats kept for each size and type before extra ones are released
+    private static final int MAX_IDLE_PER_KEY = 4;
+
+    private final Map<Long, ArrayDeque<Mat>> idleMats = new HashMap<>();
+
+    // Counters for debugging
+    private long hits = 0;
+    private long misses = 0;
+
+    /**
+     * Packs the size and type of a Mat into a single key
+     * @param rows: the number of rows
+     * @param cols: the number of columns
+     * @param type: the OpenCV type, e.g., {@link org.opencv.core.CvType#CV_8UC1}
+     * @return the key for the pool
+     */
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | (type & 0xffff);
+    }
+
+    /**
+     * Hands out a Mat with the given size and type, reusing an idle one if possible
+     * Note: the contents of a reused Mat are whatever the previous user left in it
+     * @param rows: the number of rows
+     * @param cols: the number of columns
+     * @param type: the OpenCV type, e.g., {@link org.opencv.core.CvType#CV_8UC1}
+     * @return a Mat of {@code rows} x {@code cols} with the given type
+     */
+    public synchronized Mat acquire(int rows, int cols, int type) {
+        ArrayDeque<Mat> idle = idleMats.get(key(rows, cols, type));
+        if (idle != null && !idle.isEmpty()) {
+            hits++;
+            return idle.pop();
+        }
+        misses++;
+        return new Mat(rows, cols, type);
+    }
+
+    /**
+     * Hands a Mat from {@link #acquire} back to the pool
+     * @param mat: the Mat that is no longer needed (can be null)
+     */
+    public synchronized void recycle(Mat mat) {
+        if (mat == null)
+            return;
+
+        // Views into other Mats and empty Mats are not worth keeping around
+        if (mat.empty() || !mat.isContinuous() || mat.isSubmatrix()) {
+            mat.release();
+            return;
+        }
+
+        long key = key(mat.rows(), mat.cols(), mat.type());
+        ArrayDeque<Mat> idle = idleMats.get(key);
+        if (idle == null) {
+            idle = new ArrayDeque<>();
+            idleMats.put(key, idle);
+        }
+        if (idle.size() < MAX_IDLE_PER_KEY)
+            idle.push(mat);
+        else
+            mat.release();
+    }
+
+    /**
+     * Releases every idle Mat; the pool can still be used afterwards
+     */
+    public synchronized void clear() {
+        for (ArrayDeque<Mat> idle : idleMats.values()) {
+            for (Mat mat : idle)
+                mat.release();
+        }
+        idleMats.clear();
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.utils;
+
+import android.graphics.ImageFormat;
+import android.media.Image;
+
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+
+import java.nio.ByteBuffer;
+
+import edu.washington.cs.ubicomplab.rdt_reader.interfaces.ColorFrameProvider;
+
+/**
+ * A single YUV_420_888 camera frame that exposes its planes as OpenCV Mats without copying
+ * the pixel data out of the {@link Image}'s direct ByteBuffers
+ * Note: the Mats handed out by this class point straight into the camera's memory, so they
+ * are only valid until {@link #release()} is called
+ */
+public final class YuvFrame implements ColorFrameProvider {
+    /**
+     * An Enumeration object for describing how the chroma planes are laid out in memory
+     * I420: three separate planes with a pixel stride of 1
+     * NV12: a single interleaved plane in U, V order (the V plane starts one byte after U)
+     * NV21: a single interleaved plane in V, U order (the U plane starts one byte after V)
+     * STRIDED: any other layout, which has to be gathered pixel by pixel
+     */
+    public enum Layout {
+        I420, NV12, NV21, STRIDED
+    }
+
+    // Frame geometry
+    private final int width;
+    private final int height;
+
+    // Plane data as handed out by the camera
+    private final ByteBuffer yBuffer, uBuffer, vBuffer;
+    private final int yRowStride, uvRowStride, uvPixelStride;
+
+    // Identified on first use, since it takes a call into OpenCV
+    private Layout layout = null;
+
+    // The image that owns the buffers (if any)
+    private Image image;
+
+    // Lazily created views and conversions
+    private Mat lumaMat;
+    private Mat rgbaMat;
+
+    /**
+     * Constructor
+     * @param width: the width of the frame in pixels
+     * @param height: the height of the frame in pixels
+     * @param yBuffer: the luma plane
+     * @param yRowStride: the row stride of the luma plane
+     * @param uBuffer: the U (Cb) plane
+     * @param vBuffer: the V (Cr) plane
+     * @param uvRowStride: the row stride shared by both chroma planes
+     * @param uvPixelStride: the pixel stride shared by both chroma planes
+     */
+    YuvFrame(int width, int height, ByteBuffer yBuffer, int yRowStride,
+             ByteBuffer uBuffer, ByteBuffer vBuffer, int uvRowStride, int uvPixelStride) {
+        this.width = width;
+        this.height = height;
+        this.yBuffer = yBuffer;
+        this.uBuffer = uBuffer;
+        this.vBuffer = vBuffer;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+    }
+
+    /**
+     * Wraps Android's Image class without copying any of its planes
+     * @param image: the input Image (in YUV_420_888)
+     * @return a {@link YuvFrame} that takes ownership of the image
+     */
+    public static YuvFrame fromImage(Image image) {
+        if (image.getFormat() != ImageFormat.YUV_420_888)
+            throw new IllegalArgumentException("Unsupported image format: " + image.getFormat());
+
+        Image.Plane[] planes = image.getPlanes();
+        YuvFrame frame = new YuvFrame(image.getWidth(), image.getHeight(),
+                planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride());
+        frame.image = image;
+        return frame;
+    }
+
+    /**
+     * Identifies the memory layout of the chroma planes
+     * @param yRowStride: the row stride of the luma plane
+     * @param uBuffer: the U (Cb) plane
+     * @param vBuffer: the V (Cr) plane
+     * @param uvRowStride: the row stride shared by both chroma planes
+     * @param uvPixelStride: the pixel stride shared by both chroma planes
+     * @return the {@link Layout} of the chroma planes
+     */
+    static Layout detectLayout(int yRowStride, ByteBuffer uBuffer, ByteBuffer vBuffer,
+                               int uvRowStride, int uvPixelStride) {
+        if (uvPixelStride == 1)
+            return Layout.I420;
+
+        // Semi-planar data can only be converted in place if both planes share the same step
+        // and sit in native memory
+        if (uvPixelStride != 2 || uvRowStride != yRowStride || uvRowStride % 2 != 0 ||
+                !uBuffer.isDirect() || !vBuffer.isDirect())
+            return Layout.STRIDED;
+        return detectInterleaving(address(uBuffer), address(vBuffer));
+    }
+
+    /**
+     * Identifies the order of two chroma planes with a pixel stride of 2 from where they
+     * start in memory, since their values cannot tell them apart (e.g., in a grey frame)
+     * @param uAddress: the native address of the U (Cb) plane
+     * @param vAddress: the native address of the V (Cr) plane
+     * @return {@link Layout#NV12} or {@link Layout#NV21} if one plane starts one byte after
+     * the other, or {@link Layout#STRIDED} if they are separate
+     */
+    static Layout detectInterleaving(long uAddress, long vAddress) {
+        if (vAddress == uAddress + 1)
+            return Layout.NV12;
+        if (uAddress == vAddress + 1)
+            return Layout.NV21;
+        return Layout.STRIDED;
+    }
+
+    /**
+     * Looks up where a direct ByteBuffer starts in native memory
+     * @param buffer: the plane's data
+     * @return the native address of the buffer's first byte
+     */
+    private static long address(ByteBuffer buffer) {
+        Mat mat = new Mat(1, 1, CvType.CV_8UC1, buffer);
+        long address = mat.dataAddr();
+        mat.release();
+        return address;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    public Layout getLayout() {
+        if (layout == null)
+            layout = detectLayout(yRowStride, uBuffer, vBuffer, uvRowStride, uvPixelStride);
+        return layout;
+    }
+
+    /**
+     * Returns the luma plane as handed out by the camera, for reading it in place
+     * Note: the buffer is owned by this frame
+     * @return the luma plane, whose rows start {@link #lumaRowStride()} bytes apart
+     */
+    public ByteBuffer lumaBuffer() {
+        return yBuffer;
+    }
+
+    public int lumaRowStride() {
+        return yRowStride;
+    }
+
+    /**
+     * Returns the luma plane as a grayscale Mat
+     * Note: the Mat shares memory with the camera and is owned by this frame
+     * @return the luma plane (in grayscale)
+     */
+    public Mat luma() {
+        if (lumaMat == null) {
+            if (yBuffer.isDirect()) {
+                lumaMat = wrap(yBuffer, height, yRowStride, width, CvType.CV_8UC1);
+            } else {
+                byte[] data = new byte[width * height];
+                packPlane(yBuffer, yRowStride, 1, width, height, data, 0);
+                lumaMat = new Mat(height, width, CvType.CV_8UC1);
+                lumaMat.put(0, 0, data);
+            }
+        }
+        return lumaMat;
+    }
+
+    /**
+     * Returns the frame converted to RGBA, converting it the first time this is called
+     * Note: the Mat is owned by this frame
+     * @return the frame (in RGBA)
+     */
+    @Override
+    public Mat rgba() {
+        if (rgbaMat == null) {
+            rgbaMat = new Mat();
+            toRGBA(rgbaMat);
+        }
+        return rgbaMat;
+    }
+
+    /**
+     * Whether {@link #rgba()} has already paid for a colour conversion
+     * @return whether the RGBA conversion has been computed
+     */
+    public boolean hasRGBA() {
+        return rgbaMat != null;
+    }
+
+    /**
+     * Converts the frame to RGBA into a Mat owned by the caller
+     * @param dst: the output Mat
+     */
+    public void toRGBA(Mat dst) {
+        // Semi-planar frames can be converted straight from the camera's memory
+        Layout layout = getLayout();
+        if (layout == Layout.NV21 || layout == Layout.NV12) {
+            ByteBuffer first = layout == Layout.NV21 ? vBuffer : uBuffer;
+            Mat chroma = wrap(first, height / 2, uvRowStride / 2, width / 2, CvType.CV_8UC2);
+            Imgproc.cvtColorTwoPlane(luma(), chroma, dst, layout == Layout.NV21 ?
+                    Imgproc.COLOR_YUV2RGBA_NV21 : Imgproc.COLOR_YUV2RGBA_NV12);
+            chroma.release();
+            return;
+        }
+
+        // Otherwise pack the planes into a contiguous I420 buffer
+        Mat yuvMat = new Mat(height + height / 2, width, CvType.CV_8UC1);
+        yuvMat.put(0, 0, packI420());
+        Imgproc.cvtColor(yuvMat, dst, Imgproc.COLOR_YUV2RGBA_I420);
+        yuvMat.release();
+    }
+
+    /**
+     * Copies the planes into a contiguous I420 (Y, then U, then V) byte array
+     * @return the packed frame
+     */
+    byte[] packI420() {
+        int chromaWidth = width / 2;
+        int chromaHeight = height / 2;
+        byte[] data = new byte[width * height + 2 * chromaWidth * chromaHeight];
+        int offset = packPlane(yBuffer, yRowStride, 1, width, height, data, 0);
+        offset = packPlane(uBuffer, uvRowStride, uvPixelStride, chromaWidth, chromaHeight, data, offset);
+        packPlane(vBuffer, uvRowStride, uvPixelStride, chromaWidth, chromaHeight, data, offset);
+        return data;
+    }
+
+    /**
+     * Copies a single strided plane into a byte array
+     * @param buffer: the plane's data
+     * @param rowStride: the distance between the start of two rows in bytes
+     * @param pixelStride: the distance between two pixels of the same row in bytes
+     * @param w: the width of the plane in pixels
+     * @param h: the height of the plane in pixels
+     * @param out: the output array
+     * @param offset: where to start writing in the output array
+     * @return the offset following the last written byte
+     */
+    private static int packPlane(ByteBuffer buffer, int rowStride, int pixelStride,
+                                 int w, int h, byte[] out, int offset) {
+        ByteBuffer src = buffer.duplicate();
+        for (int row = 0; row < h; row++) {
+            int start = row * rowStride;
+            if (pixelStride == 1) {
+                src.position(start);
+                src.get(out, offset, w);
+                offset += w;
+            } else {
+                for (int col = 0; col < w; col++)
+                    out[offset++] = src.get(start + col * pixelStride);
+            }
+        }
+        return offset;
+    }
+
+    /**
+     * Wraps a direct ByteBuffer in a Mat without copying it
+     * @param buffer: the plane's data
+     * @param rows: the number of rows in the plane
+     * @param stepCols: the row stride expressed in elements of the given type
+     * @param cols: the number of visible columns
+     * @param type: the OpenCV type of each element
+     * @return a Mat of {@code rows} x {@code cols} backed by the buffer
+     */
+    private static Mat wrap(ByteBuffer buffer, int rows, int stepCols, int cols, int type) {
+        Mat full = new Mat(rows, stepCols, type, buffer);
+        Mat view = full.submat(0, rows, 0, cols);
+        full.release();
+        return view;
+    }
+
+    /**
+     * Releases the Mats created by this frame and closes the underlying image
+     */
+    public void release() {
+        if (lumaMat != null) {
+            lumaMat.release();
+            lumaMat = null;
+        }
+        if (rgbaMat != null) {
+            rgbaMat.release();
+            rgbaMat = null;
+        }
+        if (image != null) {
+            image.close();
+            image = null;
+        }
+    }
+}
@@ -31,7 +31,6 @@ import android.hardware.camera2.params.MeteringRectangle;
 import android.hardware.camera2.params.StreamConfigurationMap;
 import android.media.Image;
 import android.media.ImageReader;
-import android.os.AsyncTask;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.annotation.NonNull;
@@ -58,13 +57,12 @@ import org.opencv.android.LoaderCallbackInterface;
 import org.opencv.core.Mat;
 
 import java.util.Arrays;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 
 import edu.washington.cs.ubicomplab.rdt_reader.R;
 import edu.washington.cs.ubicomplab.rdt_reader.activities.ImageQualityActivity;
+import edu.washington.cs.ubicomplab.rdt_reader.core.FramePipeline;
 import edu.washington.cs.ubicomplab.rdt_reader.core.ImageProcessor;
 import edu.washington.cs.ubicomplab.rdt_reader.core.RDTCaptureResult;
 import edu.washington.cs.ubicomplab.rdt_reader.core.RDTInterpretationResult;
@@ -73,6 +71,7 @@ import edu.washington.cs.ubicomplab.rdt_reader.utils.ImageUtil;
 
 import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.CAMERA2_IMAGE_SIZE;
 import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.CAMERA2_PREVIEW_SIZE;
+import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.CAMERA_MAX_IMAGES;
 import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.CAPTURE_COUNT;
 import static edu.washington.cs.ubicomplab.rdt_reader.core.Constants.MY_PERMISSION_REQUEST_CODE;
 import static edu.washington.cs.ubicomplab.rdt_reader.util.Utils.hideProgressDialog;
@@ -136,8 +135,8 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
     private HandlerThread mOnImageAvailableThread;
     private Handler mOnImageAvailableHandler;
     private ImageReader mImageReader;
+    private volatile FramePipeline mFramePipeline;
     final Object focusStateLock = new Object();
-    final BlockingQueue<Image> imageQueue = new ArrayBlockingQueue<>(1);
     private CaptureRequest.Builder mPreviewRequestBuilder;
 
     public void setFlashEnabled(boolean flashEnabled) {
@@ -314,18 +313,23 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
 
             // Check that an image is available
             final Image image = reader.acquireLatestImage();
-            if (continueProcessingImg(image)) {
-                // Check that the image is focused
-                if (mFocusState != FocusState.FOCUSED) {
-                    image.close();
-                    return;
-                }
+            if (image == null)
+                return;
 
-                // Add the image to the queue and execute the quality checking
-                // process on a different thread
-                imageQueue.add(image);
-                new ImageProcessAsyncTask().execute(image);
+            // Check that the image is focused
+            if (mFocusState != FocusState.FOCUSED) {
+                image.close();
+                return;
+            }
+
+            // Hand the image to the analysis pipeline, replacing any image that is still waiting
+            // (unless the pipeline was already stopped, e.g., while pausing)
+            FramePipeline framePipeline = mFramePipeline;
+            if (framePipeline == null) {
+                image.close();
+                return;
             }
+            framePipeline.submit(processor, image, flashEnabled);
         }
 
     };
@@ -410,16 +414,14 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
     };
 
     /**
-     * The main {@link AsyncTask} that calls on the RDT quality checking and interpretation methods
+     * The main {@link FramePipeline.Listener} that reports the RDT quality checking
+     * and interpretation results
      */
-    private class ImageProcessAsyncTask extends AsyncTask<Image, Void, Void> {
+    private final FramePipeline.Listener mFramePipelineListener
+            = new FramePipeline.Listener() {
 
         @Override
-        protected Void doInBackground(Image... images) {
-            // Assess the quality of this image
-            Image image = images[0];
-            final Mat rgbaMat = ImageUtil.imageToRGBMat(image);
-            final RDTCaptureResult captureResult = processor.assessImage(rgbaMat, flashEnabled);
+        public void onFrameAssessed(final RDTCaptureResult captureResult) {
             mActivity.runOnUiThread(new Runnable() {
                 @Override
                 public void run() {
@@ -428,19 +430,11 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
             });
             Log.d(TAG, String.format("Capture time: %d", System.currentTimeMillis() - timeTaken));
             Log.d(TAG, String.format("Captured result: %b", captureResult.allChecksPassed));
+        }
 
-            // If all the quality check were passed, interpret the test result
-            RDTInterpretationResult interpretationResult = null;
-            if (captureResult.allChecksPassed) {
-                interpretationResult = processor.interpretRDT(captureResult.resultMat,
-                        captureResult.boundary);
-                image.close();
-            } else {
-                imageQueue.remove();
-                image.close();
-            }
-            rgbaMat.release();
-
+        @Override
+        public boolean onFrameProcessed(RDTCaptureResult captureResult,
+                                        RDTInterpretationResult interpretationResult) {
             // Determine if the RDT was successfully detected
             RDTDetectedResult result = RDTDetectedResult.CONTINUE;
             if (mImageQualityViewListener != null) {
@@ -450,19 +444,10 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
                 );
             }
 
-            // Garbage collection
-            if (captureResult.resultMat != null)
-                captureResult.resultMat.release();
-            if (interpretationResult != null && interpretationResult.resultMat != null)
-                interpretationResult.resultMat.release();
-
-            // Interrupt the thread if a result was found
-            if (result == RDTDetectedResult.STOP)
-                mOnImageAvailableThread.interrupt();
-
-            return null;
+            // Stop analyzing images if a result was found
+            return result == RDTDetectedResult.CONTINUE;
         }
-    }
+    };
 
     /////////////////////////////////////////
     // Methods
@@ -585,6 +570,11 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
      * {@link View} onPause()
      */
     public void onPause() {
+        // Stop taking new images, then finish the image being analyzed
+        // before the camera's buffers are released
+        if (mImageReader != null)
+            mImageReader.setOnImageAvailableListener(null, null);
+        stopFrameAnalysis();
         closeCamera();
         stopBackgroundThread();
         ImageProcessor.destroy();
@@ -720,7 +710,8 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
 
                 // Start the image listener
                 mImageReader = ImageReader.newInstance(closestImageSize.getWidth(),
-                        closestImageSize.getHeight(), ImageFormat.YUV_420_888,5);
+                        closestImageSize.getHeight(), ImageFormat.YUV_420_888,
+                        CAMERA_MAX_IMAGES);
                 mImageReader.setOnImageAvailableListener(
                         mOnImageAvailableListener, mOnImageAvailableHandler);
 
@@ -793,6 +784,19 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
         mOnImageAvailableThread = new HandlerThread("OnImageAvailableBackground");
         mOnImageAvailableThread.start();
         mOnImageAvailableHandler = new Handler(mOnImageAvailableThread.getLooper());
+
+        // Start the threads for image analysis
+        mFramePipeline = new FramePipeline(mFramePipelineListener);
+    }
+
+    /**
+     * Stops the image analysis threads, which log how many frames they got through
+     */
+    private void stopFrameAnalysis() {
+        if (mFramePipeline == null)
+            return;
+        mFramePipeline.shutdown();
+        mFramePipeline = null;
     }
 
     /**
@@ -1037,33 +1041,32 @@ public class ImageQualityView extends LinearLayout implements View.OnClickListen
     }
 
     public void captureImage() {
+        // Stop the automatic analysis so only the manually captured image is used
+        FramePipeline framePipeline = mFramePipeline;
+        if (framePipeline != null)
+            framePipeline.cancel();
+
         mImageReader.setOnImageAvailableListener(new ImageReader.OnImageAvailableListener() {
+            private boolean captured = false;
+
             @Override
             public void onImageAvailable(ImageReader reader) {
                 final Image image = reader.acquireLatestImage();
-                if (continueProcessingImg(image)) {
-                    imageQueue.add(image);
-                    Mat capturedMat = ImageUtil.imageToRGBMat(image);
-                    RDTCaptureResult captureResult = new RDTCaptureResult(capturedMat);
-                    ((ImageQualityActivity) mActivity).useCapturedImage(captureResult, new RDTInterpretationResult(), 0);
+                if (image == null)
+                    return;
+                if (captured) {
+                    image.close();
+                    return;
                 }
+                captured = true;
+                Mat capturedMat = ImageUtil.imageToRGBMat(image);
+                RDTCaptureResult captureResult = new RDTCaptureResult(capturedMat);
+                ((ImageQualityActivity) mActivity).useCapturedImage(captureResult, new RDTInterpretationResult(), 0);
             }
 
         }, null);
     }
 
-    private boolean continueProcessingImg(Image image) {
-        if (image == null) {
-            return false;
-        }
-
-        if (imageQueue.size() > 0) {
-            image.close();
-            return false;
-        }
-        return true;
-    }
-
     public JSONObject getRdtJsonConfig() {
         return rdtJsonConfig;
     }
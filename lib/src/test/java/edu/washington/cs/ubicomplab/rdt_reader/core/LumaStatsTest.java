@@ -0,0 +1,215 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import org.junit.Test;
+import org.opencv.core.Rect;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link LumaStats} built on synthetic luma planes, so they can run on
+ * the development machine without a camera or the OpenCV native libraries
+ */
+public class LumaStatsTest {
+    private static final int WIDTH = 16;
+    private static final int HEIGHT = 12;
+    private static final double DELTA = 1e-6;
+
+    private static byte[] plane(int value) {
+        byte[] data = new byte[WIDTH * HEIGHT];
+        for (int i = 0; i < data.length; i++)
+            data[i] = (byte) value;
+        return data;
+    }
+
+    /**
+     * Builds a plane whose pixels alternate between 0 and 100 like a checkerboard
+     * of cellSize x cellSize squares
+     */
+    private static byte[] checkerboard(int cellSize) {
+        byte[] data = new byte[WIDTH * HEIGHT];
+        for (int row = 0; row < HEIGHT; row++)
+            for (int col = 0; col < WIDTH; col++)
+                data[row * WIDTH + col] = (byte) ((row / cellSize + col / cellSize) % 2 * 100);
+        return data;
+    }
+
+    /**
+     * Builds a plane of pseudo-random levels, so every scale has some detail left
+     */
+    private static byte[] noise() {
+        byte[] data = new byte[WIDTH * HEIGHT];
+        int seed = 12345;
+        for (int i = 0; i < data.length; i++) {
+            seed = seed * 1103515245 + 12345;
+            data[i] = (byte) ((seed >>> 16) & 0xff);
+        }
+        return data;
+    }
+
+    /**
+     * Measures the whole plane at its full resolution
+     */
+    private static LumaStats measure(byte[] data, Rect roi, int step) {
+        return LumaStats.measure(ByteBuffer.wrap(data), WIDTH, WIDTH, HEIGHT, roi,
+                roi.width, roi.height, step);
+    }
+
+    /**
+     * The Laplacian variance the way the sharpness check used to calculate it: the plane is
+     * resized with bilinear interpolation (rounded to 8 bits), then the Laplacian is taken
+     * with a reflected border, then its variance
+     */
+    private static double resizeThenLaplacian(byte[] data, int scaledCols, int scaledRows) {
+        double[][] resized = new double[scaledRows][scaledCols];
+        for (int r = 0; r < scaledRows; r++) {
+            for (int c = 0; c < scaledCols; c++) {
+                double fx = Math.max(0, (c + 0.5) * WIDTH / scaledCols - 0.5);
+                double fy = Math.max(0, (r + 0.5) * HEIGHT / scaledRows - 0.5);
+                int x0 = Math.min((int) fx, WIDTH - 1), x1 = Math.min(x0 + 1, WIDTH - 1);
+                int y0 = Math.min((int) fy, HEIGHT - 1), y1 = Math.min(y0 + 1, HEIGHT - 1);
+                double wx = x0 == WIDTH - 1 ? 0 : fx - x0;
+                double wy = y0 == HEIGHT - 1 ? 0 : fy - y0;
+                double top = (data[y0 * WIDTH + x0] & 0xff) * (1 - wx) +
+                        (data[y0 * WIDTH + x1] & 0xff) * wx;
+                double bottom = (data[y1 * WIDTH + x0] & 0xff) * (1 - wx) +
+                        (data[y1 * WIDTH + x1] & 0xff) * wx;
+                resized[r][c] = Math.floor(top * (1 - wy) + bottom * wy + 0.5);
+            }
+        }
+
+        double sum = 0;
+        double sumSquares = 0;
+        for (int r = 0; r < scaledRows; r++) {
+            for (int c = 0; c < scaledCols; c++) {
+                double laplacian = resized[reflect(r - 1, scaledRows)][c] +
+                        resized[reflect(r + 1, scaledRows)][c] +
+                        resized[r][reflect(c - 1, scaledCols)] +
+                        resized[r][reflect(c + 1, scaledCols)] - 4 * resized[r][c];
+                sum += laplacian;
+                sumSquares += laplacian * laplacian;
+            }
+        }
+        double count = scaledRows * scaledCols;
+        return sumSquares / count - (sum / count) * (sum / count);
+    }
+
+    private static int reflect(int i, int length) {
+        if (length == 1)
+            return 0;
+        return i < 0 ? -i : i >= length ? 2 * length - 2 - i : i;
+    }
+
+    @Test
+    public void flatPlane_hasOneLevelAndNoLaplacian() throws Exception {
+        LumaStats stats = measure(plane(200), new Rect(0, 0, WIDTH, HEIGHT), 1);
+
+        assertEquals(1.0, stats.histogram[200], DELTA);
+        assertEquals(200, stats.maxWhite);
+        assertEquals(0.0, stats.clippingRatio, DELTA);
+        assertEquals(0.0, stats.laplacianVariance, DELTA);
+    }
+
+    @Test
+    public void saturatedPixels_countAsClipped() throws Exception {
+        byte[] data = plane(10);
+        for (int i = 0; i < WIDTH; i++)
+            data[i] = (byte) 255;
+        LumaStats stats = measure(data, new Rect(0, 0, WIDTH, HEIGHT), 1);
+
+        assertEquals(255, stats.maxWhite);
+        assertEquals(1.0 / HEIGHT, stats.clippingRatio, DELTA);
+        assertEquals(1.0 - 1.0 / HEIGHT, stats.histogram[10], DELTA);
+    }
+
+    @Test
+    public void checkerboard_matchesLaplacianKernel() throws Exception {
+        // Every pixel (the reflected border included) is +-400 away from its four neighbors,
+        // so the variance is 400^2
+        LumaStats stats = measure(checkerboard(1), new Rect(0, 0, WIDTH, HEIGHT), 1);
+
+        assertEquals(0.5, stats.histogram[0], DELTA);
+        assertEquals(0.5, stats.histogram[100], DELTA);
+        assertEquals(400.0 * 400.0, stats.laplacianVariance, DELTA);
+    }
+
+    @Test
+    public void fullResolution_matchesResizeThenLaplacian() throws Exception {
+        byte[] data = noise();
+        LumaStats stats = measure(data, new Rect(0, 0, WIDTH, HEIGHT), 1);
+
+        assertEquals(resizeThenLaplacian(data, WIDTH, HEIGHT), stats.laplacianVariance, DELTA);
+    }
+
+    @Test
+    public void fractionalDownscale_matchesResizeThenLaplacian() throws Exception {
+        // A scale of 13/16 (like a 960-pixel viewfinder and a 780-pixel reference)
+        // still downscales, exactly as the resize did
+        byte[] data = noise();
+        LumaStats stats = LumaStats.measure(ByteBuffer.wrap(data), WIDTH, WIDTH, HEIGHT,
+                new Rect(0, 0, WIDTH, HEIGHT), 13, 10, 1);
+
+        assertEquals(resizeThenLaplacian(data, 13, 10), stats.laplacianVariance, DELTA);
+        assertNotEquals(resizeThenLaplacian(data, WIDTH, HEIGHT), stats.laplacianVariance,
+                1.0);
+    }
+
+    @Test
+    public void halfScale_matchesResizeThenLaplacian() throws Exception {
+        byte[] data = noise();
+        LumaStats stats = LumaStats.measure(ByteBuffer.wrap(data), WIDTH, WIDTH, HEIGHT,
+                new Rect(0, 0, WIDTH, HEIGHT), WIDTH / 2, HEIGHT / 2, 1);
+
+        assertEquals(resizeThenLaplacian(data, WIDTH / 2, HEIGHT / 2),
+                stats.laplacianVariance, DELTA);
+    }
+
+    @Test
+    public void rowStride_skipsPadding() throws Exception {
+        // Padding the rows with saturated bytes must not show up anywhere
+        int stride = WIDTH + 4;
+        byte[] data = noise();
+        byte[] padded = new byte[stride * HEIGHT];
+        for (int i = 0; i < padded.length; i++)
+            padded[i] = (byte) 255;
+        for (int row = 0; row < HEIGHT; row++)
+            System.arraycopy(data, row * WIDTH, padded, row * stride, WIDTH);
+        Rect roi = new Rect(0, 0, WIDTH, HEIGHT);
+        LumaStats expected = measure(data, roi, 1);
+        LumaStats stats = LumaStats.measure(ByteBuffer.wrap(padded), stride, WIDTH, HEIGHT, roi,
+                WIDTH, HEIGHT, 1);
+
+        assertArrayEquals(expected.histogram, stats.histogram, (float) DELTA);
+        assertEquals(expected.laplacianVariance, stats.laplacianVariance, DELTA);
+    }
+
+    @Test
+    public void regionOfInterest_onlyLimitsTheLaplacian() throws Exception {
+        byte[] data = checkerboard(1);
+        for (int row = 0; row < HEIGHT; row++)
+            for (int col = WIDTH / 2; col < WIDTH; col++)
+                data[row * WIDTH + col] = 50;
+        LumaStats stats = measure(data, new Rect(WIDTH / 2, 0, WIDTH / 2, HEIGHT), 1);
+
+        assertEquals(0.5, stats.histogram[50], DELTA);
+        assertEquals(0.0, stats.laplacianVariance, DELTA);
+    }
+
+    @Test
+    public void subsampling_skipsRowsAndColumns() throws Exception {
+        // Sampling every other pixel of a 1x1 checkerboard only sees the even squares
+        LumaStats stats = measure(checkerboard(1), new Rect(0, 0, WIDTH, HEIGHT), 2);
+
+        assertEquals(1.0, stats.histogram[0], DELTA);
+        assertEquals(0, stats.maxWhite);
+    }
+}
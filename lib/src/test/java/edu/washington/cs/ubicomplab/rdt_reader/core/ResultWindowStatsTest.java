@@ -0,0 +1,134 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.core;
+
+import org.junit.Test;
+import org.opencv.core.Scalar;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link ResultWindowStats} built on synthetic 4-channel images, so they
+ * can run on the development machine without a camera or the OpenCV native libraries
+ * Note: the ranges of red are the defaults of Constants.BLOOD_COLOR_*, copied here because
+ * loading Constants needs the Android framework
+ */
+public class ResultWindowStatsTest {
+    private static final int WIDTH = 10;
+    private static final int HEIGHT = 8;
+    private static final int CHANNELS = 4;
+    private static final double DELTA = 1e-6;
+    private static final Scalar LOW_RED_LOWER = new Scalar(0, 100, 100);
+    private static final Scalar LOW_RED_UPPER = new Scalar(10, 255, 255);
+    private static final Scalar HIGH_RED_LOWER = new Scalar(160, 100, 100);
+    private static final Scalar HIGH_RED_UPPER = new Scalar(179, 255, 255);
+
+    // The outline of every pixel in the image
+    private static final double[] FULL = {
+            -0.5, -0.5, WIDTH - 0.5, -0.5, WIDTH - 0.5, HEIGHT - 0.5, -0.5, HEIGHT - 0.5};
+
+    /**
+     * Builds an image where every pixel has the given first three channels
+     */
+    private static byte[] image(int c0, int c1, int c2) {
+        byte[] data = new byte[WIDTH * HEIGHT * CHANNELS];
+        for (int i = 0; i < WIDTH * HEIGHT; i++)
+            setPixel(data, i % WIDTH, i / WIDTH, c0, c1, c2);
+        return data;
+    }
+
+    /**
+     * Measures the pixels of an image inside a quadrilateral with the default ranges of red
+     */
+    private static ResultWindowStats measure(byte[] data, double[] corners) {
+        return ResultWindowStats.measure(data, WIDTH, HEIGHT, CHANNELS, corners,
+                LOW_RED_LOWER, LOW_RED_UPPER, HIGH_RED_LOWER, HIGH_RED_UPPER);
+    }
+
+    private static void setPixel(byte[] data, int x, int y, int c0, int c1, int c2) {
+        int index = (y * WIDTH + x) * CHANNELS;
+        data[index] = (byte) c0;
+        data[index + 1] = (byte) c1;
+        data[index + 2] = (byte) c2;
+        data[index + 3] = (byte) 255;
+    }
+
+    @Test
+    public void lightness_isMidpointOfMaxAndMin() throws Exception {
+        ResultWindowStats stats = measure(image(40, 100, 200), FULL);
+
+        assertEquals(WIDTH * HEIGHT, stats.pixelCount);
+        assertEquals(1.0, stats.lightnessHistogram[120], DELTA);
+        assertEquals(120, stats.maxLightness);
+        assertEquals(0.0, stats.clippingRatio, DELTA);
+    }
+
+    @Test
+    public void whitePixels_countAsClipped() throws Exception {
+        byte[] data = image(40, 100, 200);
+        for (int x = 0; x < WIDTH; x++)
+            setPixel(data, x, 0, 255, 255, 255);
+        ResultWindowStats stats = measure(data, FULL);
+
+        assertEquals(255, stats.maxLightness);
+        assertEquals(1.0 / HEIGHT, stats.clippingRatio, DELTA);
+    }
+
+    @Test
+    public void redRatio_followsBothHueRanges() throws Exception {
+        // The third channel is red in BGR order, so hue 0 (low range)
+        byte[] data = image(0, 0, 200);
+
+        // Hue 170 (high range): red with a little of the first channel
+        for (int x = 0; x < WIDTH; x++)
+            setPixel(data, x, 0, 67, 0, 200);
+
+        // Hue 60 (green): not red
+        for (int x = 0; x < WIDTH; x++)
+            setPixel(data, x, 1, 0, 200, 0);
+
+        // Red hue but too dark
+        for (int x = 0; x < WIDTH; x++)
+            setPixel(data, x, 2, 0, 0, 50);
+        ResultWindowStats stats = measure(data, FULL);
+
+        assertEquals((HEIGHT - 2.0) / HEIGHT, stats.redRatio, DELTA);
+    }
+
+    @Test
+    public void quadrilateral_onlyCountsPixelsInside() throws Exception {
+        // Bright pixels everywhere except a dark 4x3 block at (3, 2)
+        byte[] data = image(250, 250, 250);
+        for (int y = 2; y < 5; y++)
+            for (int x = 3; x < 7; x++)
+                setPixel(data, x, y, 10, 10, 10);
+        double[] block = {2.5, 1.5, 6.5, 1.5, 6.5, 4.5, 2.5, 4.5};
+        ResultWindowStats stats = measure(data, block);
+
+        assertEquals(12, stats.pixelCount);
+        assertEquals(1.0, stats.lightnessHistogram[10], DELTA);
+        assertEquals(10, stats.maxLightness);
+    }
+
+    @Test
+    public void rotatedQuadrilateral_coversItsArea() throws Exception {
+        // A diamond centered on the image covers about half of its bounding box
+        double[] diamond = {4.5, -0.5, 9.5, 3.5, 4.5, 7.5, -0.5, 3.5};
+        ResultWindowStats stats = measure(image(0, 0, 0), diamond);
+
+        assertEquals(WIDTH * HEIGHT / 2.0, stats.pixelCount, WIDTH);
+    }
+
+    @Test
+    public void quadrilateralOffTheImage_returnsNull() throws Exception {
+        double[] outside = {20, 20, 30, 20, 30, 30, 20, 30};
+
+        assertNull(measure(image(0, 0, 0), outside));
+    }
+}
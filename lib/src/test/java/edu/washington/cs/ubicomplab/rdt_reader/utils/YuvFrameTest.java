@@ -0,0 +1,184 @@
+/*
+ * Copyright (C) 2019 University of Washington Ubicomp Lab
+ * All rights reserved.
+ *
+ * This software may be modified and distributed under the terms
+ * of a BSD-style license that can be found in the LICENSE file.
+ */
+
+package edu.washington.cs.ubicomplab.rdt_reader.utils;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.*;
+
+/**
+ * Local unit tests for {@link YuvFrame} built on synthetic planes, so they can run on the
+ * development machine without a camera or the OpenCV native libraries
+ * Note: the order of interleaved chroma planes comes from their native addresses, which
+ * need OpenCV, so it is tested on synthetic addresses instead
+ */
+public class YuvFrameTest {
+    private static final int WIDTH = 6;
+    private static final int HEIGHT = 4;
+
+    private static byte y(int row, int col) {
+        return (byte) (row * 16 + col);
+    }
+
+    private static byte u(int row, int col) {
+        return (byte) (100 + row * 10 + col);
+    }
+
+    private static byte v(int row, int col) {
+        return (byte) (200 + row * 10 + col);
+    }
+
+    /**
+     * Builds a plane with the given strides, leaving the padding bytes set to 0x7f
+     * and truncating the last row the same way the camera HAL does
+     */
+    private static ByteBuffer plane(int w, int h, int rowStride, int pixelStride, char channel) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect((h - 1) * rowStride + (w - 1) * pixelStride + 1);
+        while (buffer.hasRemaining())
+            buffer.put((byte) 0x7f);
+        for (int row = 0; row < h; row++) {
+            for (int col = 0; col < w; col++) {
+                byte value = channel == 'y' ? y(row, col) : channel == 'u' ? u(row, col) : v(row, col);
+                buffer.put(row * rowStride + col * pixelStride, value);
+            }
+        }
+        buffer.rewind();
+        return buffer;
+    }
+
+    /**
+     * Builds a single interleaved chroma plane and returns the two overlapping views into it
+     * @return {first, second} where second starts one byte after first
+     */
+    private static ByteBuffer[] interleaved(int rowStride, boolean vFirst) {
+        int w = WIDTH / 2;
+        int h = HEIGHT / 2;
+        ByteBuffer buffer = ByteBuffer.allocateDirect((h - 1) * rowStride + 2 * w);
+        for (int row = 0; row < h; row++) {
+            for (int col = 0; col < w; col++) {
+                buffer.put(row * rowStride + 2 * col, vFirst ? v(row, col) : u(row, col));
+                buffer.put(row * rowStride + 2 * col + 1, vFirst ? u(row, col) : v(row, col));
+            }
+        }
+        ByteBuffer first = buffer.duplicate();
+        first.limit(buffer.capacity() - 1);
+        ByteBuffer second = buffer.duplicate();
+        second.position(1);
+        return new ByteBuffer[]{first.slice(), second.slice()};
+    }
+
+    private static byte[] expectedI420() {
+        byte[] expected = new byte[WIDTH * HEIGHT * 3 / 2];
+        int i = 0;
+        for (int row = 0; row < HEIGHT; row++)
+            for (int col = 0; col < WIDTH; col++)
+                expected[i++] = y(row, col);
+        for (int row = 0; row < HEIGHT / 2; row++)
+            for (int col = 0; col < WIDTH / 2; col++)
+                expected[i++] = u(row, col);
+        for (int row = 0; row < HEIGHT / 2; row++)
+            for (int col = 0; col < WIDTH / 2; col++)
+                expected[i++] = v(row, col);
+        return expected;
+    }
+
+    @Test
+    public void planarWithOddRowStrides_isI420() throws Exception {
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT,
+                plane(WIDTH, HEIGHT, 7, 1, 'y'), 7,
+                plane(WIDTH / 2, HEIGHT / 2, 5, 1, 'u'),
+                plane(WIDTH / 2, HEIGHT / 2, 5, 1, 'v'), 5, 1);
+
+        assertEquals(YuvFrame.Layout.I420, frame.getLayout());
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+
+    @Test
+    public void overlappingVUPlanes_packCorrectly() throws Exception {
+        ByteBuffer[] vu = interleaved(8, true);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT,
+                plane(WIDTH, HEIGHT, 8, 1, 'y'), 8, vu[1], vu[0], 8, 2);
+
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+
+    @Test
+    public void overlappingUVPlanes_packCorrectly() throws Exception {
+        ByteBuffer[] uv = interleaved(8, false);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT,
+                plane(WIDTH, HEIGHT, 8, 1, 'y'), 8, uv[0], uv[1], 8, 2);
+
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+
+    @Test
+    public void vPlaneOneByteBeforeU_isNV21() throws Exception {
+        assertEquals(YuvFrame.Layout.NV21, YuvFrame.detectInterleaving(0x1001, 0x1000));
+    }
+
+    @Test
+    public void uPlaneOneByteBeforeV_isNV12() throws Exception {
+        assertEquals(YuvFrame.Layout.NV12, YuvFrame.detectInterleaving(0x1000, 0x1001));
+    }
+
+    @Test
+    public void separateChromaPlanes_isStrided() throws Exception {
+        assertEquals(YuvFrame.Layout.STRIDED, YuvFrame.detectInterleaving(0x1000, 0x2000));
+        assertEquals(YuvFrame.Layout.STRIDED, YuvFrame.detectInterleaving(0x1000, 0x1002));
+    }
+
+    @Test
+    public void semiPlanarWithDifferentLumaStride_isStrided() throws Exception {
+        ByteBuffer[] vu = interleaved(8, true);
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT,
+                plane(WIDTH, HEIGHT, 9, 1, 'y'), 9, vu[1], vu[0], 8, 2);
+
+        assertEquals(YuvFrame.Layout.STRIDED, frame.getLayout());
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+
+    @Test
+    public void separatePlanesWithPixelStride2_packCorrectly() throws Exception {
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT,
+                plane(WIDTH, HEIGHT, 8, 1, 'y'), 8,
+                plane(WIDTH / 2, HEIGHT / 2, 8, 2, 'u'),
+                plane(WIDTH / 2, HEIGHT / 2, 8, 2, 'v'), 8, 2);
+
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+
+    @Test
+    public void oddPixelAndRowStrides_packCorrectly() throws Exception {
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT,
+                plane(WIDTH, HEIGHT, 11, 1, 'y'), 11,
+                plane(WIDTH / 2, HEIGHT / 2, 13, 3, 'u'),
+                plane(WIDTH / 2, HEIGHT / 2, 13, 3, 'v'), 13, 3);
+
+        assertEquals(YuvFrame.Layout.STRIDED, frame.getLayout());
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+
+    @Test
+    public void packing_doesNotMoveBufferPositions() throws Exception {
+        ByteBuffer yBuffer = plane(WIDTH, HEIGHT, 7, 1, 'y');
+        ByteBuffer uBuffer = plane(WIDTH / 2, HEIGHT / 2, 5, 1, 'u');
+        ByteBuffer vBuffer = plane(WIDTH / 2, HEIGHT / 2, 5, 1, 'v');
+        YuvFrame frame = new YuvFrame(WIDTH, HEIGHT, yBuffer, 7, uBuffer, vBuffer, 5, 1);
+
+        frame.packI420();
+        frame.packI420();
+
+        assertEquals(0, yBuffer.position());
+        assertEquals(0, uBuffer.position());
+        assertEquals(0, vBuffer.position());
+        assertArrayEquals(expectedI420(), frame.packI420());
+    }
+}